@@ -0,0 +1,71 @@
+package za.co.imqs.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.importers.BoqTemplateMapper;
+import za.co.imqs.services.JsonStreamEntity;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Json serialization of a template batch as it is sent to the template service: the old String based path and the
+ * streaming entity, with and without gzip. Score is the time to serialize one batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchSerializationBenchmark {
+    @Param({"50", "500"})
+    public int batchSize;
+
+    private List<BoqClassificationTemplateDTO> batch;
+    private ObjectMapper mapper;
+
+    @Setup
+    public void setup() throws Exception {
+        final Path file = SyntheticPolicyFile.write(Files.createTempFile("boq-bench", ".csv"), batchSize, 42);
+        batch = new ArrayList<>(batchSize);
+        try (final Reader reader = Files.newBufferedReader(file);
+             final CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
+                     .withFirstRecordAsHeader()
+                     .withIgnoreHeaderCase()
+                     .withTrim())) {
+            final BoqTemplateMapper templateMapper = new BoqTemplateMapper(SyntheticPolicyFile.FIELD_LIST, csvParser.getHeaderMap());
+            for (CSVRecord csvRecord : csvParser) {
+                batch.add(templateMapper.map(csvRecord));
+            }
+        }
+        Files.delete(file);
+        mapper = new ObjectMapper();
+    }
+
+    @Benchmark
+    public byte[] writeValueAsString() throws Exception {
+        //what the client did before the streaming entity: serialize to a String, then encode it
+        return mapper.writeValueAsString(batch).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public void streamingEntity() throws Exception {
+        new JsonStreamEntity(batch, mapper, false).writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public void streamingEntityGzip() throws Exception {
+        new JsonStreamEntity(batch, mapper, true).writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+}
@@ -0,0 +1,31 @@
+package za.co.imqs.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the JMH command line options and always adds the gc profiler, so every run reports the
+ * allocation rate (gc.alloc.rate.norm = bytes allocated per operation).
+ *
+ * Example: java -jar benchmarks/target/benchmarks.jar TemplateMapping -p rows=100000
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        final List<String> arguments = Arrays.asList(args);
+        //help and list requests are handled by the standard JMH main
+        if (arguments.contains("-h") || arguments.contains("-l") || arguments.contains("-lp") || arguments.contains("-lprof")) {
+            Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,51 @@
+package za.co.imqs.benchmarks;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a synthetic import file with the CSV format used by BoqImporter. Score is the time to parse the whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvParseBenchmark {
+    @Param({"10000", "100000"})
+    public int rows;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws Exception {
+        file = SyntheticPolicyFile.write(Files.createTempFile("boq-bench", ".csv"), rows, 42);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void parseFile(Blackhole blackhole) throws Exception {
+        try (final Reader reader = Files.newBufferedReader(file);
+             final CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
+                     .withFirstRecordAsHeader()
+                     .withIgnoreHeaderCase()
+                     .withTrim())) {
+            for (CSVRecord csvRecord : csvParser) {
+                blackhole.consume(csvRecord);
+            }
+        }
+    }
+}
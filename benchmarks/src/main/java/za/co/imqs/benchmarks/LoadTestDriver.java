@@ -0,0 +1,183 @@
+package za.co.imqs.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.cli.*;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import za.co.imqs.exporters.BoqExporter;
+import za.co.imqs.importers.BoqImporter;
+import za.co.imqs.importers.BoqVerifier;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs exportBoq and importBoq end to end against an embedded database (SyntheticPolicyDatabase) and a local template
+ * service stand-in (TemplateServiceStandIn), and reports the rows/sec and the p50/p99 latencies from the run metrics.
+ *
+ * The export reads the synthetic AssetPolicyVAR table into a CSV file, which is then imported into the stand-in.
+ * With --verify the stand-in keeps the imported templates and verifyBoq compares them with the CSV file afterwards.
+ * The exit code is 1 if not all the rows were exported and imported (and verified).
+ *
+ * Example:
+ *   java -cp benchmarks/target/benchmarks.jar za.co.imqs.benchmarks.LoadTestDriver --rows 200000 --latencyMs 20 --errorRate 0.01
+ */
+public class LoadTestDriver {
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new Options();
+        options.addOption(null, "rows", true, "Rows in the AssetPolicyVAR table (default 100000)");
+        options.addOption(null, "latencyMs", true, "Latency of the template service per batch (default 20)");
+        options.addOption(null, "errorRate", true, "Fraction of the batches failed with 503 (default 0)");
+        options.addOption(null, "maxRequestsPerSecond", true, "Batches accepted per second, above this 429 is returned (default 0 = no limit)");
+        options.addOption(null, "batchSize", true, "Import batch size (default 100)");
+        options.addOption(null, "submitThreads", true, "Import submit threads (default 4)");
+        options.addOption(null, "parseThreads", true, "Import parse threads, 0 to parse on the import thread (default 0)");
+        options.addOption(null, "verify", false, "Run verifyBoq against the stand-in after the import");
+        options.addOption(null, "verifyThreads", true, "verifyBoq page threads (default 4)");
+        options.addOption(null, "report", true, "Write the report as json to this file");
+        options.addOption(null, "verbose", false, "Log the import and export at info level");
+        options.addOption("h", "help", false, "Show the options");
+        final CommandLine arg = new DefaultParser().parse(options, args);
+        if (arg.hasOption("h")) {
+            new HelpFormatter().printHelp("LoadTestDriver", options);
+            return;
+        }
+        final int rows = Integer.parseInt(arg.getOptionValue("rows", "100000"));
+
+        BasicConfigurator.configure();
+        org.apache.log4j.Logger.getRootLogger().setLevel(arg.hasOption("verbose") ? Level.INFO : Level.WARN);
+
+        final ObjectMapper mapper = new ObjectMapper();
+        final File workDir = Files.createTempDirectory("boq-load-test").toFile();
+        final File exportFile = new File(workDir, "boq_export.csv");
+        final Map<String, Object> report = new LinkedHashMap<>();
+
+        System.out.println("Seeding " + rows + " rows in the embedded database...");
+        final String jdbcUrl = SyntheticPolicyDatabase.create("boq_load_test", rows, SEED);
+
+        try (TemplateServiceStandIn templateService = new TemplateServiceStandIn(Long.parseLong(arg.getOptionValue("latencyMs", "20")),
+                                                                                  Double.parseDouble(arg.getOptionValue("errorRate", "0")),
+                                                                                  Integer.parseInt(arg.getOptionValue("maxRequestsPerSecond", "0")),
+                                                                                  SEED,
+                                                                                  arg.hasOption("verify"))) {
+            //exportBoq
+            final ObjectNode exportConfig = mapper.createObjectNode();
+            final ObjectNode dbParams = exportConfig.putObject("dbParams");
+            dbParams.put("driverClass", "org.h2.Driver");
+            dbParams.put("jdbcUrl", jdbcUrl);
+            dbParams.put("username", "sa");
+            dbParams.put("password", "");
+            exportConfig.put("exportFilename", exportFile.getPath());
+            exportConfig.put("exportQuery", SyntheticPolicyDatabase.EXPORT_QUERY);
+            exportConfig.put("duplicatesQuery", SyntheticPolicyDatabase.DUPLICATES_QUERY);
+            exportConfig.put("metricsFile", new File(workDir, "export.metrics.json").getPath());
+            final File exportConfigFile = writeConfig(mapper, workDir, "boq-export-config.json", exportConfig);
+
+            System.out.println("Running exportBoq...");
+            new BoqExporter(exportConfigFile.getPath()).execute();
+            final JsonNode exportMetrics = mapper.readTree(new File(workDir, "export.metrics.json"));
+            report.put("exportBoq", stage(exportMetrics, "rows.exported", "db.fetch", "file.write"));
+
+            //importBoq
+            final ObjectNode importConfig = mapper.createObjectNode();
+            final ObjectNode svcConfig = importConfig.putObject("imqs-template-service");
+            svcConfig.put("baseURI", "http://127.0.0.1:" + templateService.getPort() + "/template/v1_0/");
+            svcConfig.put("authSvcURI", "http://127.0.0.1:" + templateService.getPort() + "/auth2/");
+            svcConfig.put("username", "load-test");
+            svcConfig.put("password", "load-test");
+            importConfig.put("importFilename", exportFile.getPath());
+            importConfig.put("batchSize", Integer.parseInt(arg.getOptionValue("batchSize", "100")));
+            importConfig.put("submitThreads", Integer.parseInt(arg.getOptionValue("submitThreads", "4")));
+            final int parseThreads = Integer.parseInt(arg.getOptionValue("parseThreads", "0"));
+            if (parseThreads > 0) {
+                importConfig.putObject("parallelParsing").put("threads", parseThreads);
+            }
+            importConfig.putObject("retry").put("maxRetries", 10).put("initialBackoffMs", 50).put("maxBackoffMs", 2000);
+            importConfig.put("metricsFile", new File(workDir, "import.metrics.json").getPath());
+            importConfig.set("fieldList", mapper.valueToTree(SyntheticPolicyFile.FIELD_LIST));
+            final File importConfigFile = writeConfig(mapper, workDir, "boq-import-config.json", importConfig);
+
+            System.out.println("Running importBoq...");
+            new BoqImporter(importConfigFile.getPath()).execute();
+            final JsonNode importMetrics = mapper.readTree(new File(workDir, "import.metrics.json"));
+            final Map<String, Object> importStage = stage(importMetrics, "rows.submitted", "http.templates", "mapping");
+            importStage.put("retries", importMetrics.path("counters").path("retries").asLong());
+            importStage.put("batches", importMetrics.path("counters").path("batches").asLong());
+            report.put("importBoq", importStage);
+
+            //verifyBoq
+            if (arg.hasOption("verify")) {
+                final ObjectNode verifyConfig = importConfig.deepCopy();
+                verifyConfig.remove("parallelParsing");
+                verifyConfig.putObject("verify").put("threads", Integer.parseInt(arg.getOptionValue("verifyThreads", "4")));
+                verifyConfig.put("metricsFile", new File(workDir, "verify.metrics.json").getPath());
+                final File verifyConfigFile = writeConfig(mapper, workDir, "boq-verify-config.json", verifyConfig);
+
+                System.out.println("Running verifyBoq...");
+                new BoqVerifier(verifyConfigFile.getPath()).execute();
+                final JsonNode verifyMetrics = mapper.readTree(new File(workDir, "verify.metrics.json"));
+                final Map<String, Object> verifyStage = stage(verifyMetrics, "verify.matched", "http.templates.get", "verify.compare");
+                for (String counter : new String[]{"verify.missing", "verify.extra", "verify.different"}) {
+                    verifyStage.put(counter.substring("verify.".length()), verifyMetrics.path("counters").path(counter).asLong());
+                }
+                report.put("verifyBoq", verifyStage);
+            }
+
+            final Map<String, Object> service = new LinkedHashMap<>();
+            service.put("templateRequests", templateService.getTemplateRequests());
+            service.put("injectedErrors", templateService.getInjectedErrors());
+            service.put("throttledRequests", templateService.getThrottledRequests());
+            service.put("bytesReceived", templateService.getBytesReceived());
+            if (arg.hasOption("verify")) {
+                service.put("templatesKept", templateService.getTemplatesKept());
+            }
+            report.put("templateService", service);
+        }
+
+        System.out.println(mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValueAsString(report));
+        if (arg.hasOption("report")) {
+            mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(new File(arg.getOptionValue("report")), report);
+        }
+
+        final long exported = ((Number) ((Map<?, ?>) report.get("exportBoq")).get("rows")).longValue();
+        final long imported = ((Number) ((Map<?, ?>) report.get("importBoq")).get("rows")).longValue();
+        final long verified = report.containsKey("verifyBoq") ? ((Number) ((Map<?, ?>) report.get("verifyBoq")).get("rows")).longValue() : rows;
+        if (exported != rows || imported != rows || verified != rows) {
+            System.out.println("FAILED - rows exported = " + exported + ", rows imported = " + imported +
+                               (report.containsKey("verifyBoq") ? ", rows verified = " + verified : "") + ", expected " + rows + ". Configs, export file and metrics in " + workDir);
+            System.exit(1);
+        }
+        System.out.println("Load test complete. Configs, export file and metrics in " + workDir);
+    }
+
+    /**
+     * @return Returns the rows, rows/sec and the p50/p99 of the given timers of a job
+     */
+    private static Map<String, Object> stage(JsonNode metrics, String rowsCounter, String... timers) {
+        final Map<String, Object> stage = new LinkedHashMap<>();
+        final long rows = metrics.path("counters").path(rowsCounter).asLong();
+        final double seconds = Math.max(1e-3, metrics.path("elapsedMs").asLong() / 1000.0);
+        stage.put("rows", rows);
+        stage.put("seconds", seconds);
+        stage.put("rowsPerSecond", Math.round(rows / seconds));
+        for (String timer : timers) {
+            final JsonNode snapshot = metrics.path("timersMs").path(timer);
+            stage.put(timer + ".p50Ms", snapshot.path("p50").asDouble());
+            stage.put(timer + ".p99Ms", snapshot.path("p99").asDouble());
+        }
+        return stage;
+    }
+
+    private static File writeConfig(ObjectMapper mapper, File workDir, String name, JsonNode config) throws Exception {
+        final File file = new File(workDir, name);
+        mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(file, config);
+        return file;
+    }
+}
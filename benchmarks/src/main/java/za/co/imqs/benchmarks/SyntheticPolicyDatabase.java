@@ -0,0 +1,81 @@
+package za.co.imqs.benchmarks;
+
+import java.sql.*;
+import java.util.Random;
+
+/**
+ * Embedded (in-memory H2) database with a synthetic AssetPolicyVAR table, for load tests of the export.
+ *
+ * The table has the columns of SyntheticPolicyFile, and the rows are the same as those of a synthetic policy file with
+ * the same row count and seed. The stored procedures of the export are replaced by aliases:
+ *   PolicyVARExportForBOQ()      all the rows in id order
+ *   AssetPolicyVARDuplicates()   boqPaths that occur more than once (none)
+ * H2 needs the parentheses, so the export config uses "{call PolicyVARExportForBOQ()}".
+ */
+public final class SyntheticPolicyDatabase {
+    public static final String EXPORT_QUERY = "{call PolicyVARExportForBOQ()}";
+    public static final String DUPLICATES_QUERY = "{call AssetPolicyVARDuplicates()}";
+
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private SyntheticPolicyDatabase() {
+    }
+
+    /**
+     * Create and seed the database. It lives until the JVM exits.
+     *
+     * @return Returns the jdbc url of the database
+     */
+    public static String create(String name, int rows, long seed) throws SQLException {
+        final String jdbcUrl = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        final String[] header = SyntheticPolicyFile.header();
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, "sa", "");
+             Statement statement = connection.createStatement()) {
+            final StringBuilder columns = new StringBuilder("id INT PRIMARY KEY");
+            final StringBuilder parameters = new StringBuilder("?");
+            for (String column : header) {
+                columns.append(", ").append(column).append(" VARCHAR(100)");
+                parameters.append(", ?");
+            }
+            statement.execute("CREATE TABLE AssetPolicyVAR (" + columns + ")");
+            statement.execute("CREATE ALIAS PolicyVARExportForBOQ FOR \"" + SyntheticPolicyDatabase.class.getName() + ".exportForBoq\"");
+            statement.execute("CREATE ALIAS AssetPolicyVARDuplicates FOR \"" + SyntheticPolicyDatabase.class.getName() + ".duplicates\"");
+
+            final Random random = new Random(seed);
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO AssetPolicyVAR VALUES (" + parameters + ")")) {
+                for (int i = 0; i < rows; i++) {
+                    final String[] row = SyntheticPolicyFile.row(i, random);
+                    insert.setInt(1, i);
+                    for (int c = 0; c < row.length; c++) {
+                        insert.setString(c + 2, row[c]);
+                    }
+                    insert.addBatch();
+                    if ((i + 1) % INSERT_BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+        }
+        return jdbcUrl;
+    }
+
+    /**
+     * Stand-in for the PolicyVARExportForBOQ stored procedure
+     */
+    public static ResultSet exportForBoq(Connection connection) throws SQLException {
+        final StringBuilder columns = new StringBuilder();
+        for (String column : SyntheticPolicyFile.header()) {
+            //keep the column name case of the real procedure, unquoted names are upper case in H2
+            columns.append(columns.length() == 0 ? "" : ", ").append(column).append(" AS \"").append(column).append('"');
+        }
+        return connection.createStatement().executeQuery("SELECT " + columns + " FROM AssetPolicyVAR ORDER BY id");
+    }
+
+    /**
+     * Stand-in for the AssetPolicyVARDuplicates stored procedure
+     */
+    public static ResultSet duplicates(Connection connection) throws SQLException {
+        return connection.createStatement().executeQuery("SELECT boqPath, COUNT(*) AS duplicates FROM AssetPolicyVAR GROUP BY boqPath HAVING COUNT(*) > 1");
+    }
+}
@@ -0,0 +1,134 @@
+package za.co.imqs.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates BOQ import files with the same layout as the PolicyVARExportForBOQ export, for benchmarks and load tests.
+ *
+ * Rows are spread over financial years, component types and descriptors so that classification nodes repeat the way they
+ * do in a municipal policy. The content is deterministic for a given row count and seed.
+ */
+public final class SyntheticPolicyFile {
+    /**
+     * The fieldList of the sample boq-import-config.json
+     */
+    public static final Map<String, String> FIELD_LIST = new LinkedHashMap<>();
+
+    static {
+        FIELD_LIST.put("eul", "NUMERIC");
+        FIELD_LIST.put("extentUnit", "STRING");
+        FIELD_LIST.put("eulUnit", "STRING");
+        FIELD_LIST.put("eulCG", "NUMERIC");
+        FIELD_LIST.put("residualPct", "NUMERIC");
+        FIELD_LIST.put("residualPctCG", "NUMERIC");
+        FIELD_LIST.put("unitRate", "NUMERIC");
+        FIELD_LIST.put("refUnitRateUnit", "STRING");
+        FIELD_LIST.put("descriptorSizeUnit", "STRING");
+        FIELD_LIST.put("extentConversion", "NUMERIC");
+        FIELD_LIST.put("unitRateCG", "NUMERIC");
+        FIELD_LIST.put("IncludeDescriptorSize", "BOOLEAN");
+        FIELD_LIST.put("CRCCalcIncludeDescriptorSize", "BOOLEAN");
+        FIELD_LIST.put("InterpolateDescriptorSize", "STRING");
+        FIELD_LIST.put("InterpolationTolerancePercentage", "NUMERIC");
+        FIELD_LIST.put("refDepreciationMethodId", "STRING");
+    }
+
+    public static final String[] DESCRIPTOR_COLUMNS = {
+            "financialYear", "componentType_ID", "componentType", "descriptorType_ID", "descriptorType",
+            "descriptorClass_ID", "descriptorClass", "descriptorSize_ID", "descriptorSize", "boqPath"};
+
+    private static final int FINANCIAL_YEARS = 10;
+    private static final int COMPONENT_TYPES = 40;
+    private static final int DESCRIPTOR_TYPES = 12;
+    private static final int DESCRIPTOR_CLASSES = 8;
+
+    private SyntheticPolicyFile() {
+    }
+
+    /**
+     * @return Returns the column names of the file, descriptor columns first.
+     */
+    public static String[] header() {
+        final String[] header = new String[DESCRIPTOR_COLUMNS.length + FIELD_LIST.size()];
+        System.arraycopy(DESCRIPTOR_COLUMNS, 0, header, 0, DESCRIPTOR_COLUMNS.length);
+        int i = DESCRIPTOR_COLUMNS.length;
+        for (String field : FIELD_LIST.keySet()) {
+            header[i++] = field;
+        }
+        return header;
+    }
+
+    /**
+     * @return Returns the values of the row with the given (0 based) index.
+     */
+    public static String[] row(int index, Random random) {
+        final String[] row = new String[DESCRIPTOR_COLUMNS.length + FIELD_LIST.size()];
+        final String finYear = String.valueOf(2011 + index % FINANCIAL_YEARS);
+        int rest = index / FINANCIAL_YEARS;
+        final int componentType = rest % COMPONENT_TYPES;
+        rest /= COMPONENT_TYPES;
+        final int descriptorType = rest % DESCRIPTOR_TYPES;
+        rest /= DESCRIPTOR_TYPES;
+        final int descriptorClass = rest % DESCRIPTOR_CLASSES;
+        final int descriptorSize = rest / DESCRIPTOR_CLASSES;
+
+        row[0] = finYear;
+        row[1] = String.valueOf(1000 + componentType);
+        row[2] = "Component Type " + componentType;
+        row[3] = String.valueOf(2000 + descriptorType);
+        row[4] = "Descriptor Type " + descriptorType;
+        row[5] = String.valueOf(3000 + descriptorClass);
+        //some descriptors are not specified
+        row[6] = descriptorClass == 0 ? "" : "Descriptor Class " + descriptorClass;
+        row[7] = String.valueOf(4000 + descriptorSize);
+        row[8] = descriptorSize % 5 == 0 ? "" : descriptorSize + "mm";
+        row[9] = "BOQ-" + finYear + "-" + row[1] + "-" + row[3] + "-" + row[5] + "-" + row[7];
+
+        int i = DESCRIPTOR_COLUMNS.length;
+        for (String type : FIELD_LIST.values()) {
+            switch (type) {
+                case "NUMERIC":
+                    row[i] = random.nextInt(4) == 0 ? "NULL" : String.valueOf(random.nextInt(100000) / 100.0);
+                    break;
+                case "BOOLEAN":
+                    row[i] = random.nextBoolean() ? "1" : "0";
+                    break;
+                default:
+                    row[i] = random.nextInt(3) == 0 ? "" : "unit" + random.nextInt(10);
+            }
+            i++;
+        }
+        return row;
+    }
+
+    /**
+     * Write a CSV file (Excel format, as written by the exporter) with the given number of rows.
+     */
+    public static Path write(Path file, int rows, long seed) throws IOException {
+        final Random random = new Random(seed);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writeLine(writer, header());
+            for (int i = 0; i < rows; i++) {
+                writeLine(writer, row(i, random));
+            }
+        }
+        return file;
+    }
+
+    private static void writeLine(Writer writer, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(values[i]);
+        }
+        writer.write("\r\n");
+    }
+}
@@ -0,0 +1,70 @@
+package za.co.imqs.benchmarks;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import za.co.imqs.importers.BoqTemplateMapper;
+
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of parsed import records to classification templates (descriptor classification nodes with the boqPath parent
+ * path slicing, template fields). Score is the time to map one record, from a parsed CSVRecord (mapRecord) or from
+ * the values of the record in an array (mapRow).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateMappingBenchmark {
+    @Param({"10000"})
+    public int rows;
+
+    private List<CSVRecord> records;
+    private List<String[]> rowArrays;
+    private BoqTemplateMapper mapper;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        final Path file = SyntheticPolicyFile.write(Files.createTempFile("boq-bench", ".csv"), rows, 42);
+        try (final Reader reader = Files.newBufferedReader(file);
+             final CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
+                     .withFirstRecordAsHeader()
+                     .withIgnoreHeaderCase()
+                     .withTrim())) {
+            records = csvParser.getRecords();
+            mapper = new BoqTemplateMapper(SyntheticPolicyFile.FIELD_LIST, csvParser.getHeaderMap());
+        }
+        Files.delete(file);
+        rowArrays = new ArrayList<>(records.size());
+        for (CSVRecord record : records) {
+            final String[] row = new String[record.size()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = record.get(i);
+            }
+            rowArrays.add(row);
+        }
+    }
+
+    @Benchmark
+    public void mapRecord(Blackhole blackhole) {
+        blackhole.consume(mapper.map(records.get(next)));
+        next = next + 1 == records.size() ? 0 : next + 1;
+    }
+
+    @Benchmark
+    public void mapRow(Blackhole blackhole) {
+        blackhole.consume(mapper.map(rowArrays.get(next)));
+        next = next + 1 == rowArrays.size() ? 0 : next + 1;
+    }
+}
@@ -0,0 +1,251 @@
+package za.co.imqs.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the auth and template services, for load tests.
+ *
+ *   POST /auth2/login            200 with a session cookie
+ *   PUT  /template/v1_0/tree      201
+ *   PUT  /template/v1_0/templates 201 after latencyMs, 401 without the session cookie,
+ *                                 503 for errorRate of the requests and 429 (Retry-After: 1) above maxRequestsPerSecond
+ *   GET  /template/v1_0/templates?offset=..&limit=..
+ *                                 200 with a page of the stored templates, ordered by code (keepTemplates only)
+ *
+ * Request bodies are read and discarded, unless keepTemplates is set: then the templates of the accepted requests are
+ * kept by code (a later template replaces the one with the same code), so an import can be verified (see BoqVerifier).
+ */
+public class TemplateServiceStandIn implements Closeable {
+    public static final String SESSION_COOKIE = "session=load-test";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long latencyMs;
+    private final double errorRate;
+    private final int maxRequestsPerSecond;
+    private final Random random;
+    private final NavigableMap<String, byte[]> templates;        //json of the kept templates by code, null if they are not kept
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong templateRequests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private long windowStartNanos = System.nanoTime();
+    private int windowRequests;
+
+    /**
+     * @param latencyMs            Time taken by every accepted /templates request
+     * @param errorRate            Fraction of the /templates requests answered with 503
+     * @param maxRequestsPerSecond Accepted /templates requests per second, 0 for no limit
+     */
+    public TemplateServiceStandIn(long latencyMs, double errorRate, int maxRequestsPerSecond, long seed) throws IOException {
+        this(latencyMs, errorRate, maxRequestsPerSecond, seed, false);
+    }
+
+    /**
+     * @param keepTemplates Keep the templates of the accepted /templates requests and serve them with GET /templates
+     */
+    public TemplateServiceStandIn(long latencyMs, double errorRate, int maxRequestsPerSecond, long seed, boolean keepTemplates) throws IOException {
+        this.templates = keepTemplates ? new ConcurrentSkipListMap<>() : null;
+        this.latencyMs = latencyMs;
+        this.errorRate = errorRate;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.random = new Random(seed);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 200);
+        executor = Executors.newFixedThreadPool(64);
+        server.setExecutor(executor);
+        server.createContext("/auth2/login", exchange -> {
+            consume(exchange);
+            exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "; Path=/; HttpOnly");
+            respond(exchange, 200);
+        });
+        server.createContext("/template/v1_0/tree", exchange -> {
+            consume(exchange);
+            respond(exchange, 201);
+        });
+        server.createContext("/template/v1_0/templates", this::templates);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getTemplateRequests() {
+        return templateRequests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getTemplatesKept() {
+        return templates == null ? 0 : templates.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void templates(HttpExchange exchange) throws IOException {
+        final boolean get = "GET".equals(exchange.getRequestMethod());
+        final byte[] body = templates != null && !get ? read(exchange) : null;
+        if (body == null) {
+            consume(exchange);
+        }
+        if (!get) {
+            templateRequests.incrementAndGet();
+        }
+        final String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookie == null || !cookie.contains(SESSION_COOKIE)) {
+            respond(exchange, 401);
+            return;
+        }
+        if (get) {
+            page(exchange);
+            return;
+        }
+        if (!tryAcquire()) {
+            throttledRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            respond(exchange, 429);
+            return;
+        }
+        sleep(latencyMs);
+        if (nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            respond(exchange, 503);
+            return;
+        }
+        if (body != null) {
+            for (JsonNode item : mapper.readTree(body)) {
+                templates.put(item.path("template").path("code").asText(), mapper.writeValueAsBytes(item));
+            }
+        }
+        respond(exchange, 201);
+    }
+
+    private void page(HttpExchange exchange) throws IOException {
+        if (templates == null) {
+            respond(exchange, 405);
+            return;
+        }
+        long offset = 0;
+        long limit = Long.MAX_VALUE;
+        final String query = exchange.getRequestURI().getQuery();
+        for (String parameter : query == null ? new String[0] : query.split("&")) {
+            final String[] nameValue = parameter.split("=", 2);
+            if (nameValue[0].equals("offset")) {
+                offset = Long.parseLong(nameValue[1]);
+            } else if (nameValue[0].equals("limit")) {
+                limit = Long.parseLong(nameValue[1]);
+            }
+        }
+        final ByteArrayOutputStream page = new ByteArrayOutputStream();
+        page.write('[');
+        final Iterator<byte[]> iterator = templates.values().iterator();
+        for (long i = 0; i < offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        for (long i = 0; i < limit && iterator.hasNext(); i++) {
+            if (i > 0) {
+                page.write(',');
+            }
+            page.write(iterator.next());
+        }
+        page.write(']');
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, page.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            page.writeTo(out);
+        }
+        exchange.close();
+    }
+
+    /**
+     * @return Returns false if the request exceeds maxRequestsPerSecond in the current one second window.
+     */
+    private synchronized boolean tryAcquire() {
+        if (maxRequestsPerSecond <= 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (now - windowStartNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            windowStartNanos = now;
+            windowRequests = 0;
+        }
+        return ++windowRequests <= maxRequestsPerSecond;
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private void consume(HttpExchange exchange) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                total += n;
+            }
+        }
+        bytesReceived.addAndGet(total);
+    }
+
+    private byte[] read(HttpExchange exchange) throws IOException {
+        final CountingInputStream body = new CountingInputStream(exchange.getRequestBody());
+        final boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream in = gzip ? new GZIPInputStream(body) : body) {
+            return IOUtils.toByteArray(in);
+        } finally {
+            bytesReceived.addAndGet(body.getByteCount());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode) throws IOException {
+        exchange.sendResponseHeaders(statusCode, -1);
+        exchange.close();
+    }
+
+    private static void sleep(long ms) {
+        if (ms > 0) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
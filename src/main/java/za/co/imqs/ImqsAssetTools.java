@@ -4,20 +4,28 @@ import org.apache.commons.cli.*;
 import org.apache.log4j.PropertyConfigurator;
 import za.co.imqs.exporters.BoqExporter;
 import za.co.imqs.importers.BoqImporter;
+import za.co.imqs.importers.BoqMigrator;
+import za.co.imqs.importers.BoqVerifier;
+import za.co.imqs.jobs.JobDaemon;
+import za.co.imqs.jobs.ManifestRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.File;
 import java.util.Arrays;
 
-import static com.jayway.restassured.RestAssured.given;
-
 /**
  * Created by gerhardv on 2020-02-04.
  * <p>
  * A command line utility (Controller class) for routing a request to the responsible handler class.
  * The program expects 3 arguments:
- * 1. Command : -c for example exportBoq, importBoq, importClassification etc.
- * 2. Config file : -f "filename", filename of the configuration file.
+ * 1. Command : -c for example exportBoq, importBoq, migrateBoq, verifyBoq, runManifest, daemon, daemonStatus, daemonShutdown etc.
+ * 2. Config file : -f "filename", filename of the configuration file (the manifest for runManifest, see ManifestRunner;
+ *    the daemon config for daemon, daemonStatus and daemonShutdown, see JobDaemon).
  * 3. Log file : -l filename of the properties file for log4j
+ * Optional:
+ * 4. Resume : -r or --resume, continue a failed importBoq or migrateBoq from the first uncommitted batch
+ * 5. Daemon : -d port or --daemon port, run the job in the daemon listening on the port instead of in this JVM. The log of
+ *    the job is printed to the standard output and the exit code is 1 if the job did not succeed.
  *
  * Each handler class is responsible for parsing its own configuration file. See handler class for more details.
  *
@@ -31,12 +39,14 @@ public class ImqsAssetTools {
             // instantiate Options object for command line arguments
             Options options = new Options();
             // add all the arguments
-            options.addOption("c", true, "Command : (exportBoq, importBoq)");
+            options.addOption("c", true, "Command : (exportBoq, importBoq, migrateBoq, verifyBoq, runManifest, daemon, daemonStatus, daemonShutdown)");
             options.getOption("c").setRequired(true);
             options.addOption("f", true, "Path for the Configuration filename");
             options.getOption("f").setRequired(true);
             options.addOption("l", true, "Path for the Log4j properties filename");
             options.getOption("l").setRequired(true);
+            options.addOption("r", "resume", false, "Resume a failed import from the first uncommitted batch (importBoq, migrateBoq)");
+            options.addOption("d", "daemon", true, "Run the job in the daemon listening on this port (exportBoq, importBoq, migrateBoq, verifyBoq)");
 
             // parse commandline arguments
             final String command;
@@ -47,9 +57,18 @@ public class ImqsAssetTools {
             command = arg.getOptionValue("c");
             configFile = arg.getOptionValue("f");
             logConfigFile = arg.getOptionValue("l");
+            final boolean resume = arg.hasOption("r");
             
             PropertyConfigurator.configure(logConfigFile);
 
+            //hand the job to the daemon
+            if (arg.hasOption("d")) {
+                if (!submitToDaemon(Integer.parseInt(arg.getOptionValue("d")), null, command, configFile, resume)) {
+                    System.exit(1);
+                }
+                return;
+            }
+
             //execute command handler
             logger.info("Command line arguments: {}", Arrays.toString(args));
             switch (command) {
@@ -57,7 +76,25 @@ public class ImqsAssetTools {
                     exportBoq(configFile);
                     break;
                 case "importBoq":
-                    importBoQ(configFile);
+                    importBoQ(configFile, resume);
+                    break;
+                case "migrateBoq":
+                    migrateBoq(configFile, resume);
+                    break;
+                case "verifyBoq":
+                    verifyBoq(configFile);
+                    break;
+                case "runManifest":
+                    runManifest(configFile);
+                    break;
+                case "daemon":
+                    runDaemon(configFile);
+                    break;
+                case "daemonStatus":
+                    submitToDaemon(JobDaemon.readPort(configFile), JobDaemon.readTokenFile(configFile), "status", null, false);
+                    break;
+                case "daemonShutdown":
+                    submitToDaemon(JobDaemon.readPort(configFile), JobDaemon.readTokenFile(configFile), "shutdown", null, false);
                     break;
             }
 
@@ -78,12 +115,60 @@ public class ImqsAssetTools {
 
     /**
      * @param configFilename = Configuration file for the BOQ import
+     * @param resume = Skip the batches committed by a previous run of the import
      * @throws Exception
      */
-    private static void importBoQ(String configFilename) throws Exception {
-        final BoqImporter importer = new BoqImporter(configFilename);
+    private static void importBoQ(String configFilename, boolean resume) throws Exception {
+        final BoqImporter importer = new BoqImporter(configFilename, resume);
         importer.execute();
     }
-}
 
+    /**
+     * @param configFilename = Configuration file for the BOQ migration (database settings of the export, template service settings of the import)
+     * @param resume = Skip the batches committed by a previous run of the migration
+     * @throws Exception
+     */
+    private static void migrateBoq(String configFilename, boolean resume) throws Exception {
+        final BoqMigrator migrator = new BoqMigrator(configFilename, resume);
+        migrator.execute();
+    }
+
+    /**
+     * @param configFilename = Configuration file for the BOQ verification (template service settings and the import file or database of the records)
+     * @throws Exception
+     */
+    private static void verifyBoq(String configFilename) throws Exception {
+        final BoqVerifier verifier = new BoqVerifier(configFilename);
+        verifier.execute();
+    }
+
+    /**
+     * @param manifestFilename = Manifest listing the jobs to run concurrently (resume is set per job in the manifest)
+     * @throws Exception
+     */
+    private static void runManifest(String manifestFilename) throws Exception {
+        final ManifestRunner runner = new ManifestRunner(manifestFilename);
+        runner.execute();
+    }
 
+    /**
+     * @param configFilename = Configuration file of the daemon (port, spool directory, concurrent jobs, log directory and token file)
+     * @throws Exception
+     */
+    private static void runDaemon(String configFilename) throws Exception {
+        final JobDaemon daemon = new JobDaemon(configFilename);
+        daemon.execute();
+    }
+
+    /**
+     * @param port = Port of the daemon on this machine
+     * @param tokenFile = Token file of the daemon, null for the default token file of the port
+     * @param command = Job command, status or shutdown
+     * @param configFilename = Configuration file of the job, null for status and shutdown
+     * @return Returns true if the daemon ran the job and it succeeded
+     * @throws Exception
+     */
+    private static boolean submitToDaemon(int port, File tokenFile, String command, String configFilename, boolean resume) throws Exception {
+        return JobDaemon.submit(port, tokenFile != null ? tokenFile : JobDaemon.defaultTokenFile(port), command, configFilename, resume, System.out);
+    }
+}
@@ -1,28 +1,82 @@
 package za.co.imqs.database;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.Data;
+import lombok.Getter;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.sql.*;
 
 /**
  * Created by gerhardv on 2020-01-28.
  * Database Class to establish a database connection based on the dbParams passed in the constructor.
+ *
+ * Connections are pooled: getDbConnection() borrows a connection from the pool and closing the connection returns it.
+ * Each pooled connection caches its prepared statements and procedure calls. Call close() when done to close the pool.
  */
 
-@Data
-public class Database {
+public class Database implements Closeable {
+    @Getter
     private DatabaseParams params;
-    //public Connection connection;
+    private final BasicDataSource dataSource;
+
+    Logger logger = LoggerFactory.getLogger(Database.class);
 
     public Database(String dbParams, ObjectMapper mapper) throws Exception {
         params = new DatabaseParams();
         // map the connection properties
         params = mapper.readValue(dbParams, DatabaseParams.class);
 
+        dataSource = new BasicDataSource();
+        if (params.getDriverClass() != null) {
+            dataSource.setDriverClassName(params.getDriverClass());
+        }
+        dataSource.setUrl(params.getJdbcUrl());
+        dataSource.setUsername(params.getUsername());
+        dataSource.setPassword(params.getPassword());
+
+        //pool size
+        dataSource.setInitialSize(params.getMinPoolSize());
+        dataSource.setMinIdle(params.getMinPoolSize());
+        dataSource.setMaxIdle(params.getMaxPoolSize());
+        dataSource.setMaxTotal(params.getMaxPoolSize());
+        dataSource.setMaxWaitMillis(params.getMaxWaitMs());
+
+        //validation and idle eviction
+        dataSource.setValidationQuery(params.getValidationQuery());
+        dataSource.setTestOnBorrow(true);
+        //soft: the evictor keeps minIdle connections open however long they are idle, instead of closing and reopening them
+        dataSource.setSoftMinEvictableIdleTimeMillis(params.getIdleTimeoutMs());
+        dataSource.setMinEvictableIdleTimeMillis(-1);
+        dataSource.setTimeBetweenEvictionRunsMillis(Math.max(1000, params.getIdleTimeoutMs() / 2));
+
+        //leak detection
+        if (params.getLeakDetectionMs() > 0) {
+            dataSource.setRemoveAbandonedOnBorrow(true);
+            dataSource.setRemoveAbandonedOnMaintenance(true);
+            dataSource.setRemoveAbandonedTimeout((int) Math.max(1, params.getLeakDetectionMs() / 1000));
+            dataSource.setLogAbandoned(true);
+        }
+
+        //statement cache
+        if (params.getStatementCacheSize() > 0) {
+            dataSource.setPoolPreparedStatements(true);
+            dataSource.setMaxOpenPreparedStatements(params.getStatementCacheSize());
+        }
     }
     
     public Connection getDbConnection() throws Exception {
-        return DriverManager.getConnection(params.getJdbcUrl(), params.getUsername(), params.getPassword());
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public void close() {
+        try {
+            dataSource.close();
+        } catch (SQLException e) {
+            logger.warn("Failed to close the connection pool. " + e.getMessage(), e);
+        }
     }
 }
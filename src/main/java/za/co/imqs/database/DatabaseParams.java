@@ -4,6 +4,7 @@ import lombok.Data;
 
 /**
  * Created by gerhardv on 2020-01-30.
+ * Only driverClass, jdbcUrl, username and password are mandatory; the pool settings have sensible defaults.
  */
 
 @Data
@@ -12,4 +13,12 @@ public class DatabaseParams {
     private String jdbcUrl;
     private String username;
     private String password;
+
+    private int minPoolSize = 1;              //connections kept open while idle
+    private int maxPoolSize = 10;             //max connections open at the same time
+    private long maxWaitMs = 60000;           //max time to wait for a free connection before failing
+    private String validationQuery;           //query to validate a connection before use, e.g. "SELECT 1". If not set the JDBC4 isValid() check is used
+    private long idleTimeoutMs = 600000;      //idle connections above minPoolSize are closed after this time, minPoolSize connections stay open
+    private long leakDetectionMs = 0;         //log (with the stack trace of the borrower) and reclaim connections not returned within this time, 0 = disabled
+    private int statementCacheSize = 50;      //prepared statements and procedure calls cached per connection, 0 = disabled
 }
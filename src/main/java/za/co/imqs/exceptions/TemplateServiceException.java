@@ -0,0 +1,29 @@
+package za.co.imqs.exceptions;
+
+/**
+ * Thrown when the template service responds with an unexpected http status code.
+ */
+public class TemplateServiceException extends RuntimeException {
+    private final int statusCode;
+    private final long retryAfterMs;     //delay requested by the service with a Retry-After header, -1 if not specified
+    private final String responseBody;
+
+    public TemplateServiceException(String message, int statusCode, long retryAfterMs, String responseBody) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMs = retryAfterMs;
+        this.responseBody = responseBody;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    public String getResponseBody() {
+        return responseBody;
+    }
+}
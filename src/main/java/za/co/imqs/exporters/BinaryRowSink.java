@@ -0,0 +1,67 @@
+package za.co.imqs.exporters;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import za.co.imqs.util.BinaryRowFormat;
+import za.co.imqs.util.FileCompression;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the exported rows in the binary format (see BinaryRowFormat), optionally compressed, through a file channel
+ * with a large write buffer.
+ */
+public class BinaryRowSink implements RowSink {
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final BinaryRowFormat.Writer writer;
+    private final boolean writeHeader;
+    private long bytesWritten = -1;
+
+    /**
+     * @param writeHeader false to only write the rows, to append them to another file with the same columns
+     */
+    public BinaryRowSink(String filename, int bufferSize, FileCompression compression, boolean writeHeader) throws IOException {
+        this.writeHeader = writeHeader;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        //the channel stays open when the (compressed) stream is finished, to read the final size
+        final OutputStream fileOut = new BufferedOutputStream(new CloseShieldOutputStream(Channels.newOutputStream(channel)), bufferSize);
+        out = compression == FileCompression.NONE ? fileOut : new BufferedOutputStream(compression.compress(fileOut), 64 * 1024);
+        writer = new BinaryRowFormat.Writer(out);
+    }
+
+    @Override
+    public void start(String[] columnNames) throws IOException {
+        writer.start(columnNames, writeHeader);
+    }
+
+    @Override
+    public void write(Object[] row) throws IOException {
+        writer.write(row);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.close();
+        bytesWritten = channel.position();
+    }
+
+    @Override
+    public long getBytesWritten() throws IOException {
+        return bytesWritten >= 0 ? bytesWritten : channel.isOpen() ? channel.position() : -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
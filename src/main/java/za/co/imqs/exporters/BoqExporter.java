@@ -2,16 +2,19 @@ package za.co.imqs.exporters;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import za.co.imqs.database.Database;
 import za.co.imqs.exceptions.DuplicateRecordException;
+import za.co.imqs.jobs.SharedConnections;
+import za.co.imqs.metrics.RunMetrics;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by gerhardv on 2020-01-28.
@@ -24,42 +27,188 @@ import java.sql.*;
  *       "driverClass": "com.microsoft.sqlserver.jdbc.SQLServerDriver",
  *       "jdbcUrl": "jdbc:sqlserver://localhost:1433;databaseName=IMQS_Asset_BuffaloCity_20180510",
  *       "username": "sa",
- *       "password": "password"
+ *       "password": "password",
+ *       "maxPoolSize": 10,
+ *       "validationQuery": "SELECT 1"
  *     },
- *     "exportFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv"
+ *     "exportFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv",
+ *     "fetchSize": 5000,
+ *     "writeBufferKB": 1024,
+ *     "format": "csv",
+ *     "compression": "lz4",
+ *     "progressIntervalSeconds": 10,
+ *     "countRows": true,
+ *     "metricsFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.metrics.json",
+ *     "exportQuery": "{call PolicyVARExportForBOQ}",
+ *     "duplicatesQuery": "{call AssetPolicyVARDuplicates}",
+ *     "duplicateCheck": {
+ *       "mode": "inline",
+ *       "keyColumns": ["boqPath"],
+ *       "onDuplicate": "quarantine"
+ *     },
+ *     "partitioning": {
+ *       "keyQuery": "SELECT DISTINCT FinancialYear FROM AssetPolicyVAR ORDER BY FinancialYear",
+ *       "exportQuery": "{call PolicyVARExportForBOQ(?)}",
+ *       "threads": 4,
+ *       "mergeShards": true
+ *     },
+ *     "incremental": {
+ *       "stateFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.state",
+ *       "deltaFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.delta.csv",
+ *       "keyColumn": "boqPath",
+ *       "watermarkColumn": "lastModified",
+ *       "deltaQuery": "{call PolicyVARExportForBOQChangedSince(?)}"
+ *     }
  *  }
+ *
+ *  The export is streamed from the database to the file (see StreamingExportEngine). fetchSize, writeBufferKB,
+ *  progressIntervalSeconds, countRows (count the rows first for the progress ETA), exportQuery and duplicatesQuery are optional.
+ *  If partitioning is configured the records are exported concurrently per partition (see PartitionedExporter).
+ *  With duplicateCheck mode inline the duplicates are found while the records are exported instead of with duplicatesQuery
+ *  before the export, saving a scan of AssetPolicyVAR (see DuplicateKeyDetector).
+ *  If incremental is configured only the changes since the previous export are written to a delta file (see IncrementalExporter).
+ *  The export file is CSV or binary (format), optionally compressed with gzip or lz4 (compression); both follow from the
+ *  extension of exportFilename if not configured (see ExportFileFormat).
+ *  Per-stage timers and counters (see RunMetrics) are published over JMX during the export and written to metricsFile
+ *  ([exportFilename].metrics.json by default) when it is done.
  */
 
 public class BoqExporter {
     private final Database db;
+    private final boolean sharedDb;           /* the connection pool is shared with other jobs and not closed by the export */
     private final ObjectMapper mapper;
     private final String targetFilename;      /* name of the exported file including the path */
+    private final ExportFileFormat fileFormat;   /* csv or binary, compression and write buffer size of the export files */
+    private final boolean countRows;          /* count the rows before the export to report the progress ETA */
+    private final StreamingExportEngine exportEngine;
+    private final String exportQuery;         /* query or procedure call returning the records to export */
+    private final String duplicatesQuery;     /* query or procedure call returning the duplicate records, if any */
+    private final DuplicateKeyDetector duplicateDetector;    /* null if the duplicates are queried before the export */
+    private final PartitionedExporter partitionedExporter;   /* null if the export is not partitioned */
+    private final IncrementalExporter incrementalExporter;   /* null if the export is not incremental */
+    private final RunMetrics metrics;         /* per-stage timers and counters of this export */
+    private final String metricsFilename;     /* json summary of the metrics written when the export is done */
 
     Logger logger = LoggerFactory.getLogger(BoqExporter.class);
 
     public BoqExporter(String configFilename) throws Exception {
-        mapper = new ObjectMapper();
+        this(new ObjectMapper().readTree(new File(configFilename)), null);
+    }
 
-        final JsonNode config = mapper.readTree(new File(configFilename));
+    /**
+     * @param config      Export config, see above
+     * @param connections Connection pools shared with other jobs (see ManifestRunner and JobDaemon), null to use a pool of its own
+     */
+    public BoqExporter(JsonNode config, SharedConnections connections) throws Exception {
+        mapper = connections != null ? connections.getMapper() : new ObjectMapper();
         targetFilename = config.get("exportFilename").asText();
+        fileFormat = ExportFileFormat.of(config, targetFilename);
+        countRows = config.path("countRows").asBoolean(true);
+        exportQuery = config.path("exportQuery").asText("{call PolicyVARExportForBOQ}");
+        duplicatesQuery = config.path("duplicatesQuery").asText("{call AssetPolicyVARDuplicates}");
+        metricsFilename = config.path("metricsFile").asText(targetFilename + ".metrics.json");
+        metrics = new RunMetrics("exportBoq " + targetFilename);
+        duplicateDetector = DuplicateKeyDetector.of(config.path("duplicateCheck"), targetFilename, metrics);
+        exportEngine = new StreamingExportEngine(config.path("fetchSize").asInt(5000), config.path("progressIntervalSeconds").asLong(10), metrics, duplicateDetector);
 
         //setup the database connection
         final JsonNode dbParams = config.get("dbParams");
-        db = new Database(dbParams.toString(), mapper);
+        sharedDb = connections != null;
+        try {
+            db = sharedDb ? connections.getDatabase(dbParams) : new Database(dbParams.toString(), mapper);
+        } catch (Exception e) {
+            metrics.close();
+            throw e;
+        }
+
+        final JsonNode partitioning = config.get("partitioning");
+        if (partitioning != null) {
+            final List<String> values = new ArrayList<>();
+            partitioning.path("values").forEach(value -> values.add(value.asText()));
+            partitionedExporter = new PartitionedExporter(db, exportEngine,
+                                                          partitioning.path("keyQuery").asText(null),
+                                                          values,
+                                                          partitioning.get("exportQuery").asText(),
+                                                          partitioning.path("threads").asInt(Runtime.getRuntime().availableProcessors()),
+                                                          partitioning.path("mergeShards").asBoolean(true),
+                                                          fileFormat);
+            if (partitioning.path("threads").asInt(Runtime.getRuntime().availableProcessors()) + 1 > db.getParams().getMaxPoolSize()) {
+                logger.warn("BoqExporter - dbParams.maxPoolSize (" + db.getParams().getMaxPoolSize() + ") is less than the partition threads + 1, partitions will wait for connections.");
+            }
+        } else {
+            partitionedExporter = null;
+        }
+
+        final JsonNode incremental = config.get("incremental");
+        if (incremental != null) {
+            incrementalExporter = new IncrementalExporter(exportEngine,
+                                                          incremental.get("stateFile").asText(),
+                                                          incremental.path("deltaFilename").asText(targetFilename + ".delta.csv"),
+                                                          incremental.path("keyColumn").asText("boqPath"),
+                                                          incremental.path("watermarkColumn").asText(null),
+                                                          incremental.path("deltaQuery").asText(null),
+                                                          fileFormat);
+            if (partitionedExporter != null) {
+                logger.warn("BoqExporter - partitioning is ignored for an incremental export.");
+            }
+        } else {
+            incrementalExporter = null;
+        }
     }
 
-    public void execute() throws SQLException {
+    /**
+     * @return Returns true if the export completed, false if it failed (the error is logged)
+     */
+    public boolean execute() throws SQLException {
+        boolean completed = false;
         try {
             try (Connection conn = db.getDbConnection()) {
-                //if no duplicate records exists continue with the export
-                if (noDuplicateRecords(conn)) {
+                if (duplicateDetector != null) {
+                    //the duplicates are found during the export
+                    duplicateDetector.start();
+                    try {
+                        exportToCSV(conn);
+                    } catch (DuplicateRecordException e) {
+                        //onDuplicate fail: leave no export file without the duplicates behind
+                        final String exportFilename = incrementalExporter != null ? incrementalExporter.getDeltaFilename() : targetFilename;
+                        if (Files.deleteIfExists(Paths.get(exportFilename))) {
+                            logger.info("BoqExporter - Deleted '" + exportFilename + "' because of the duplicate records.");
+                        }
+                        throw e;
+                    } finally {
+                        duplicateDetector.finish();
+                    }
+                    completed = true;
+                } else if (noDuplicateRecords(conn)) {
+                    //if no duplicate records exists continue with the export
                     exportToCSV(conn);
+                    completed = true;
                 } else {
                     throw new DuplicateRecordException("Unable to export BOQ from AssetPolicyVAR because of duplicate records.");
                 }
             }
         } catch (Exception e) {
             logger.error("Exception in BoqExporter.Execute. " + e.getMessage(), e);
+        } finally {
+            if (!sharedDb) {
+                db.close();
+            }
+            writeMetrics();
+        }
+        return completed;
+    }
+
+    public String getMetricsFilename() {
+        return metricsFilename;
+    }
+
+    private void writeMetrics() {
+        try {
+            metrics.writeSummary(new File(metricsFilename), mapper);
+        } catch (Exception e) {
+            logger.error("Failed to write the run metrics to " + metricsFilename + ". " + e.getMessage(), e);
+        } finally {
+            metrics.close();
         }
     }
 
@@ -70,24 +219,16 @@ public class BoqExporter {
     private int getRecordCount(Connection connection) throws SQLException {
         try (final Statement statement = connection.createStatement()) {
             final String queryString = "SELECT COUNT(*) as NoOfRecords FROM AssetpolicyVAR";
-            final ResultSet rs = statement.executeQuery(queryString);
-
-            return rs.getInt("NoOfRecords");
+            final long startNanos = System.nanoTime();
+            try (final ResultSet rs = statement.executeQuery(queryString)) {
+                rs.next();
+                return rs.getInt("NoOfRecords");
+            } finally {
+                metrics.recordTimeSince("db.count", startNanos);
+            }
         }
     }
 
-    /**
-     * Calls a stored procedure to retrieve the records to export based on the export options.
-     *
-     * @return: Return a ResultSet that is passed to the CVSWriter.
-     */
-    private ResultSet getExportResultSet(Connection connection) throws SQLException {
-        final CallableStatement cs = connection.prepareCall("{call PolicyVARExportForBOQ}");
-        cs.execute();
-        // return result set
-        return cs.getResultSet();
-    }
-    
     /**
      * Check if there are no duplicate records in the policy
      *
@@ -95,33 +236,36 @@ public class BoqExporter {
      * @throws SQLException
      */
     private boolean noDuplicateRecords(Connection connection) throws SQLException {
-        try (final CallableStatement cs = connection.prepareCall("{call AssetPolicyVARDuplicates}")) {
+        final long startNanos = System.nanoTime();
+        try (final CallableStatement cs = connection.prepareCall(duplicatesQuery)) {
             cs.execute();
             ResultSet rs = cs.getResultSet();
             return !rs.next();
-        }
-    }
-
-    private void exportToCSV(Connection connection) throws SQLException, IOException {
-        logger.info("BoqExporter - Retrieving BOQ records...");
-
-        try (final ResultSet rs = getExportResultSet(connection)) {
-            // write CSV file
-            logger.info("BoqExporter - Exporting to CSV...");
-            writeResultSetToCSV(rs);
-            logger.info("BoqExporter - Export complete. Filename = '" + targetFilename + "'");
+        } finally {
+            metrics.recordTimeSince("db.duplicateCheck", startNanos);
         }
     }
 
     /**
-     * @param resultSet Result set to be written to file.
-     * @throws SQLException
-     * @throws IOException
+     * Calls a stored procedure to retrieve the records to export and streams them to the CSV file.
      */
-    private void writeResultSetToCSV(final ResultSet resultSet) throws SQLException, IOException {
-        try (final CSVPrinter printer = CSVFormat.EXCEL.withHeader(resultSet).print(new FileWriter(targetFilename))) {
-            printer.printRecords(resultSet);
-            printer.flush();
+    private void exportToCSV(Connection connection) throws Exception {
+        if (incrementalExporter != null) {
+            incrementalExporter.export(connection, exportQuery);
+            return;
+        }
+        if (partitionedExporter != null) {
+            final long rowCount = partitionedExporter.export(connection, targetFilename);
+            logger.info("BoqExporter - Partitioned export complete. " + rowCount + " records.");
+            return;
+        }
+
+        final long expectedRows = countRows ? getRecordCount(connection) : -1;
+        logger.info("BoqExporter - Exporting BOQ records to " + fileFormat + "..." + (expectedRows >= 0 ? " (" + expectedRows + " policy records)" : ""));
+
+        try (final RowSink sink = fileFormat.open(targetFilename)) {
+            final long rowCount = exportEngine.export(connection, exportQuery, expectedRows, sink);
+            logger.info("BoqExporter - Export complete. " + rowCount + " records. Filename = '" + targetFilename + "'");
         }
     }
 }
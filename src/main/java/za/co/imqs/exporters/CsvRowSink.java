@@ -0,0 +1,75 @@
+package za.co.imqs.exporters;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import za.co.imqs.util.FileCompression;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the exported rows as an (Excel) CSV file in UTF-8, optionally compressed, through a file channel with a large
+ * write buffer.
+ */
+public class CsvRowSink implements RowSink {
+    private final FileChannel channel;
+    private final Writer writer;
+    private final boolean writeHeader;
+    private CSVPrinter printer;
+    private long bytesWritten = -1;
+
+    public CsvRowSink(String filename, int bufferSize) throws IOException {
+        this(filename, bufferSize, FileCompression.NONE, true);
+    }
+
+    /**
+     * @param writeHeader false to only write the rows, to append them to another file with the same columns
+     */
+    public CsvRowSink(String filename, int bufferSize, FileCompression compression, boolean writeHeader) throws IOException {
+        this.writeHeader = writeHeader;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        //the channel stays open when the (compressed) stream is finished, to read the final size
+        final OutputStream out = new BufferedOutputStream(new CloseShieldOutputStream(Channels.newOutputStream(channel)), bufferSize);
+        writer = new BufferedWriter(new OutputStreamWriter(compression.compress(out), StandardCharsets.UTF_8), bufferSize);
+    }
+
+    @Override
+    public void start(String[] columnNames) throws IOException {
+        printer = (writeHeader ? CSVFormat.EXCEL.withHeader(columnNames) : CSVFormat.EXCEL).print(writer);
+    }
+
+    @Override
+    public void write(Object[] row) throws IOException {
+        printer.printRecord(row);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        //finish the (compressed) stream so the size is final
+        printer.close();
+        bytesWritten = channel.position();
+    }
+
+    @Override
+    public long getBytesWritten() throws IOException {
+        return bytesWritten >= 0 ? bytesWritten : channel.isOpen() ? channel.position() : -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (printer != null) {
+                printer.close();
+            } else {
+                writer.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
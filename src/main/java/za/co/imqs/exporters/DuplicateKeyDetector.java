@@ -0,0 +1,233 @@
+package za.co.imqs.exporters;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.exceptions.DuplicateRecordException;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.util.ContentHash;
+import za.co.imqs.util.OffHeapLongSet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds duplicate keys while the records are exported, instead of querying the duplicates (duplicatesQuery) with a
+ * separate scan of AssetPolicyVAR before the export.
+ *
+ * The hash of the key columns of every exported row is added to an off-heap set (see OffHeapLongSet, 8 bytes per slot).
+ * A row whose key is already in the set is left out of the export and written to the report file, a CSV file with the
+ * columns of the export; the first row with the key stays in the export. With onDuplicate "fail" the export fails when
+ * it is complete (before an incremental export saves its state) and BoqExporter deletes the export file, as the
+ * duplicatesQuery check writes none; with "quarantine" it succeeds without the duplicate rows.
+ * Keys are compared by their 64 bit hash, so two different keys could (very rarely) be reported as duplicates.
+ *
+ *  "duplicateCheck": {
+ *     "mode": "inline",
+ *     "keyColumns": ["boqPath"],
+ *     "onDuplicate": "fail",
+ *     "reportFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.duplicates.csv",
+ *     "expectedKeys": 100000
+ *  }
+ *
+ * The detector is shared by the partitions of a partitioned export and is thread safe.
+ */
+public class DuplicateKeyDetector {
+    private static final int MAX_LOGGED_KEYS = 10;
+
+    private final List<String> keyColumns;
+    private final boolean quarantine;           /* false to fail the export on duplicates */
+    private final String reportFilename;
+    private final RunMetrics metrics;
+    private final OffHeapLongSet keys;
+    private final Set<String> duplicateKeys = new LinkedHashSet<>();    /* the first MAX_LOGGED_KEYS + 1, for the log */
+    private CsvRowSink report;                  /* opened at the first duplicate */
+    private long duplicateRows;
+
+    Logger logger = LoggerFactory.getLogger(DuplicateKeyDetector.class);
+
+    public DuplicateKeyDetector(List<String> keyColumns, boolean quarantine, String reportFilename, long expectedKeys, RunMetrics metrics) {
+        this.keyColumns = keyColumns;
+        this.quarantine = quarantine;
+        this.reportFilename = reportFilename;
+        this.metrics = metrics;
+        this.keys = new OffHeapLongSet(expectedKeys);
+    }
+
+    /**
+     * @param config         The duplicateCheck config, see above
+     * @param exportFilename Export file, the report file is [exportFilename].duplicates.csv by default
+     * @return Returns null if the duplicates are not checked inline (mode "query", the default)
+     */
+    public static DuplicateKeyDetector of(JsonNode config, String exportFilename, RunMetrics metrics) {
+        final String mode = config.path("mode").asText("query");
+        if (mode.equals("query")) {
+            return null;
+        }
+        if (!mode.equals("inline")) {
+            throw new IllegalArgumentException("Unknown duplicateCheck mode '" + mode + "', use query or inline.");
+        }
+        final String onDuplicate = config.path("onDuplicate").asText("fail");
+        if (!onDuplicate.equals("fail") && !onDuplicate.equals("quarantine")) {
+            throw new IllegalArgumentException("Unknown duplicateCheck onDuplicate '" + onDuplicate + "', use fail or quarantine.");
+        }
+        final List<String> keyColumns = new ArrayList<>();
+        config.path("keyColumns").forEach(column -> keyColumns.add(column.asText()));
+        if (keyColumns.isEmpty()) {
+            keyColumns.add("boqPath");
+        }
+        return new DuplicateKeyDetector(keyColumns,
+                                        onDuplicate.equals("quarantine"),
+                                        config.path("reportFile").asText(exportFilename + ".duplicates.csv"),
+                                        config.path("expectedKeys").asLong(100000),
+                                        metrics);
+    }
+
+    /**
+     * Remove the report of a previous export
+     */
+    public void start() throws IOException {
+        Files.deleteIfExists(Paths.get(reportFilename));
+    }
+
+    /**
+     * @return Returns a sink that passes the rows with a new key on to the sink and reports the others
+     */
+    FilterRowSink filter(RowSink sink) {
+        return new FilterRowSink(sink);
+    }
+
+    /**
+     * Close the report and log the duplicates found.
+     */
+    public synchronized void finish() throws IOException {
+        if (report != null) {
+            report.finish();
+            report.close();
+            report = null;
+        }
+        if (duplicateRows > 0) {
+            logger.warn("BoqExporter - " + duplicateRows + " duplicate records " +
+                        (quarantine ? "quarantined" : "found") + ", see '" + reportFilename + "'. " + keyColumns + " = " + loggedKeys());
+        }
+        logger.info("BoqExporter - Checked " + keys.size() + " keys for duplicates (" + keys.memoryUsed() / (1024 * 1024) + " MB off-heap).");
+    }
+
+    public synchronized long getDuplicateRows() {
+        return duplicateRows;
+    }
+
+    private synchronized boolean add(long keyHash, FilterRowSink sink, Object[] row) throws IOException {
+        if (keys.add(keyHash)) {
+            return true;
+        }
+        if (report == null) {
+            report = new CsvRowSink(reportFilename, 64 * 1024);
+            report.start(sink.columnNames);
+        }
+        report.write(row);
+        duplicateRows++;
+        sink.duplicateRows++;
+        if (duplicateKeys.size() <= MAX_LOGGED_KEYS) {
+            duplicateKeys.add(sink.key(row));
+        }
+        metrics.increment("rows.duplicate");
+        return false;
+    }
+
+    private void checkNoDuplicates() {
+        if (!quarantine && getDuplicateRows() > 0) {
+            throw new DuplicateRecordException("Unable to export BOQ from AssetPolicyVAR because of duplicate records. " +
+                                               keyColumns + " = " + loggedKeys() + ", see '" + reportFilename + "'.");
+        }
+    }
+
+    private synchronized String loggedKeys() {
+        final List<String> logged = new ArrayList<>();
+        for (String key : duplicateKeys) {
+            if (logged.size() == MAX_LOGGED_KEYS) {
+                logged.add("...");
+                break;
+            }
+            logged.add(key);
+        }
+        return logged.toString();
+    }
+
+    class FilterRowSink implements RowSink {
+        private final RowSink delegate;
+        private String[] columnNames;
+        private int[] keyIndexes;
+        private long duplicateRows;             /* rows of this sink left out of the export */
+
+        FilterRowSink(RowSink delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void start(String[] columnNames) throws IOException {
+            this.columnNames = columnNames;
+            keyIndexes = new int[keyColumns.size()];
+            for (int k = 0; k < keyIndexes.length; k++) {
+                keyIndexes[k] = -1;
+                for (int i = 0; i < columnNames.length; i++) {
+                    if (columnNames[i].equalsIgnoreCase(keyColumns.get(k))) {
+                        keyIndexes[k] = i;
+                    }
+                }
+                if (keyIndexes[k] < 0) {
+                    throw new IllegalArgumentException("Key column " + keyColumns.get(k) + " is not in the export. Columns: " + Arrays.toString(columnNames));
+                }
+            }
+            delegate.start(columnNames);
+        }
+
+        @Override
+        public void write(Object[] row) throws IOException {
+            final ContentHash hash = new ContentHash();
+            for (int keyIndex : keyIndexes) {
+                hash.update(row[keyIndex] == null ? null : row[keyIndex].toString());
+            }
+            if (add(hash.value(), this, row)) {
+                delegate.write(row);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            delegate.finish();
+            checkNoDuplicates();
+        }
+
+        @Override
+        public long getBytesWritten() throws IOException {
+            return delegate.getBytesWritten();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        long getDuplicateRows() {
+            return duplicateRows;
+        }
+
+        private String key(Object[] row) {
+            if (keyIndexes.length == 1) {
+                return String.valueOf(row[keyIndexes[0]]);
+            }
+            final List<String> key = new ArrayList<>(keyIndexes.length);
+            for (int keyIndex : keyIndexes) {
+                key.add(String.valueOf(row[keyIndex]));
+            }
+            return key.toString();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package za.co.imqs.exporters;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import za.co.imqs.util.BinaryRowFormat;
+import za.co.imqs.util.FileCompression;
+
+import java.io.IOException;
+
+/**
+ * Format of the export files: CSV or binary (see BinaryRowFormat), and the compression (see FileCompression).
+ *
+ *  "format": "csv" or "binary", by default binary if the export filename contains .boqbin
+ *  "compression": "none", "gzip" or "lz4", by default from the extension of the export filename (.gz or .lz4)
+ *  "writeBufferKB": size of the write buffer
+ *
+ *  e.g. boq_export.csv.lz4 is a CSV file compressed with lz4 and boq_export.boqbin.gz is a binary file compressed with gzip.
+ *  The format of every file of an export (shards, delta file) is that of the export file.
+ */
+public class ExportFileFormat {
+    private final boolean binary;
+    private final FileCompression compression;
+    private final int bufferSize;
+
+    public ExportFileFormat(boolean binary, FileCompression compression, int bufferSize) {
+        this.binary = binary;
+        this.compression = compression;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param config   Export config with the optional format, compression and writeBufferKB
+     * @param filename Export file
+     */
+    public static ExportFileFormat of(JsonNode config, String filename) {
+        final String format = config.path("format").asText(filename.toLowerCase().contains(BinaryRowFormat.EXTENSION) ? "binary" : "csv");
+        if (!format.equals("csv") && !format.equals("binary")) {
+            throw new IllegalArgumentException("Unknown export format '" + format + "', use csv or binary.");
+        }
+        return new ExportFileFormat(format.equals("binary"),
+                                    FileCompression.of(config.path("compression").asText(null), filename),
+                                    config.path("writeBufferKB").asInt(1024) * 1024);
+    }
+
+    public RowSink open(String filename) throws IOException {
+        return open(filename, true);
+    }
+
+    /**
+     * @param writeHeader false to only write the rows, to append them to another file with the same columns
+     */
+    public RowSink open(String filename, boolean writeHeader) throws IOException {
+        return binary ? new BinaryRowSink(filename, bufferSize, compression, writeHeader)
+                      : new CsvRowSink(filename, bufferSize, compression, writeHeader);
+    }
+
+    @Override
+    public String toString() {
+        return (binary ? "binary" : "csv") + (compression != FileCompression.NONE ? " " + compression.name().toLowerCase() : "");
+    }
+}
@@ -0,0 +1,291 @@
+package za.co.imqs.exporters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.state.HashStateStore;
+import za.co.imqs.util.ContentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Exports only the records that changed since the previous export into a delta file.
+ *
+ * A state file keeps the content hash of every exported record by key column (boqPath). Each exported record is compared
+ * with the state and written to the delta file with an extra "changeType" column: I (inserted), U (updated) or D (deleted,
+ * only the key column is filled in). Unchanged records are skipped. The state is saved only after the delta file is complete.
+ *
+ * If a deltaQuery and a watermarkColumn are configured, the highest watermark value (e.g. a last modified timestamp or a
+ * rowversion) of the export is kept in the state and passed as the only parameter of the deltaQuery on the next run, so
+ * only the changed rows are read from the database. Deletes cannot be detected from a watermark query; run a full delta
+ * (without deltaQuery) to pick them up. The first run, without a watermark, always uses the full export query.
+ *
+ *  "incremental": {
+ *     "stateFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.state",
+ *     "deltaFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.delta.csv",
+ *     "keyColumn": "boqPath",
+ *     "watermarkColumn": "lastModified",
+ *     "deltaQuery": "{call PolicyVARExportForBOQChangedSince(?)}"
+ *  }
+ */
+public class IncrementalExporter {
+    public static final String CHANGE_TYPE_COLUMN = "changeType";
+    private static final String WATERMARK_ATTRIBUTE = "watermark";
+
+    private final StreamingExportEngine exportEngine;
+    private final HashStateStore state;
+    private final String deltaFilename;
+    private final String keyColumn;
+    private final String watermarkColumn;       /* may be null */
+    private final String deltaQuery;            /* may be null */
+    private final ExportFileFormat fileFormat;  /* format of the delta file */
+
+    Logger logger = LoggerFactory.getLogger(IncrementalExporter.class);
+
+    public IncrementalExporter(StreamingExportEngine exportEngine, String stateFilename, String deltaFilename, String keyColumn,
+                               String watermarkColumn, String deltaQuery, ExportFileFormat fileFormat) {
+        this.exportEngine = exportEngine;
+        this.state = new HashStateStore(new File(stateFilename));
+        this.deltaFilename = deltaFilename;
+        this.keyColumn = keyColumn;
+        this.watermarkColumn = watermarkColumn;
+        this.deltaQuery = deltaQuery;
+        this.fileFormat = fileFormat;
+    }
+
+    public String getDeltaFilename() {
+        return deltaFilename;
+    }
+
+    /**
+     * @param exportQuery The full export query, used if there is no watermark yet or no deltaQuery is configured.
+     */
+    public void export(Connection connection, String exportQuery) throws Exception {
+        state.load();
+        final String watermark = state.getAttribute(WATERMARK_ATTRIBUTE);
+        final boolean useDeltaQuery = deltaQuery != null && watermarkColumn != null && watermark != null;
+
+        final DeltaRowSink sink = new DeltaRowSink(fileFormat.open(deltaFilename), !useDeltaQuery);
+        try {
+            if (useDeltaQuery) {
+                logger.info("BoqExporter - Incremental export of the records changed since " + watermark);
+                exportEngine.export(connection, deltaQuery, new Object[]{watermarkParameter(watermark)}, -1, sink);
+            } else {
+                logger.info("BoqExporter - Incremental export, comparing all records with the previous export state (" + state.size() + " records)");
+                exportEngine.export(connection, exportQuery, -1, sink);
+            }
+        } finally {
+            sink.close();
+        }
+
+        if (sink.maxWatermark != null) {
+            state.setAttribute(WATERMARK_ATTRIBUTE, watermarkText(sink.maxWatermark));
+        }
+        state.save();
+        logger.info("BoqExporter - Incremental export complete. Inserted = " + sink.inserted + ", updated = " + sink.updated +
+                    ", deleted = " + sink.deleted + ", unchanged = " + sink.unchanged + ". Filename = '" + deltaFilename + "'");
+    }
+
+    /**
+     * Compares the exported rows with the state and writes the changes to the delta file. The state is updated as the
+     * rows are compared.
+     */
+    private class DeltaRowSink implements RowSink {
+        private final RowSink delegate;
+        private final boolean detectDeletes;        /* only when all the records are exported */
+        private final Set<String> seenKeys = new HashSet<>();
+        private int keyIndex = -1;
+        private int watermarkIndex = -1;
+        private Object[] deltaRow;
+        private Object maxWatermark;
+        long inserted, updated, deleted, unchanged;
+
+        DeltaRowSink(RowSink delegate, boolean detectDeletes) {
+            this.delegate = delegate;
+            this.detectDeletes = detectDeletes;
+        }
+
+        @Override
+        public void start(String[] columnNames) throws IOException {
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equalsIgnoreCase(keyColumn)) {
+                    keyIndex = i;
+                }
+                if (columnNames[i].equalsIgnoreCase(watermarkColumn)) {
+                    watermarkIndex = i;
+                }
+            }
+            if (keyIndex < 0) {
+                throw new IllegalArgumentException("Key column " + keyColumn + " is not in the export. Columns: " + Arrays.toString(columnNames));
+            }
+            if (watermarkColumn != null && watermarkIndex < 0) {
+                throw new IllegalArgumentException("Watermark column " + watermarkColumn + " is not in the export. Columns: " + Arrays.toString(columnNames));
+            }
+
+            final String[] deltaColumns = Arrays.copyOf(columnNames, columnNames.length + 1);
+            deltaColumns[columnNames.length] = CHANGE_TYPE_COLUMN;
+            deltaRow = new Object[deltaColumns.length];
+            delegate.start(deltaColumns);
+        }
+
+        @Override
+        public void write(Object[] row) throws IOException {
+            final String key = String.valueOf(row[keyIndex]);
+            final ContentHash hash = new ContentHash();
+            for (Object value : row) {
+                hash.update(text(value));
+            }
+            final long rowHash = hash.value();
+
+            if (detectDeletes) {
+                seenKeys.add(key);
+            }
+            if (watermarkIndex >= 0 && row[watermarkIndex] != null) {
+                final Object value = row[watermarkIndex];
+                if (maxWatermark == null || compareWatermarks(value, maxWatermark) > 0) {
+                    maxWatermark = value;
+                }
+            }
+
+            final Long previousHash = state.get(key);
+            if (previousHash != null && previousHash == rowHash) {
+                unchanged++;
+                return;
+            }
+            state.put(key, rowHash);
+            System.arraycopy(row, 0, deltaRow, 0, row.length);
+            if (previousHash == null) {
+                deltaRow[row.length] = "I";
+                inserted++;
+            } else {
+                deltaRow[row.length] = "U";
+                updated++;
+            }
+            delegate.write(deltaRow);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (detectDeletes) {
+                //every key in the state that was not exported this time was deleted
+                for (String key : state.keys().toArray(new String[0])) {
+                    if (!seenKeys.contains(key)) {
+                        Arrays.fill(deltaRow, null);
+                        deltaRow[keyIndex] = key;
+                        deltaRow[deltaRow.length - 1] = "D";
+                        delegate.write(deltaRow);
+                        state.remove(key);
+                        deleted++;
+                    }
+                }
+            }
+            delegate.finish();
+        }
+
+        @Override
+        public long getBytesWritten() throws IOException {
+            return delegate.getBytesWritten();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    private static String text(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof byte[] ? toHex((byte[]) value) : value.toString();
+    }
+
+    /**
+     * Watermarks are timestamps, numbers, strings or binary rowversions (compared as unsigned bytes). Other types are
+     * compared as text, as they are stored as text (see watermarkText()).
+     */
+    private static int compareWatermarks(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[]) {
+            final byte[] x = (byte[]) a;
+            final byte[] y = (byte[]) b;
+            if (x.length != y.length) {
+                return Integer.compare(x.length, y.length);
+            }
+            for (int i = 0; i < x.length; i++) {
+                final int cmp = Integer.compare(x[i] & 0xff, y[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+        if (a instanceof java.util.Date && b instanceof java.util.Date) {
+            return ((java.util.Date) a).compareTo((java.util.Date) b);
+        }
+        if (a instanceof java.math.BigDecimal && b instanceof java.math.BigDecimal) {
+            return ((java.math.BigDecimal) a).compareTo((java.math.BigDecimal) b);
+        }
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return new java.math.BigDecimal(a.toString()).compareTo(new java.math.BigDecimal(b.toString()));
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * The watermark is stored with its type so it can be bound as the same type on the next run.
+     */
+    private static String watermarkText(Object watermark) {
+        if (watermark instanceof Timestamp) {
+            return "timestamp:" + watermark;
+        } else if (watermark instanceof byte[]) {
+            return "binary:" + toHex((byte[]) watermark);
+        } else if (watermark instanceof Number) {
+            return "number:" + watermark;
+        }
+        return "string:" + watermark;
+    }
+
+    private static Object watermarkParameter(String text) {
+        final int colon = text.indexOf(':');
+        final String type = text.substring(0, colon);
+        final String value = text.substring(colon + 1);
+        switch (type) {
+            case "timestamp":
+                return Timestamp.valueOf(value);
+            case "binary":
+                return fromHex(value);
+            case "number":
+                return new java.math.BigDecimal(value);
+            default:
+                return value;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
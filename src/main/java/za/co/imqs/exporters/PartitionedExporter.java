@@ -0,0 +1,184 @@
+package za.co.imqs.exporters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.database.Database;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports the BOQ records in partitions (e.g. one per financial year), each on its own connection and thread, into a
+ * separate shard file per partition. The shards are optionally merged into the export file afterwards, with the header
+ * written once: only the first shard gets a header, so the shards are simply concatenated, compressed or not.
+ * If a partition fails, the shards of all the partitions are removed. Without any partition the merged export file
+ * only gets the header, from the exportQuery run with a NULL partition value (which must return no rows).
+ *
+ * The partition values are either listed in the config or returned by keyQuery. The exportQuery takes the partition
+ * value as its only parameter, e.g. "{call PolicyVARExportForBOQ(?)}", so the export procedure (or a query) must
+ * accept a partition key.
+ *
+ *  "partitioning": {
+ *     "keyQuery": "SELECT DISTINCT FinancialYear FROM AssetPolicyVAR ORDER BY FinancialYear",
+ *     "values": ["2018", "2019"],
+ *     "exportQuery": "{call PolicyVARExportForBOQ(?)}",
+ *     "threads": 4,
+ *     "mergeShards": true
+ *  }
+ */
+public class PartitionedExporter {
+    private final Database db;
+    private final StreamingExportEngine exportEngine;
+    private final String keyQuery;              /* query returning the partition values, used if no values are listed */
+    private final List<String> values;          /* partition values, may be empty */
+    private final String exportQuery;           /* query or procedure call for one partition */
+    private final int threads;                  /* number of partitions exported concurrently */
+    private final boolean mergeShards;          /* merge the shard files into the export file */
+    private final ExportFileFormat fileFormat;  /* format of the shard files */
+
+    Logger logger = LoggerFactory.getLogger(PartitionedExporter.class);
+
+    public PartitionedExporter(Database db, StreamingExportEngine exportEngine, String keyQuery, List<String> values, String exportQuery,
+                               int threads, boolean mergeShards, ExportFileFormat fileFormat) {
+        this.db = db;
+        this.exportEngine = exportEngine;
+        this.keyQuery = keyQuery;
+        this.values = values;
+        this.exportQuery = exportQuery;
+        this.threads = threads;
+        this.mergeShards = mergeShards;
+        this.fileFormat = fileFormat;
+    }
+
+    /**
+     * @param connection     Connection used to query the partition values
+     * @param targetFilename The export file; shard files are named [name].[partition].[extension] next to it (with a
+     *                       sequence number added if two partition values give the same file name)
+     * @return Returns the number of rows exported
+     */
+    public long export(Connection connection, String targetFilename) throws Exception {
+        final List<String> partitions = values.isEmpty() ? queryPartitions(connection) : values;
+        logger.info("BoqExporter - Exporting " + partitions.size() + " partitions on " + threads + " threads: " + partitions);
+        if (partitions.isEmpty()) {
+            logger.warn("BoqExporter - No partitions to export.");
+            if (mergeShards) {
+                exportPartition(null, Paths.get(targetFilename), true);
+            }
+            return 0;
+        }
+
+        final List<Path> shards = shardPaths(targetFilename, partitions);
+
+        final AtomicInteger threadNo = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, "boq-export-" + threadNo.incrementAndGet()));
+        long rowCount = 0;
+        boolean exported = false;
+        try {
+            final List<Future<Long>> results = new ArrayList<>(partitions.size());
+            for (int i = 0; i < partitions.size(); i++) {
+                final String partition = partitions.get(i);
+                final Path shard = shards.get(i);
+                //the shards after the first are appended to it when they are merged
+                final boolean writeHeader = !mergeShards || i == 0;
+                results.add(executor.submit(() -> exportPartition(partition, shard, writeHeader)));
+            }
+            for (Future<Long> result : results) {
+                rowCount += result.get();
+            }
+            exported = true;
+        } catch (ExecutionException e) {
+            //the first failed partition fails the export, stop the others
+            executor.shutdownNow();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            executor.shutdownNow();
+            if (!exported) {
+                //wait for the other partitions to stop writing before their shards are removed
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+                for (Path shard : shards) {
+                    Files.deleteIfExists(shard);
+                }
+            }
+        }
+
+        if (mergeShards) {
+            mergeShards(shards, Paths.get(targetFilename));
+            logger.info("BoqExporter - Merged " + shards.size() + " shards into '" + targetFilename + "'");
+        }
+        return rowCount;
+    }
+
+    private long exportPartition(String partition, Path shard, boolean writeHeader) throws Exception {
+        try (Connection conn = db.getDbConnection();
+             RowSink sink = fileFormat.open(shard.toString(), writeHeader)) {
+            final long rowCount = exportEngine.export(conn, exportQuery, new Object[]{partition}, -1, sink);
+            logger.info("BoqExporter - Partition " + partition + " complete. " + rowCount + " records. Filename = '" + shard + "'");
+            return rowCount;
+        }
+    }
+
+    private List<String> queryPartitions(Connection connection) throws Exception {
+        final List<String> partitions = new ArrayList<>();
+        try (final Statement statement = connection.createStatement();
+             final ResultSet rs = statement.executeQuery(keyQuery)) {
+            while (rs.next()) {
+                partitions.add(rs.getString(1));
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Concatenate the shards into the target file. Only the first shard has a header.
+     */
+    private void mergeShards(List<Path> shards, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path shard : shards) {
+                try (FileChannel in = FileChannel.open(shard, StandardOpenOption.READ)) {
+                    final long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                Files.delete(shard);
+            }
+        }
+    }
+
+    /**
+     * The shard of every partition, [name].[partition].[extension]. The partition value is reduced to a safe file name,
+     * so distinct values can give the same name (e.g. "2019/20" and "2019 20"); a sequence number is then added, so no
+     * two partitions ever write the same shard. Names are compared ignoring case, as on Windows.
+     */
+    private static List<Path> shardPaths(String targetFilename, List<String> partitions) {
+        final Path target = Paths.get(targetFilename).toAbsolutePath();
+        final String name = target.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        final Set<String> shardNames = new HashSet<>();
+        final List<Path> shards = new ArrayList<>(partitions.size());
+        for (String partition : partitions) {
+            final String safePartition = String.valueOf(partition).replaceAll("[^A-Za-z0-9_-]", "_");
+            String shardPartition = safePartition;
+            for (int sequence = 2; !shardNames.add(shardPartition.toLowerCase()); sequence++) {
+                shardPartition = safePartition + "-" + sequence;
+            }
+            final String shardName = dot > 0 ? name.substring(0, dot) + "." + shardPartition + name.substring(dot) : name + "." + shardPartition;
+            shards.add(target.resolveSibling(shardName));
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,33 @@
+package za.co.imqs.exporters;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the rows streamed by the StreamingExportEngine.
+ */
+public interface RowSink extends Closeable {
+    /**
+     * Called once before the first row.
+     *
+     * @param columnNames Column labels of the export result set
+     */
+    void start(String[] columnNames) throws IOException;
+
+    /**
+     * @param row Column values as returned by ResultSet.getObject(). The array is reused for the next row.
+     */
+    void write(Object[] row) throws IOException;
+
+    /**
+     * Called once after the last row, before close().
+     */
+    void finish() throws IOException;
+
+    /**
+     * @return Returns the number of bytes written so far, -1 if unknown. Only exact after finish().
+     */
+    default long getBytesWritten() throws IOException {
+        return -1;
+    }
+}
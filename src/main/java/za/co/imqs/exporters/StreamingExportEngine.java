@@ -0,0 +1,158 @@
+package za.co.imqs.exporters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the result set of an export query (or stored procedure call) to a RowSink.
+ *
+ * The query runs with a forward-only, read-only cursor and the configured fetch size, so rows are fetched from the
+ * database in blocks of fetchSize while they are written, and the result set is never held in memory. Progress (rows,
+ * rows/sec and, if the expected row count is known, the ETA) is logged every progressInterval.
+ * The query, fetch (per row) and write (per row) times and the exported rows are recorded in the run metrics
+ * (db.query, db.fetch, file.write, rows.exported, bytes.written).
+ * With a DuplicateKeyDetector, rows with a key that was already exported are reported instead of written.
+ */
+public class StreamingExportEngine {
+    private final int fetchSize;
+    private final long progressIntervalNanos;
+    private final RunMetrics metrics;
+    private final DuplicateKeyDetector duplicateDetector;     /* null if duplicates are not checked inline */
+
+    Logger logger = LoggerFactory.getLogger(StreamingExportEngine.class);
+
+    public StreamingExportEngine(int fetchSize, long progressIntervalSeconds, RunMetrics metrics) {
+        this(fetchSize, progressIntervalSeconds, metrics, null);
+    }
+
+    public StreamingExportEngine(int fetchSize, long progressIntervalSeconds, RunMetrics metrics, DuplicateKeyDetector duplicateDetector) {
+        this.fetchSize = fetchSize;
+        this.progressIntervalNanos = TimeUnit.SECONDS.toNanos(progressIntervalSeconds);
+        this.metrics = metrics;
+        this.duplicateDetector = duplicateDetector;
+    }
+
+    /**
+     * @param sql          Query or stored procedure call, e.g. "{call PolicyVARExportForBOQ}"
+     * @param expectedRows Expected number of rows for the progress ETA, -1 if unknown
+     * @return Returns the number of rows exported
+     */
+    public long export(Connection connection, String sql, long expectedRows, RowSink sink) throws SQLException, IOException {
+        return export(connection, sql, new Object[0], expectedRows, sink);
+    }
+
+    /**
+     * @param sql          Query or stored procedure call with parameters, e.g. "{call PolicyVARExportForBOQ(?)}"
+     * @param parameters   Values of the query parameters
+     * @param expectedRows Expected number of rows for the progress ETA, -1 if unknown
+     * @return Returns the number of rows exported
+     */
+    public long export(Connection connection, String sql, Object[] parameters, long expectedRows, RowSink sink) throws SQLException, IOException {
+        try (final CallableStatement cs = connection.prepareCall(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            cs.setFetchSize(fetchSize);
+            for (int i = 0; i < parameters.length; i++) {
+                cs.setObject(i + 1, parameters[i]);
+            }
+            final long startNanos = System.nanoTime();
+            try (final ResultSet rs = executeForResultSet(cs)) {
+                metrics.recordTimeSince("db.query", startNanos);
+                return export(rs, expectedRows, sink);
+            }
+        }
+    }
+
+    /**
+     * Stream an open result set to the sink.
+     *
+     * @return Returns the number of rows exported, without the duplicate rows left out by the DuplicateKeyDetector
+     */
+    public long export(ResultSet rs, long expectedRows, RowSink sink) throws SQLException, IOException {
+        final DuplicateKeyDetector.FilterRowSink duplicateFilter = duplicateDetector != null ? duplicateDetector.filter(sink) : null;
+        if (duplicateFilter != null) {
+            sink = duplicateFilter;
+        }
+        rs.setFetchSize(fetchSize);
+        final ResultSetMetaData metaData = rs.getMetaData();
+        final int columnCount = metaData.getColumnCount();
+        final String[] columnNames = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columnNames[i] = metaData.getColumnLabel(i + 1);
+        }
+
+        sink.start(columnNames);
+        final Object[] row = new Object[columnCount];
+        final long startNanos = System.nanoTime();
+        long nextProgressNanos = startNanos + progressIntervalNanos;
+        long rowCount = 0;
+        while (true) {
+            //the fetch and write of every 1024th row are timed
+            final boolean sampled = RunMetrics.isSampled(rowCount);
+            final long fetchStartNanos = sampled ? System.nanoTime() : 0;
+            if (!rs.next()) {
+                break;
+            }
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = rs.getObject(i + 1);
+            }
+            if (sampled) {
+                final long writeStartNanos = System.nanoTime();
+                metrics.recordTime("db.fetch", writeStartNanos - fetchStartNanos);
+                sink.write(row);
+                metrics.recordTimeSince("file.write", writeStartNanos);
+            } else {
+                sink.write(row);
+            }
+            rowCount++;
+
+            //only look at the clock every 1024 rows
+            if ((rowCount & 0x3ff) == 0 && System.nanoTime() - nextProgressNanos >= 0) {
+                logProgress(rowCount, expectedRows, startNanos);
+                nextProgressNanos = System.nanoTime() + progressIntervalNanos;
+            }
+        }
+        final long finishStartNanos = System.nanoTime();
+        sink.finish();
+        metrics.recordTimeSince("file.finish", finishStartNanos);
+        if (duplicateFilter != null) {
+            rowCount -= duplicateFilter.getDuplicateRows();
+        }
+        metrics.add("rows.exported", rowCount);
+        if (sink.getBytesWritten() > 0) {
+            metrics.add("bytes.written", sink.getBytesWritten());
+        }
+        logProgress(rowCount, expectedRows, startNanos);
+        return rowCount;
+    }
+
+    /**
+     * Execute the statement and move to the first result set, skipping update counts returned before it by the procedure.
+     */
+    public static ResultSet executeForResultSet(CallableStatement cs) throws SQLException {
+        boolean isResultSet = cs.execute();
+        while (!isResultSet && cs.getUpdateCount() != -1) {
+            isResultSet = cs.getMoreResults();
+        }
+        if (!isResultSet) {
+            throw new SQLException("Export query did not return a result set.");
+        }
+        return cs.getResultSet();
+    }
+
+    private void logProgress(long rowCount, long expectedRows, long startNanos) {
+        final double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        final double rowsPerSecond = rowCount / seconds;
+        final StringBuilder msg = new StringBuilder(String.format("Exported %d rows in %.1f s (%.0f rows/sec)", rowCount, seconds, rowsPerSecond));
+        if (expectedRows > 0) {
+            msg.append(String.format(" - %.1f%% of %d", 100.0 * rowCount / expectedRows, expectedRows));
+            if (rowCount < expectedRows && rowsPerSecond > 0) {
+                msg.append(String.format(", ETA %.0f s", (expectedRows - rowCount) / rowsPerSecond));
+            }
+        }
+        logger.info(msg.toString());
+    }
+}
@@ -0,0 +1,88 @@
+package za.co.imqs.importers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the template batch size to the capacity of the template service (AIMD - additive increase, multiplicative decrease).
+ *
+ * Every batch that completes within the target latency grows the batch size by increaseStep. A batch slower than the
+ * target, or a timeout, 429 or 5xx response, multiplies the batch size by decreaseFactor. Batches that were already in
+ * flight when the size was decreased do not decrease it again, so one overload spike shrinks the size once and not once
+ * per concurrent submitter.
+ */
+public class AdaptiveBatchSizer {
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatencyMs;
+    private final int increaseStep;
+    private final double decreaseFactor;
+    private double batchSize;
+    private long lastDecreaseNanos;
+
+    Logger logger = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    public AdaptiveBatchSizer(int initialBatchSize, int minBatchSize, int maxBatchSize, long targetLatencyMs, int increaseStep, double decreaseFactor) {
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize || decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("Invalid adaptive batching settings. minBatchSize = " + minBatchSize + ", maxBatchSize = " + maxBatchSize + ", decreaseFactor = " + decreaseFactor);
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetLatencyMs = targetLatencyMs;
+        this.increaseStep = increaseStep;
+        this.decreaseFactor = decreaseFactor;
+        this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, initialBatchSize));
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    /**
+     * @return Returns a sizer that always uses the given batch size.
+     */
+    public static AdaptiveBatchSizer fixed(int batchSize) {
+        return new AdaptiveBatchSizer(batchSize, batchSize, batchSize, Long.MAX_VALUE, 0, 0.5);
+    }
+
+    public synchronized int getBatchSize() {
+        return (int) batchSize;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the batch was sent
+     * @param latencyMs  Time the template service took to accept the batch
+     */
+    public synchronized void onSuccess(long startNanos, long latencyMs) {
+        if (latencyMs > targetLatencyMs) {
+            decrease(startNanos, "latency " + latencyMs + " ms above target");
+        } else if (batchSize < maxBatchSize) {
+            batchSize = Math.min(maxBatchSize, batchSize + increaseStep);
+            logger.debug("Batch size increased to " + getBatchSize());
+        }
+    }
+
+    /**
+     * Call when a batch failed because of a timeout, 429 or 5xx response.
+     *
+     * @param startNanos System.nanoTime() when the batch was sent
+     */
+    public synchronized void onOverload(long startNanos, Exception e) {
+        decrease(startNanos, e.getMessage());
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (minBatchSize == maxBatchSize) {
+            return String.valueOf(getBatchSize());
+        }
+        return getBatchSize() + " (adaptive " + minBatchSize + " - " + maxBatchSize + ", target latency " + targetLatencyMs + " ms)";
+    }
+
+    private void decrease(long startNanos, String reason) {
+        //Batches sent before the last decrease already contributed to it
+        if (startNanos - lastDecreaseNanos < 0 || batchSize <= minBatchSize) {
+            return;
+        }
+        batchSize = Math.max(minBatchSize, batchSize * decreaseFactor);
+        lastDecreaseNanos = System.nanoTime();
+        logger.info("Batch size decreased to " + getBatchSize() + " (" + reason + ")");
+    }
+}
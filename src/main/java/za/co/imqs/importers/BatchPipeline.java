@@ -0,0 +1,127 @@
+package za.co.imqs.importers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Submits template batches on a pool of worker threads so that parsing and mapping of the import file overlaps with the
+ * http round trips to the template service.
+ *
+ * At most (submitThreads + queueCapacity) batches are pending at any time; submit() blocks once that limit is reached,
+ * which bounds the memory used by the import. After the first failed batch all pending batches are skipped and the
+ * failure is rethrown from submit() and finish(). close() interrupts the workers and waits for the http calls in flight,
+ * so nothing the batches commit (journal, state, dead letters) is written after the pipeline is closed.
+ */
+public class BatchPipeline implements AutoCloseable {
+    /**
+     * Sends one batch to the template service
+     */
+    @FunctionalInterface
+    public interface BatchSubmitter {
+        void submit(TemplateBatch batch) throws Exception;
+    }
+
+    private final BatchSubmitter submitter;
+    private final ExecutorService executor;
+    private final Semaphore pendingBatches;
+    private final long closeTimeoutMs;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final AtomicLong recordsProcessed = new AtomicLong();
+
+    Logger logger = LoggerFactory.getLogger(BatchPipeline.class);
+
+    /**
+     * @param closeTimeoutMs Max time close() waits for the batches in flight, at least the timeout of one http call
+     */
+    public BatchPipeline(BatchSubmitter submitter, int submitThreads, int queueCapacity, long closeTimeoutMs) {
+        if (submitThreads < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Invalid pipeline settings. submitThreads = " + submitThreads + ", queueCapacity = " + queueCapacity);
+        }
+        this.submitter = submitter;
+        this.pendingBatches = new Semaphore(submitThreads + queueCapacity);
+        this.closeTimeoutMs = closeTimeoutMs;
+
+        final AtomicInteger threadNo = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(submitThreads, r -> {
+            final Thread thread = new Thread(r, "boq-submitter-" + threadNo.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a batch for submission. Blocks while the maximum number of batches are pending.
+     * The pipeline takes ownership of the batch, the caller must not modify it afterwards.
+     */
+    public void submit(TemplateBatch batch) throws Exception {
+        checkFailure();
+        pendingBatches.acquire();
+        try {
+            executor.execute(() -> submitBatch(batch));
+        } catch (RejectedExecutionException e) {
+            pendingBatches.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for all the pending batches to complete.
+     *
+     * @return Returns the number of records submitted successfully.
+     */
+    public long finish() throws Exception {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.info("Waiting for pending batches to complete - records processed = " + recordsProcessed.get());
+        }
+        checkFailure();
+        return recordsProcessed.get();
+    }
+
+    public long getRecordsProcessed() {
+        return recordsProcessed.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        //an http call is not interrupted, it ends with its response or its timeout
+        try {
+            if (!executor.awaitTermination(closeTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Batches still in flight " + closeTimeoutMs + " ms after the pipeline was closed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submitBatch(TemplateBatch batch) {
+        try {
+            //Skip the remaining batches once a batch failed, the import is aborted anyway
+            if (failure.get() == null) {
+                submitter.submit(batch);
+                //Batches may complete out of order so count the records instead of reporting the last record number
+                final long processed = recordsProcessed.addAndGet(batch.size());
+                logger.info("Batch complete - records processed = " + processed + " (records " + batch.getFirstRecordNumber() + " - " + batch.getLastRecordNumber() + ")");
+            }
+        } catch (Exception e) {
+            if (!failure.compareAndSet(null, e)) {
+                failure.get().addSuppressed(e);
+            }
+        } finally {
+            pendingBatches.release();
+        }
+    }
+
+    private void checkFailure() throws Exception {
+        final Exception e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+}
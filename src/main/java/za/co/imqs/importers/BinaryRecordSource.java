@@ -0,0 +1,77 @@
+package za.co.imqs.importers;
+
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.util.BinaryRowFormat;
+import za.co.imqs.util.ContentHash;
+import za.co.imqs.util.FileCompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and maps the records of a binary import file (optionally compressed, see BinaryRowFormat and FileCompression)
+ * one by one on the calling thread, in file order.
+ *
+ * The values are read back as the text the CSV export writes for them and trimmed like the CSV import, so the record
+ * numbers, content hashes and templates are the same as those of the CSV file of the same export.
+ */
+class BinaryRecordSource implements MappedRecordSource {
+    private final InputStream in;
+    private final BinaryRowFormat.Reader reader;
+    private final BoqTemplateMapper templateMapper;
+    private final RunMetrics metrics;
+    private long recordNumber = 0;
+
+    BinaryRecordSource(String filename, Map<String, String> fieldList, RunMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        in = FileCompression.open(Paths.get(filename), 64 * 1024);
+        try {
+            reader = new BinaryRowFormat.Reader(in);
+            final String[] columnNames = reader.getColumnNames();
+            final Map<String, Integer> headerMap = new HashMap<>();
+            for (int i = 0; i < columnNames.length; i++) {
+                headerMap.put(columnNames[i], i);
+            }
+            //Resolve the columns of the fields once from the header
+            templateMapper = new BoqTemplateMapper(fieldList, headerMap);
+        } catch (Exception e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public MappedRecord next() throws IOException {
+        final boolean sampled = RunMetrics.isSampled(recordNumber);
+        long startNanos = sampled ? System.nanoTime() : 0;
+        final String[] values = new String[reader.getColumnNames().length];
+        if (!reader.read(values)) {
+            return null;
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+        }
+        recordNumber++;
+        if (sampled) {
+            metrics.recordTimeSince("binary.parse", startNanos);
+            startNanos = System.nanoTime();
+        }
+        final long recordHash = new ContentHash().update(Arrays.asList(values)).value();
+        final BoqClassificationTemplateDTO item = templateMapper.map(values);
+        final MappedRecord record = new MappedRecord(recordNumber, recordHash, item, TemplateContentHash.of(item));
+        if (sampled) {
+            metrics.recordTimeSince("mapping", startNanos);
+        }
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
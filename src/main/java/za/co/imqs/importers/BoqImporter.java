@@ -2,33 +2,45 @@ package za.co.imqs.importers;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.jayway.restassured.http.ContentType;
-import com.jayway.restassured.response.Response;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import za.co.imqs.dto.BoqClassificationTemplateDTO;
-import za.co.imqs.dto.ClassificationItemDTO;
-import za.co.imqs.dto.TemplateDTO;
-import za.co.imqs.dto.TemplateFieldDTO;
 import za.co.imqs.exceptions.MetadataMissingException;
+import za.co.imqs.exceptions.TemplateServiceException;
+import za.co.imqs.jobs.SharedConnections;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.services.AuthSession;
+import za.co.imqs.services.RetryPolicy;
+import za.co.imqs.services.TemplateServiceParams;
 import za.co.imqs.services.TemplateServiceRestClient;
+import za.co.imqs.state.HashStateStore;
+import za.co.imqs.util.BinaryRowFormat;
+import za.co.imqs.util.FileCompression;
 import java.io.File;
-import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-
-import static com.jayway.restassured.RestAssured.given;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by gerhardv on 2020-02-04.
  * Imports a V6 PolicyVAR csv file into the V8 templates DB via the input form service.
+ * Committed batches are recorded in a checkpoint journal next to the import file (see CheckpointJournal) so a failed
+ * import can be resumed from the first uncommitted batch.
+ * If a templateStateFile is configured, templates that are unchanged since they were last committed are skipped.
+ * The import file is CSV or binary (see BinaryRowFormat), optionally compressed with gzip or lz4; the format and the
+ * compression are detected from the content of the file.
+ * If deadLetter is configured, a batch rejected by the template service is split until the rejected records are found;
+ * those are written to the dead-letter file and the other records are imported.
+ * If parallelParsing is configured an uncompressed CSV file is parsed and mapped in chunks on several threads (see ParallelCsvReader).
+ * With ordered set to false the chunks are imported as they are parsed; the checkpoint journal is then not written.
+ * If sortByBoqPath is configured the import file is first sorted by boqPath with bounded memory (see ImportFileSorter),
+ * so consecutive batches hit one classification subtree; the sorted file is then imported and the record numbers of the
+ * checkpoint journal and the dead-letter file are those of the sorted file (which is kept while there are dead letters).
+ * Per-stage timers and counters (see RunMetrics) are published over JMX during the import and written to metricsFile
+ * ([importFilename].metrics.json by default) when it is done.
  *
  *  boq-import-config.json example:
  *   {
@@ -36,10 +48,48 @@ import static com.jayway.restassured.RestAssured.given;
  *   		"baseURI": "http://192.168.1.65:8668/template/v1_0/",
  *   	    "authSvcURI": "http://192.168.1.65:/auth2/login",
  *   		"username": "imqs",
- *   		"password": "password"
+ *   		"password": "password",
+ *   		"maxConnections": 20,
+ *   		"keepAliveMs": 30000,
+ *   		"connectTimeoutMs": 10000,
+ *   		"socketTimeoutMs": 120000,
+ *   		"idleEvictionMs": 30000,
+ *   		"compressRequests": false,
+ *   		"sessionCacheFile": "D:\\Dump\\IMQS\\Imports\\session.json"
  *          },
  *   	"batchSize": 5,
+ *   	"adaptiveBatching": {
+ *   		"minBatchSize": 5,
+ *   		"maxBatchSize": 500,
+ *   		"targetLatencyMs": 2000,
+ *   		"increaseStep": 5,
+ *   		"decreaseFactor": 0.5
+ *   	},
+ *   	"retry": {
+ *   		"maxRetries": 3,
+ *   		"initialBackoffMs": 500,
+ *   		"maxBackoffMs": 30000
+ *   	},
+ *   	"deadLetter": {
+ *   		"file": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.deadletter.csv",
+ *   		"maxRecords": 1000
+ *   	},
+ *   	"submitThreads": 1,
+ *   	"queueCapacity": 2,
+ *   	"parallelParsing": {
+ *   		"threads": 8,
+ *   		"chunkSizeKB": 8192,
+ *   		"ordered": true
+ *   	},
+ *   	"sortByBoqPath": {
+ *   		"memoryMB": 256,
+ *   		"runCompression": "lz4"
+ *   	},
+ *   	"dedupeClassifications": true,
+ *   	"templateStateFile": "D:\\Dump\\IMQS\\Exports\\test\\boq_template.state",
+ *   	"classificationIndexFile": "D:\\Dump\\IMQS\\Exports\\test\\boq_classification_index.json",
  *   	"importFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv",
+ *   	"metricsFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.metrics.json",
  *   	"fieldList": {
  *   		"eul": "NUMERIC",
  *   		"extentUnit": "STRING",
@@ -62,179 +112,419 @@ import static com.jayway.restassured.RestAssured.given;
  */
 
 public class BoqImporter {
-    private static final String BOQ_CLASSIFICATION_CODE = "BOQ";
-    private static final String BOQ_CLASSIFICATION_ROOT_CODE = "BOQ_ROOT";
-    private static final String BOQ_FINYEAR_CODE = "BOQ_FY";
-    private static final String BOQ_COMPONENT_TYPE_CODE = "BOQ_CT";
-    private static final String BOQ_DESCRIPTOR_TYPE_CODE = "BOQ_DT";
-    private static final String BOQ_DESCRIPTOR_CLASS_CODE = "BOQ_DC";
-    private static final String BOQ_DESCRIPTOR_SIZE_CODE = "BOQ_DS";
-
-    private final String filename;
-    private final int batchSize;                        //Max size of the batch before sending to the template service
+    /**
+     * Opens the records to import
+     */
+    @FunctionalInterface
+    interface RecordSourceFactory {
+        MappedRecordSource open(Map<String, String> fieldList, RunMetrics metrics) throws Exception;
+    }
+
+    private final String filename;                      //import file, also the name of the checkpoint journal; null to import without a journal
+    private final int batchSize;                        //Max size of the batch before sending to the template service (initial size if adaptive)
+    private final AdaptiveBatchSizer batchSizer;        //current batch size, fixed unless adaptiveBatching is configured
+    private final RetryPolicy retryPolicy;              //retries transient template service failures
+    private final int submitThreads;                    //Number of batches sent to the template service concurrently
+    private final int queueCapacity;                    //Number of batches that may wait for a submit thread before the parser blocks
+    private final int parseThreads;                     //Number of threads that parse and map the import file, 0 to parse on the import thread
+    private final int parseChunkSize;                   //Size of the chunks of the import file parsed by the parse threads
+    private final boolean orderedParsing;               //Import the records in file order (always true unless parallel parsing is configured)
+    private final ImportFileSorter sorter;              //sorts the import file by boqPath before it is imported, null to import it as it is
     @SuppressWarnings("unchecked")
     private final Map<String, String> fieldList;        //list of fields to import as defined in the config (excluding the descriptor fields)
+    private final ClassificationNodeIndex nodeIndex;    //only send each classification node once, null if disabled
+    private final String nodeIndexFilename;             //optional file to keep the node index between runs
+    private final HashStateStore templateState;         //content hash per template code of the committed templates, null if disabled
+    private final boolean resume;                       //skip the batches committed by a previous run as recorded in the checkpoint journal
+    private CheckpointJournal journal;
+    private final String deadLetterFilename;            //file of the records rejected by the template service, null if a rejected batch fails the import
+    private final long maxDeadLetters;                  //the import fails when more records are rejected
+    private DeadLetterFile deadLetters;
     private final TemplateServiceRestClient templateSvc;
+    private final long requestTimeoutMs;                //max duration of one template service call, the wait for the batches in flight when the import fails
     private final ObjectMapper mapper;
+    private final RunMetrics metrics;                   //per-stage timers and counters of this import
+    private final String metricsFilename;               //json summary of the metrics written when the import is done
 
     Logger logger = LoggerFactory.getLogger(BoqImporter.class);
 
     public BoqImporter(String configFilename) throws Exception {
-        //setup the configuration
-        mapper = new ObjectMapper();
+        this(configFilename, false);
+    }
 
-        final JsonNode config = mapper.readTree(new File(configFilename));
-        filename = config.get("importFilename").asText();
+    public BoqImporter(String configFilename, boolean resume) throws Exception {
+        this(new ObjectMapper().readTree(new File(configFilename)), resume, null);
+    }
+
+    /**
+     * @param config      Import config, see above
+     * @param connections Connection pools shared with other jobs (see ManifestRunner and JobDaemon), null to use a pool of its own
+     */
+    public BoqImporter(JsonNode config, boolean resume, SharedConnections connections) throws Exception {
+        this(config, "importBoq", config.get("importFilename").asText(), resume, connections);
+    }
+
+    /**
+     * @param config      Import config, see above
+     * @param jobName     Command name for the log and the run metrics
+     * @param filename    Name of the checkpoint journal ([filename].checkpoint) and the default metricsFile
+     *                    ([filename].metrics.json); null to import without a checkpoint journal
+     * @param connections Connection pools shared with other jobs, null to use a pool of its own
+     */
+    BoqImporter(JsonNode config, String jobName, String filename, boolean resume, SharedConnections connections) throws Exception {
+        //setup the configuration
+        mapper = connections != null ? connections.getMapper() : new ObjectMapper();
+        this.resume = resume;
+        this.filename = filename;
+        metricsFilename = config.path("metricsFile").asText((filename != null ? filename : jobName) + ".metrics.json");
+        final JsonNode parallelConfig = config.get("parallelParsing");
+        parseThreads = parallelConfig == null ? 0 : parallelConfig.path("threads").asInt(Runtime.getRuntime().availableProcessors());
+        parseChunkSize = parallelConfig == null ? 0 : parallelConfig.path("chunkSizeKB").asInt(8192) * 1024;
+        orderedParsing = parallelConfig == null || parallelConfig.path("ordered").asBoolean(true);
+        if (resume && !orderedParsing) {
+            throw new IllegalArgumentException("Resume needs the records in file order, set parallelParsing.ordered to true.");
+        }
+        if (resume && filename == null) {
+            throw new IllegalArgumentException("Resume needs a checkpoint journal, " + jobName + " is configured without one.");
+        }
+        metrics = new RunMetrics(jobName + (filename != null ? " " + filename : ""));
+        sorter = config.has("sortByBoqPath") && filename != null ? new ImportFileSorter(config.get("sortByBoqPath"), filename, metrics) : null;
         batchSize = config.get("batchSize").asInt(50);
+        final JsonNode adaptiveConfig = config.get("adaptiveBatching");
+        batchSizer = adaptiveConfig == null ? AdaptiveBatchSizer.fixed(batchSize)
+                : new AdaptiveBatchSizer(batchSize,
+                                         adaptiveConfig.path("minBatchSize").asInt(1),
+                                         adaptiveConfig.path("maxBatchSize").asInt(500),
+                                         adaptiveConfig.path("targetLatencyMs").asLong(2000),
+                                         adaptiveConfig.path("increaseStep").asInt(5),
+                                         adaptiveConfig.path("decreaseFactor").asDouble(0.5));
+        final JsonNode retryConfig = config.path("retry");
+        retryPolicy = new RetryPolicy(retryConfig.path("maxRetries").asInt(3),
+                                      retryConfig.path("initialBackoffMs").asLong(500),
+                                      retryConfig.path("maxBackoffMs").asLong(30000),
+                                      metrics);
+        submitThreads = config.path("submitThreads").asInt(1);
+        queueCapacity = config.path("queueCapacity").asInt(2 * submitThreads);
         //get the fields to import from the config
         final JsonNode fList = config.get("fieldList");
         fieldList = mapper.readValue(fList.toString(), Map.class);
+        nodeIndex = config.path("dedupeClassifications").asBoolean(false) ? new ClassificationNodeIndex() : null;
+        nodeIndexFilename = config.hasNonNull("classificationIndexFile") ? config.get("classificationIndexFile").asText() : null;
+        templateState = config.hasNonNull("templateStateFile") ? new HashStateStore(new File(config.get("templateStateFile").asText())) : null;
+        final JsonNode deadLetterConfig = config.get("deadLetter");
+        deadLetterFilename = deadLetterConfig == null ? null : deadLetterConfig.path("file").asText((filename != null ? filename : jobName) + ".deadletter.csv");
+        maxDeadLetters = deadLetterConfig == null ? 0 : deadLetterConfig.path("maxRecords").asLong(1000);
 
         //get the template and auth service details
         final JsonNode svcConfig = config.get("imqs-template-service");
-        templateSvc = new TemplateServiceRestClient(svcConfig.get("baseURI").asText(),
-                                                    svcConfig.get("authSvcURI").asText(),
-                                                    svcConfig.get("username").asText(),
-                                                    svcConfig.get("password").asText(),
-                                                    mapper);
+        try {
+            final TemplateServiceParams svcParams = mapper.treeToValue(svcConfig, TemplateServiceParams.class);
+            templateSvc = new TemplateServiceRestClient(svcParams, connections != null ? connections.getTemplateServiceConnections(svcParams) : null, mapper, metrics);
+            requestTimeoutMs = (long) svcParams.getConnectTimeoutMs() + svcParams.getSocketTimeoutMs();
+        } catch (Exception e) {
+            metrics.close();
+            throw e;
+        }
     }
 
-    public void execute() {
+    /**
+     * @return Returns true if the import completed, false if it failed (the error is logged)
+     */
+    public boolean execute() {
+        return execute(sorter != null ? this::openSortedFile : this::openImportFile);
+    }
+
+    /**
+     * Import the records of the given source.
+     *
+     * @return Returns true if the import completed, false if it failed (the error is logged)
+     */
+    boolean execute(RecordSourceFactory recordSource) {
+        boolean completed = false;
         try {
-            logger.info("Importing BOQ Policy Template. (" + filename + ")   Batch size: " + batchSize);
+            logger.info("Importing BOQ Policy Template. (" + metrics.getName() + ")   Batch size: " + batchSizer + "   Submit threads: " + submitThreads);
 
             //Read the BOQ Classification metadata and create the BOQ classification
             String boqClassificationMetadata = IOUtils.toString(getClass().getClassLoader().getResourceAsStream("classificationtype-boq.json"), StandardCharsets.UTF_8);
             if (boqClassificationMetadata == null) {
                 throw new MetadataMissingException("BOQ Classification metatdata resource failed to load.");
             }
-            templateSvc.createBoqClassification(boqClassificationMetadata);
-
-            //Open the import file
-            try (final Reader reader = Files.newBufferedReader(Paths.get(filename));
-                 final CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT
-                         .withFirstRecordAsHeader()
-                         .withIgnoreHeaderCase()
-                         .withTrim())) {
-                long lineCount = 0;
-                //Create the BOQ template array based on the batch size as specified in the config.
-                final List<BoqClassificationTemplateDTO> boqBatch = new ArrayList<>(batchSize);
-
-                //Parse the import file
-                for (CSVRecord csvRecord : csvParser) {
-                    //Create a new ClassificationTemplate item to populate
-                    final BoqClassificationTemplateDTO boqItem = new BoqClassificationTemplateDTO();
-
-                    //Create Classification nodes for the BOQ Root and BOQ FinYear
-                    final String finYear = csvRecord.get("financialYear");
-                    boqItem.getClassifications().add(newClassificationItem(BOQ_CLASSIFICATION_ROOT_CODE, BOQ_CLASSIFICATION_CODE, "NULL", "Bill of Quantities Root"));
-                    boqItem.getClassifications().add(newClassificationItem(BOQ_FINYEAR_CODE, finYear, BOQ_FINYEAR_CODE, finYear));
-
-                    //Create the Classification Descriptor nodes
-                    //We Build up the template name by concatenating the descriptions of the descriptor fields
-                    StringBuilder templateName = new StringBuilder();
-                    boqItem.getClassifications().add(newDescriptorClassificationItem(csvRecord, "componentType", BOQ_COMPONENT_TYPE_CODE, 2, templateName));
-                    boqItem.getClassifications().add(newDescriptorClassificationItem(csvRecord, "descriptorType", BOQ_DESCRIPTOR_TYPE_CODE, 3, templateName));
-                    boqItem.getClassifications().add(newDescriptorClassificationItem(csvRecord, "descriptorClass", BOQ_DESCRIPTOR_CLASS_CODE, 4, templateName));
-                    boqItem.getClassifications().add(newDescriptorClassificationItem(csvRecord, "descriptorSize", BOQ_DESCRIPTOR_SIZE_CODE, 5, templateName));
-
-                    //Create the Template fields
-                    populateTemplate(csvRecord, boqItem, templateName.toString());
-
-                    //Add the new item to the BOQ list
-                    boqBatch.add(boqItem);
-
-                    lineCount = csvRecord.getRecordNumber();
-
-                    //Check if we reach the batchSize. If true then send to the Template service
-                    if (boqBatch.size() == batchSize) {
-                        submitBatch(boqBatch, lineCount);
+            retryPolicy.execute("Create BOQ classification", () -> templateSvc.createBoqClassification(boqClassificationMetadata));
+            if (nodeIndex != null && nodeIndexFilename != null) {
+                nodeIndex.load(new File(nodeIndexFilename), mapper);
+            }
+            if (templateState != null) {
+                templateState.load();
+            }
+
+            //Open the records and the checkpoint journal. The journal needs the records in file order.
+            journal = orderedParsing && filename != null ? new CheckpointJournal(filename, resume) : null;
+            deadLetters = deadLetterFilename != null ? new DeadLetterFile(deadLetterFilename, resume, mapper) : null;
+            try (final MappedRecordSource records = recordSource.open(fieldList, metrics);
+                 final BatchPipeline pipeline = new BatchPipeline(this::submitBatch, submitThreads, queueCapacity, requestTimeoutMs)) {
+                //Create the BOQ template batch based on the batch size as specified in the config.
+                TemplateBatch boqBatch = new TemplateBatch(batchSizer.getBatchSize());
+                long recordsSkipped = 0;
+                long recordsUnchanged = 0;
+
+                //Parse the import file. The batches are sent to the Template service by the pipeline while we continue parsing.
+                for (MappedRecord record = records.next(); record != null; record = records.next()) {
+                    metrics.increment("rows.read");
+
+                    //Skip the records committed by a previous run
+                    if (journal != null && journal.skip(record.recordNumber, record.recordHash)) {
+                        recordsSkipped++;
+                        //a batch never spans committed records, so its journal entry does not overlap theirs
+                        if (boqBatch.size() > 0) {
+                            queueBatch(pipeline, boqBatch);
+                            boqBatch = new TemplateBatch(batchSizer.getBatchSize());
+                        }
+                        continue;
+                    }
+
+                    final BoqClassificationTemplateDTO boqItem = record.item;
+                    //Skip the templates that are unchanged since they were last sent to the template service
+                    if (templateState != null && isUnchanged(boqItem, record.templateHash)) {
+                        recordsUnchanged++;
+                        //a journaled batch covers consecutive records only, as its content hash is verified over its whole range on resume
+                        if (journal != null && boqBatch.size() > 0) {
+                            queueBatch(pipeline, boqBatch);
+                            boqBatch = new TemplateBatch(batchSizer.getBatchSize());
+                        }
+                        continue;
+                    }
+                    if (nodeIndex != null) {
+                        nodeIndex.compact(boqItem);
+                    }
+                    boqBatch.add(boqItem, record.recordNumber, record.recordHash, record.templateHash);
+
+                    //Check if we reach the (current) batch size. If true then hand the batch to the pipeline and start a new one
+                    if (boqBatch.size() >= batchSizer.getBatchSize()) {
+                        queueBatch(pipeline, boqBatch);
+                        boqBatch = new TemplateBatch(batchSizer.getBatchSize());
                     }
                 }
                 //Handle the last few records in case it is less than the batch size and we are done reading the file
                 if (boqBatch.size() > 0) {
-                    submitBatch(boqBatch, lineCount);
+                    queueBatch(pipeline, boqBatch);
                 }
+                final long recordsProcessed = pipeline.finish();
+                metrics.add("rows.skipped", recordsSkipped);
+                metrics.add("rows.unchanged", recordsUnchanged);
+                logger.info("All batches complete - records processed = " + recordsProcessed +
+                            (resume ? ", records skipped (already committed) = " + recordsSkipped : "") +
+                            (templateState != null ? ", records skipped (unchanged) = " + recordsUnchanged : "") +
+                            (deadLetters != null ? ", records rejected = " + deadLetters.getRecordCount() : "") +
+                            ", final batch size = " + batchSizer.getBatchSize());
             }
-            logger.info("BOQ Policy Template import complete for file " + filename + "");
+            completed = true;
+            logger.info("BOQ Policy Template import complete (" + metrics.getName() + ")");
         } catch (Exception e) {
             logger.error("BoqImporter completed with errors. " + e.getMessage(), e);
+        } finally {
+            closeJournal(completed);
+            if (completed && sorter != null) {
+                sorter.importCompleted(deadLetters != null && deadLetters.hasRecords());
+            }
+            IOUtils.closeQuietly(deadLetters);
+            saveNodeIndex();
+            saveTemplateState();
+            IOUtils.closeQuietly(templateSvc);
+            writeMetrics();
+        }
+        return completed;
+    }
+
+    public String getMetricsFilename() {
+        return metricsFilename;
+    }
+
+    private MappedRecordSource openImportFile(Map<String, String> fieldList, RunMetrics metrics) throws Exception {
+        return openFile(filename, fieldList, metrics);
+    }
+
+    private MappedRecordSource openSortedFile(Map<String, String> fieldList, RunMetrics metrics) throws Exception {
+        return openFile(sorter.sort(resume), fieldList, metrics);
+    }
+
+    private MappedRecordSource openFile(String filename, Map<String, String> fieldList, RunMetrics metrics) throws Exception {
+        //The format and compression are detected from the content of the file
+        final Path path = Paths.get(filename);
+        if (BinaryRowFormat.isBinary(path)) {
+            return new BinaryRecordSource(filename, fieldList, metrics);
         }
+        if (parseThreads > 0) {
+            if (FileCompression.detect(path) == FileCompression.NONE) {
+                return new ParallelCsvReader(filename, fieldList, parseThreads, parseChunkSize, orderedParsing, metrics);
+            }
+            logger.warn("parallelParsing needs an uncompressed CSV file, " + filename + " is parsed on one thread.");
+        }
+        return new CsvRecordSource(filename, fieldList, metrics);
     }
 
-    private TemplateFieldDTO newTemplateField(CSVRecord csvRecord, String fieldName, String dataType) {
-        final String value = csvRecord.get(fieldName);
+    private void queueBatch(BatchPipeline pipeline, TemplateBatch boqBatch) throws Exception {
+        if (nodeIndex != null) {
+            nodeIndex.closeBatch();
+        }
+        pipeline.submit(boqBatch);
+    }
 
-        //Only add fields that do have values
-        if (value.equals("NULL") || value.isEmpty()) {
-            return null;
-        } else {
-            final TemplateFieldDTO fieldDTO = new TemplateFieldDTO();
-            fieldDTO.setFieldName(fieldName);
-            fieldDTO.setDefaultValue(value);
-            fieldDTO.setDataType(dataType);
-            fieldDTO.setMandatory(false);
-            fieldDTO.setValidation(null);
-            fieldDTO.setDescription(null);
+    /**
+     * Called by the pipeline workers to send a batch to the template service
+     */
+    private void submitBatch(TemplateBatch boqBatch) throws Exception {
+        try {
+            sendBatch(boqBatch);
+        } catch (Exception e) {
+            if (deadLetters == null || !isRejection(e)) {
+                throw e;
+            }
+            logger.warn("Batch (records " + boqBatch.getFirstRecordNumber() + " - " + boqBatch.getLastRecordNumber() + ") rejected by the template service (" +
+                        e.getMessage() + "), splitting it to find the rejected records.");
+            isolateRejectedRecords(boqBatch, e);
+        }
+    }
 
-            return fieldDTO;
+    /**
+     * The template service rejected the batch. Send its halves separately, and split the rejected halves again, until the
+     * rejected records are found. Those are written to the dead-letter file, the others are committed.
+     */
+    private void isolateRejectedRecords(TemplateBatch boqBatch, Exception rejection) throws Exception {
+        if (boqBatch.size() == 1) {
+            deadLetter(boqBatch, rejection);
+            return;
+        }
+        logger.debug("Splitting batch (records " + boqBatch.getFirstRecordNumber() + " - " + boqBatch.getLastRecordNumber() + ")");
+        //A half must not reference a classification node that only the other half carries in full
+        if (nodeIndex != null) {
+            boqBatch.getItems().forEach(nodeIndex::expand);
+        }
+        final int middle = boqBatch.size() / 2;
+        for (TemplateBatch half : Arrays.asList(boqBatch.subBatch(0, middle), boqBatch.subBatch(middle, boqBatch.size()))) {
+            //the pipeline is closed, the import failed
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Import aborted while isolating the rejected records of batch (records " +
+                                               boqBatch.getFirstRecordNumber() + " - " + boqBatch.getLastRecordNumber() + ")");
+            }
+            try {
+                sendBatch(half);
+            } catch (Exception e) {
+                if (!isRejection(e)) {
+                    throw e;
+                }
+                isolateRejectedRecords(half, e);
+            }
         }
     }
 
-    private void populateTemplate(CSVRecord csvRecord, BoqClassificationTemplateDTO boqCT, String templateName) {
-        final TemplateDTO templateDTO = boqCT.getTemplate();
-        //Use the boqPath for the template code as it "should" be unique
-        templateDTO.setCode(csvRecord.get("boqPath"));
-        templateDTO.setName(templateName);
-        templateDTO.setActive(true);
-        templateDTO.setDateAdded(null);
-        templateDTO.setDateDeactivated(null);
-        templateDTO.setAllowDelete(false);
+    private void deadLetter(TemplateBatch boqBatch, Exception rejection) throws Exception {
+        final BoqClassificationTemplateDTO boqItem = boqBatch.getItems().get(0);
+        logger.warn("Record " + boqBatch.getRecordNumber(0) + " (" + boqItem.getTemplate().getCode() + ") rejected by the template service. " + rejection.getMessage());
+        deadLetters.write(boqBatch.getRecordNumber(0), boqItem, rejection);
+        metrics.increment("rows.rejected");
+        //the record is handled: a resumed import does not send it again
+        if (journal != null) {
+            journal.append(boqBatch);
+        }
+        if (deadLetters.getRecordCount() > maxDeadLetters) {
+            throw new IllegalStateException("More than " + maxDeadLetters + " records were rejected by the template service, see " +
+                                            deadLetters.getFilename() + ". Last error: " + rejection.getMessage(), rejection);
+        }
+    }
 
-        //Add all the template fields
-        final List<TemplateFieldDTO> fields = templateDTO.getFields();
-        fieldList.forEach((key, value) -> {
-            final TemplateFieldDTO tfDTO = newTemplateField(csvRecord, key, value);
-            if (tfDTO != null) {
-                fields.add(tfDTO);
+    /**
+     * @return Returns true if the template service refused the content of the batch, as opposed to a failure of the
+     * service, the connection or the session
+     */
+    private static boolean isRejection(Exception e) {
+        if (!(e instanceof TemplateServiceException) || RetryPolicy.isTransient(e)) {
+            return false;
+        }
+        final int statusCode = ((TemplateServiceException) e).getStatusCode();
+        return statusCode >= 400 && statusCode < 500 && !AuthSession.isRejected(statusCode);
+    }
+
+    /**
+     * Send a batch to the template service, retrying transient failures, and record it as committed
+     */
+    private void sendBatch(TemplateBatch boqBatch) throws Exception {
+        retryPolicy.execute("Batch (records " + boqBatch.getFirstRecordNumber() + " - " + boqBatch.getLastRecordNumber() + ")", () -> {
+            final long startNanos = System.nanoTime();
+            try {
+                templateSvc.submitClassificationTemplateBatch(boqBatch.getItems());
+            } catch (Exception e) {
+                if (RetryPolicy.isOverload(e)) {
+                    batchSizer.onOverload(startNanos, e);
+                }
+                throw e;
             }
+            batchSizer.onSuccess(startNanos, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
         });
+        metrics.increment("batches");
+        metrics.add("rows.submitted", boqBatch.size());
+        metrics.record("batch.size", boqBatch.size());
+        if (journal != null) {
+            journal.append(boqBatch);
+        }
+        if (nodeIndex != null) {
+            nodeIndex.commit(boqBatch);
+        }
+        if (templateState != null) {
+            final List<BoqClassificationTemplateDTO> items = boqBatch.getItems();
+            for (int i = 0; i < items.size(); i++) {
+                templateState.put(items.get(i).getTemplate().getCode(), boqBatch.getTemplateHash(i));
+            }
+        }
     }
 
-    private ClassificationItemDTO newClassificationItem(String classificationNodeType, String code, String parentPath, String description) {
-        final ClassificationItemDTO itemDTO = new ClassificationItemDTO();
-        itemDTO.setClassificationType(BOQ_CLASSIFICATION_CODE);
-        itemDTO.setClassificationNodeType(classificationNodeType);
-        itemDTO.setCode(code);
-        itemDTO.setParentPath(parentPath);
-        itemDTO.setDescription(description);
-        itemDTO.setActive(true);
-
-        return itemDTO;
+    private boolean isUnchanged(BoqClassificationTemplateDTO boqItem, long templateHash) {
+        final Long committedHash = templateState.get(boqItem.getTemplate().getCode());
+        return committedHash != null && committedHash == templateHash;
     }
 
-    private ClassificationItemDTO newDescriptorClassificationItem(CSVRecord csvRecord, String fieldName, String nodeTypeCode, int delimiterIndex, StringBuilder templateName) {
-        //The code column is appended with "_ID"
-        String code = csvRecord.get(fieldName + "_ID");
-        String description = csvRecord.get(fieldName);
-        final String path = csvRecord.get("boqPath");
-        //parse out the parent path  from the boqPath based on the index of the delimiter of the descriptor field
-        final String parentPath = path.substring(0, StringUtils.ordinalIndexOf(path, "-", delimiterIndex));
+    private void saveTemplateState() {
+        //Save even if the import failed, the templates of the committed batches are in the template service
+        if (templateState != null) {
+            try {
+                templateState.save();
+            } catch (Exception e) {
+                logger.error("Failed to save the template state to " + templateState.getFile() + ". " + e.getMessage(), e);
+            }
+        }
+    }
 
-        if (description.isEmpty()) {
-            code = "NULL";
-            description = "Not Specified";
-        } else {
-            //Build up the template name by concatenating the descriptions of the descriptor fields
-            templateName = (templateName.length() == 0) ? (templateName.append(description)) : (templateName.append(" ").append(description));
+    private void writeMetrics() {
+        try {
+            metrics.writeSummary(new File(metricsFilename), mapper);
+        } catch (Exception e) {
+            logger.error("Failed to write the run metrics to " + metricsFilename + ". " + e.getMessage(), e);
+        } finally {
+            metrics.close();
         }
+    }
 
-        return newClassificationItem(nodeTypeCode, code, parentPath, description);
+    private void closeJournal(boolean completed) {
+        if (journal != null) {
+            try {
+                journal.close(completed);
+            } catch (Exception e) {
+                logger.error("Failed to close the checkpoint journal. " + e.getMessage(), e);
+            }
+        }
     }
 
-    private void submitBatch(List<BoqClassificationTemplateDTO> boqList, long lineCount) throws Exception {
-        templateSvc.submitClassificationTemplateBatch(boqList);
-        boqList.clear();
-        logger.info("Batch complete - records processed = " + lineCount);
+    private void saveNodeIndex() {
+        if (nodeIndex == null) {
+            return;
+        }
+        logger.info("Classification nodes known to the template service: " + nodeIndex.getCommittedCount() + ", node references sent: " + nodeIndex.getReferencesSent());
+        //Save even if the import failed, the nodes of the committed batches do exist in the template service
+        if (nodeIndexFilename != null) {
+            try {
+                nodeIndex.save(new File(nodeIndexFilename), mapper);
+            } catch (Exception e) {
+                logger.error("Failed to save the classification node index to " + nodeIndexFilename + ". " + e.getMessage(), e);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.database.Database;
+import za.co.imqs.exceptions.DuplicateRecordException;
+import za.co.imqs.exporters.ExportFileFormat;
+import za.co.imqs.exporters.RowSink;
+import za.co.imqs.jobs.SharedConnections;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.File;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Migrates the BOQ policy from the V6 AssetPolicyVAR database straight into the V8 templates DB: the rows of the export
+ * query are mapped and batched as they are fetched (see ResultSetRecordSource), so no CSV file is written and read back
+ * and the migration runs in constant memory. Optionally the rows are also written to teeFilename for auditing.
+ *
+ * The config combines the database settings of the export and the template service settings of the import
+ * (see BoqExporter and BoqImporter; importFilename and parallelParsing do not apply).
+ *
+ *  boq-migrate-config.json example:
+ *   {
+ *   	"dbParams": {
+ *   		"driverClass": "com.microsoft.sqlserver.jdbc.SQLServerDriver",
+ *   		"jdbcUrl": "jdbc:sqlserver://localhost:1433;databaseName=IMQS_Asset_BuffaloCity_20180510",
+ *   		"username": "sa",
+ *   		"password": "password"
+ *   	},
+ *   	"exportQuery": "{call PolicyVARExportForBOQ}",
+ *   	"duplicatesQuery": "{call AssetPolicyVARDuplicates}",
+ *   	"fetchSize": 5000,
+ *   	"teeFilename": "D:\\Dump\\IMQS\\Exports\\test\\boq_migration.csv",
+ *   	"writeBufferKB": 1024,
+ *   	"checkpointFilename": "D:\\Dump\\IMQS\\Exports\\test\\boq_migration",
+ *   	"imqs-template-service": {
+ *   		"baseURI": "http://192.168.1.65:8668/template/v1_0/",
+ *   		"authSvcURI": "http://192.168.1.65:/auth2/login",
+ *   		"username": "imqs",
+ *   		"password": "password"
+ *   	},
+ *   	"batchSize": 100,
+ *   	"submitThreads": 4,
+ *   	"fieldList": { ... as for the import ... }
+ *   }
+ *
+ *  The checkpoint journal is written to [checkpointFilename].checkpoint (default: teeFilename, no journal if neither is
+ *  set). Resuming a migration requires the export query to return the rows in the same order every time.
+ */
+public class BoqMigrator {
+    private final Database db;
+    private final boolean sharedDb;           /* the connection pool is shared with other jobs and not closed by the migration */
+    private final String exportQuery;         /* query or procedure call returning the records to migrate */
+    private final String duplicatesQuery;     /* query or procedure call returning the duplicate records, if any */
+    private final int fetchSize;
+    private final String teeFilename;         /* copy of the migrated rows (CSV or binary, see ExportFileFormat), null for none */
+    private final ExportFileFormat teeFormat;
+    private final BoqImporter importer;
+    private Connection connection;            /* open while the rows are migrated */
+
+    Logger logger = LoggerFactory.getLogger(BoqMigrator.class);
+
+    public BoqMigrator(String configFilename, boolean resume) throws Exception {
+        this(new ObjectMapper().readTree(new File(configFilename)), resume, null);
+    }
+
+    /**
+     * @param config      Migration config, see above
+     * @param connections Connection pools shared with other jobs (see ManifestRunner and JobDaemon), null to use pools of its own
+     */
+    public BoqMigrator(JsonNode config, boolean resume, SharedConnections connections) throws Exception {
+        final ObjectMapper mapper = connections != null ? connections.getMapper() : new ObjectMapper();
+        exportQuery = config.path("exportQuery").asText("{call PolicyVARExportForBOQ}");
+        duplicatesQuery = config.path("duplicatesQuery").asText("{call AssetPolicyVARDuplicates}");
+        fetchSize = config.path("fetchSize").asInt(5000);
+        teeFilename = config.path("teeFilename").asText(null);
+        teeFormat = teeFilename != null ? ExportFileFormat.of(config, teeFilename) : null;
+
+        sharedDb = connections != null;
+        db = sharedDb ? connections.getDatabase(config.get("dbParams")) : new Database(config.get("dbParams").toString(), mapper);
+        try {
+            importer = new BoqImporter(config, "migrateBoq", config.path("checkpointFilename").asText(teeFilename), resume, connections);
+        } catch (Exception e) {
+            closeDatabase();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Returns true if the migration completed, false if it failed (the error is logged)
+     */
+    public boolean execute() {
+        //The importer reports and cleans up any failure, including those of the export query
+        try {
+            return importer.execute(this::openExportQuery);
+        } finally {
+            closeConnection();
+            closeDatabase();
+        }
+    }
+
+    public String getMetricsFilename() {
+        return importer.getMetricsFilename();
+    }
+
+    private MappedRecordSource openExportQuery(Map<String, String> fieldList, RunMetrics metrics) throws Exception {
+        connection = db.getDbConnection();
+        //if no duplicate records exists continue with the migration
+        if (!noDuplicateRecords(connection)) {
+            throw new DuplicateRecordException("Unable to migrate BOQ from AssetPolicyVAR because of duplicate records.");
+        }
+        logger.info("BoqMigrator - Migrating BOQ records" + (teeFilename != null ? ", writing a copy to '" + teeFilename + "'" : ""));
+
+        final RowSink tee = teeFilename != null ? teeFormat.open(teeFilename) : null;
+        try {
+            return new ResultSetRecordSource(connection, exportQuery, fetchSize, fieldList, tee, metrics);
+        } catch (Exception e) {
+            if (tee != null) {
+                tee.close();
+            }
+            throw e;
+        }
+    }
+
+    private void closeDatabase() {
+        if (!sharedDb) {
+            db.close();
+        }
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close the database connection. " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Returns true if no duplicate records exists.
+     */
+    private boolean noDuplicateRecords(Connection connection) throws SQLException {
+        try (final CallableStatement cs = connection.prepareCall(duplicatesQuery)) {
+            cs.execute();
+            ResultSet rs = cs.getResultSet();
+            return !rs.next();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package za.co.imqs.importers;
+
+import org.apache.commons.csv.CSVRecord;
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.dto.ClassificationItemDTO;
+import za.co.imqs.dto.TemplateDTO;
+import za.co.imqs.dto.TemplateFieldDTO;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+/**
+ * Maps a record of the BOQ import file to a BOQ classification template.
+ *
+ * The mapping plan is compiled once from the header of the import file and the fieldList: the column index of every
+ * field is resolved up front (ignoring case) and the template fields are kept in arrays in fieldList order, so a record
+ * is mapped by index without any header lookups. The boqPath is scanned once per record for the parent paths of the
+ * four descriptor nodes.
+ * The mapper holds no state per record and may be shared between threads.
+ */
+public class BoqTemplateMapper {
+    public static final String BOQ_CLASSIFICATION_CODE = "BOQ";
+    public static final String BOQ_CLASSIFICATION_ROOT_CODE = "BOQ_ROOT";
+    public static final String BOQ_FINYEAR_CODE = "BOQ_FY";
+    public static final String BOQ_COMPONENT_TYPE_CODE = "BOQ_CT";
+    public static final String BOQ_DESCRIPTOR_TYPE_CODE = "BOQ_DT";
+    public static final String BOQ_DESCRIPTOR_CLASS_CODE = "BOQ_DC";
+    public static final String BOQ_DESCRIPTOR_SIZE_CODE = "BOQ_DS";
+
+    //Descriptor fields in boqPath order. The parent path of descriptor n ends before delimiter FIRST_DESCRIPTOR_DELIMITER + n of the boqPath.
+    private static final String[] DESCRIPTOR_FIELDS = {"componentType", "descriptorType", "descriptorClass", "descriptorSize"};
+    private static final String[] DESCRIPTOR_NODE_TYPES = {BOQ_COMPONENT_TYPE_CODE, BOQ_DESCRIPTOR_TYPE_CODE, BOQ_DESCRIPTOR_CLASS_CODE, BOQ_DESCRIPTOR_SIZE_CODE};
+    private static final int FIRST_DESCRIPTOR_DELIMITER = 2;
+    private static final char PATH_DELIMITER = '-';
+
+    private final int financialYearColumn;
+    private final int boqPathColumn;
+    private final int[] descriptorCodeColumns = new int[DESCRIPTOR_FIELDS.length];
+    private final int[] descriptorColumns = new int[DESCRIPTOR_FIELDS.length];
+    private final String[] fieldNames;                  //fields to import as defined in the config (excluding the descriptor fields)
+    private final String[] fieldTypes;
+    private final int[] fieldColumns;
+
+    /**
+     * @param fieldList Fields to import with their data type, as defined in the config
+     * @param headerMap Column index per column name of the import file, e.g. CSVParser.getHeaderMap()
+     * @throws IllegalArgumentException If a field is not in the import file
+     */
+    public BoqTemplateMapper(Map<String, String> fieldList, Map<String, Integer> headerMap) {
+        final Map<String, Integer> columns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        columns.putAll(headerMap);
+
+        financialYearColumn = column(columns, "financialYear");
+        boqPathColumn = column(columns, "boqPath");
+        for (int i = 0; i < DESCRIPTOR_FIELDS.length; i++) {
+            //The code column is appended with "_ID"
+            descriptorCodeColumns[i] = column(columns, DESCRIPTOR_FIELDS[i] + "_ID");
+            descriptorColumns[i] = column(columns, DESCRIPTOR_FIELDS[i]);
+        }
+
+        fieldNames = fieldList.keySet().toArray(new String[0]);
+        fieldTypes = new String[fieldNames.length];
+        fieldColumns = new int[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldTypes[i] = fieldList.get(fieldNames[i]);
+            fieldColumns[i] = column(columns, fieldNames[i]);
+        }
+    }
+
+    public BoqClassificationTemplateDTO map(CSVRecord csvRecord) {
+        return map(csvRecord::get);
+    }
+
+    public BoqClassificationTemplateDTO map(String[] row) {
+        return map(i -> row[i]);
+    }
+
+    /**
+     * @param row Value of the column with the given index
+     */
+    public BoqClassificationTemplateDTO map(IntFunction<String> row) {
+        //Create a new ClassificationTemplate item to populate
+        final BoqClassificationTemplateDTO boqItem = new BoqClassificationTemplateDTO();
+        final List<ClassificationItemDTO> classifications = boqItem.getClassifications();
+
+        //Create Classification nodes for the BOQ Root and BOQ FinYear
+        final String finYear = row.apply(financialYearColumn);
+        classifications.add(newClassificationItem(BOQ_CLASSIFICATION_ROOT_CODE, BOQ_CLASSIFICATION_CODE, "NULL", "Bill of Quantities Root"));
+        classifications.add(newClassificationItem(BOQ_FINYEAR_CODE, finYear, BOQ_FINYEAR_CODE, finYear));
+
+        //Create the Classification Descriptor nodes
+        //We Build up the template name by concatenating the descriptions of the descriptor fields
+        final String path = row.apply(boqPathColumn);
+        final StringBuilder templateName = new StringBuilder(64);
+        int delimiter = ordinalIndexOf(path, 0, FIRST_DESCRIPTOR_DELIMITER);
+        for (int i = 0; i < DESCRIPTOR_FIELDS.length; i++) {
+            if (i > 0) {
+                delimiter = ordinalIndexOf(path, delimiter + 1, 1);
+            }
+            if (delimiter < 0) {
+                throw new IllegalArgumentException("boqPath " + path + " has no parent path for " + DESCRIPTOR_FIELDS[i]);
+            }
+            //parse out the parent path from the boqPath based on the index of the delimiter of the descriptor field
+            classifications.add(newDescriptorClassificationItem(row, i, path.substring(0, delimiter), templateName));
+        }
+
+        //Create the Template fields
+        populateTemplate(row, boqItem, path, templateName.toString());
+
+        return boqItem;
+    }
+
+    private void populateTemplate(IntFunction<String> row, BoqClassificationTemplateDTO boqCT, String boqPath, String templateName) {
+        final TemplateDTO templateDTO = boqCT.getTemplate();
+        //Use the boqPath for the template code as it "should" be unique
+        templateDTO.setCode(boqPath);
+        templateDTO.setName(templateName);
+        templateDTO.setActive(true);
+        templateDTO.setDateAdded(null);
+        templateDTO.setDateDeactivated(null);
+        templateDTO.setAllowDelete(false);
+
+        //Add all the template fields. Only add fields that do have values
+        final List<TemplateFieldDTO> fields = templateDTO.getFields();
+        for (int i = 0; i < fieldNames.length; i++) {
+            final String value = row.apply(fieldColumns[i]);
+            if (!value.isEmpty() && !value.equals("NULL")) {
+                fields.add(newTemplateField(fieldNames[i], fieldTypes[i], value));
+            }
+        }
+    }
+
+    private static TemplateFieldDTO newTemplateField(String fieldName, String dataType, String value) {
+        final TemplateFieldDTO fieldDTO = new TemplateFieldDTO();
+        fieldDTO.setFieldName(fieldName);
+        fieldDTO.setDefaultValue(value);
+        fieldDTO.setDataType(dataType);
+        fieldDTO.setMandatory(false);
+        fieldDTO.setValidation(null);
+        fieldDTO.setDescription(null);
+
+        return fieldDTO;
+    }
+
+    private static ClassificationItemDTO newClassificationItem(String classificationNodeType, String code, String parentPath, String description) {
+        final ClassificationItemDTO itemDTO = new ClassificationItemDTO();
+        itemDTO.setClassificationType(BOQ_CLASSIFICATION_CODE);
+        itemDTO.setClassificationNodeType(classificationNodeType);
+        itemDTO.setCode(code);
+        itemDTO.setParentPath(parentPath);
+        itemDTO.setDescription(description);
+        itemDTO.setActive(true);
+
+        return itemDTO;
+    }
+
+    private ClassificationItemDTO newDescriptorClassificationItem(IntFunction<String> row, int descriptor, String parentPath, StringBuilder templateName) {
+        String code = row.apply(descriptorCodeColumns[descriptor]);
+        String description = row.apply(descriptorColumns[descriptor]);
+
+        if (description.isEmpty()) {
+            code = "NULL";
+            description = "Not Specified";
+        } else {
+            //Build up the template name by concatenating the descriptions of the descriptor fields
+            if (templateName.length() > 0) {
+                templateName.append(' ');
+            }
+            templateName.append(description);
+        }
+
+        return newClassificationItem(DESCRIPTOR_NODE_TYPES[descriptor], code, parentPath, description);
+    }
+
+    /**
+     * @return Returns the index of the ordinal'th path delimiter at or after fromIndex, -1 if there are fewer.
+     */
+    private static int ordinalIndexOf(String path, int fromIndex, int ordinal) {
+        int index = fromIndex - 1;
+        for (int found = 0; found < ordinal; found++) {
+            index = path.indexOf(PATH_DELIMITER, index + 1);
+            if (index < 0) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    private static int column(Map<String, Integer> columns, String name) {
+        final Integer index = columns.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("Column " + name + " is not in the import file. Columns: " + columns.keySet());
+        }
+        return index;
+    }
+}
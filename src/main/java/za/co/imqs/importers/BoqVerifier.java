@@ -0,0 +1,457 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.database.Database;
+import za.co.imqs.dto.TemplateDTO;
+import za.co.imqs.jobs.SharedConnections;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.services.RetryPolicy;
+import za.co.imqs.services.TemplateServiceParams;
+import za.co.imqs.services.TemplateServiceRestClient;
+import za.co.imqs.util.BinaryRowFormat;
+import za.co.imqs.util.ContentHash;
+import za.co.imqs.util.FileCompression;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies an import: compares the templates stored by the template service with the records of the import file (or of
+ * the export query, when no importFilename is configured) and reports the templates that are missing from the service,
+ * the extra templates in the service and the templates whose content differs.
+ *
+ * The templates of the service are read in pages on several threads (pagePath, with {offset} and {limit} replaced)
+ * while the source records are read and mapped as for the import. Both sides are reduced to the boqPath (template code)
+ * and a content hash of the template (see TemplateContentHash.ofStoredTemplate) and spilled to partition files by the
+ * hash of the boqPath. The partitions are then compared one at a time, so the verification reads every template once
+ * and only holds one partition in memory, however many templates there are.
+ *
+ * The report is a CSV file with the columns boqPath, status (MISSING, EXTRA or DIFFERENT) and recordNumber (the record
+ * of the import file, empty for EXTRA). The counts are logged and written to the run metrics (verify.matched,
+ * verify.missing, verify.extra, verify.different).
+ *
+ *  boq-verify-config.json example:
+ *   {
+ *   	"imqs-template-service": { ... as for the import ... },
+ *   	"importFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv",
+ *   	"parallelParsing": {
+ *   		"threads": 8
+ *   	},
+ *   	"verify": {
+ *   		"pagePath": "templates?offset={offset}&limit={limit}",
+ *   		"pageSize": 1000,
+ *   		"threads": 4,
+ *   		"partitions": 64,
+ *   		"reportFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.verify.csv",
+ *   		"workDirectory": "D:\\Dump\\IMQS\\Exports\\test"
+ *   	},
+ *   	"retry": { ... as for the import ... },
+ *   	"metricsFile": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.verify.metrics.json",
+ *   	"fieldList": { ... as for the import ... }
+ *   }
+ *
+ *  Without importFilename the records are read with the dbParams, exportQuery and fetchSize of the migration (see
+ *  BoqMigrator). The report file is [importFilename].verify.csv by default (verifyBoq.verify.csv for the export query),
+ *  the partition files are written to a temporary directory in workDirectory (default: the directory of the report) and
+ *  removed when the verification is done.
+ *
+ *  The service must not change while it is verified: the pages are read by offset, so templates added or removed
+ *  during the verification can shift the pages. A page shorter than pageSize is the last page.
+ */
+public class BoqVerifier {
+    private static final String[] HEADER = {"boqPath", "status", "recordNumber"};
+    private static final int PARTITION_BUFFER_SIZE = 16 * 1024;
+
+    private final ObjectMapper mapper;
+    private final String filename;                      //import file, null to read the records with the export query
+    private final Database db;                          //null if the records are read from the import file
+    private final boolean sharedDb;                     //the connection pool is shared with other jobs and not closed by the verifier
+    private final String exportQuery;
+    private final int fetchSize;
+    private final int parseThreads;
+    private final int parseChunkSize;
+    private final Map<String, String> fieldList;
+    private final String pagePath;
+    private final int pageSize;
+    private final int pageThreads;
+    private final int partitionCount;
+    private final String reportFilename;
+    private final File workDirectory;
+    private final String metricsFilename;
+    private final RunMetrics metrics;
+    private final RetryPolicy retryPolicy;
+    private final TemplateServiceRestClient templateSvc;
+
+    Logger logger = LoggerFactory.getLogger(BoqVerifier.class);
+
+    public BoqVerifier(String configFilename) throws Exception {
+        this(new ObjectMapper().readTree(new File(configFilename)), null);
+    }
+
+    /**
+     * @param config      Verification config, see above
+     * @param connections Connection pools shared with other jobs (see ManifestRunner and JobDaemon), null to use pools of its own
+     */
+    public BoqVerifier(JsonNode config, SharedConnections connections) throws Exception {
+        mapper = connections != null ? connections.getMapper() : new ObjectMapper();
+        filename = config.path("importFilename").asText(null);
+        if (filename == null && !config.hasNonNull("dbParams")) {
+            throw new IllegalArgumentException("verifyBoq needs the importFilename or the dbParams of the records to verify.");
+        }
+        exportQuery = config.path("exportQuery").asText("{call PolicyVARExportForBOQ}");
+        fetchSize = config.path("fetchSize").asInt(5000);
+        final JsonNode parallelConfig = config.get("parallelParsing");
+        parseThreads = parallelConfig == null ? 0 : parallelConfig.path("threads").asInt(Runtime.getRuntime().availableProcessors());
+        parseChunkSize = parallelConfig == null ? 0 : parallelConfig.path("chunkSizeKB").asInt(8192) * 1024;
+        fieldList = mapper.readValue(config.get("fieldList").toString(), new TypeReference<Map<String, String>>() {});
+
+        final JsonNode verifyConfig = config.path("verify");
+        pagePath = verifyConfig.path("pagePath").asText("templates?offset={offset}&limit={limit}");
+        pageSize = verifyConfig.path("pageSize").asInt(1000);
+        pageThreads = verifyConfig.path("threads").asInt(4);
+        partitionCount = verifyConfig.path("partitions").asInt(64);
+        if (pageSize < 1 || pageThreads < 1 || partitionCount < 1) {
+            throw new IllegalArgumentException("verify.pageSize, verify.threads and verify.partitions must be at least 1.");
+        }
+        final String sourceName = filename != null ? filename : "verifyBoq";
+        reportFilename = verifyConfig.path("reportFile").asText(sourceName + ".verify.csv");
+        workDirectory = verifyConfig.hasNonNull("workDirectory") ? new File(verifyConfig.get("workDirectory").asText())
+                                                                 : new File(reportFilename).getAbsoluteFile().getParentFile();
+        metricsFilename = config.path("metricsFile").asText(sourceName + ".verify.metrics.json");
+
+        metrics = new RunMetrics("verifyBoq" + (filename != null ? " " + filename : ""));
+        final JsonNode retryConfig = config.path("retry");
+        retryPolicy = new RetryPolicy(retryConfig.path("maxRetries").asInt(3),
+                                      retryConfig.path("initialBackoffMs").asLong(500),
+                                      retryConfig.path("maxBackoffMs").asLong(30000),
+                                      metrics);
+
+        sharedDb = connections != null;
+        Database database = null;
+        try {
+            if (filename == null) {
+                database = sharedDb ? connections.getDatabase(config.get("dbParams")) : new Database(config.get("dbParams").toString(), mapper);
+            }
+            final TemplateServiceParams svcParams = mapper.treeToValue(config.get("imqs-template-service"), TemplateServiceParams.class);
+            templateSvc = new TemplateServiceRestClient(svcParams, connections != null ? connections.getTemplateServiceConnections(svcParams) : null, mapper, metrics);
+        } catch (Exception e) {
+            if (database != null && !sharedDb) {
+                database.close();
+            }
+            metrics.close();
+            throw e;
+        }
+        db = database;
+    }
+
+    /**
+     * @return Returns true if the verification completed and the service has all the templates of the source and no
+     *         others, false if it found differences or failed (the differences and errors are logged)
+     */
+    public boolean execute() {
+        boolean verified = false;
+        Path partitionDirectory = null;
+        final ExecutorService pageExecutor = Executors.newFixedThreadPool(pageThreads);
+        try {
+            logger.info("Verifying the BOQ templates of the template service against " + (filename != null ? filename : exportQuery) +
+                        ". (" + metrics.getName() + ")   Page size: " + pageSize + "   Page threads: " + pageThreads + "   Partitions: " + partitionCount);
+            Files.createDirectories(workDirectory.toPath());
+            partitionDirectory = Files.createTempDirectory(workDirectory.toPath(), "boq-verify");
+            final Partition[] partitions = new Partition[partitionCount];
+            for (int i = 0; i < partitionCount; i++) {
+                partitions[i] = new Partition(partitionDirectory.resolve("partition-" + i));
+            }
+
+            try {
+                //Read the pages of the service while the source records are read
+                final PageReader pageReader = new PageReader(partitions);
+                final List<Future<?>> pageReaders = new ArrayList<>();
+                for (int i = 0; i < pageThreads; i++) {
+                    pageReaders.add(pageExecutor.submit(pageReader));
+                }
+                readSource(partitions, pageReader);
+                for (Future<?> future : pageReaders) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+                logger.info("Read " + metrics.getCounter("rows.read") + " source records and " + metrics.getCounter("templates.read") + " templates of the template service.");
+            } finally {
+                for (Partition partition : partitions) {
+                    partition.closeWriters();
+                }
+            }
+
+            //Compare the partitions one at a time
+            try (CSVPrinter report = CSVFormat.EXCEL.withHeader(HEADER).print(
+                    new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFilename), StandardCharsets.UTF_8)))) {
+                for (Partition partition : partitions) {
+                    final long startNanos = System.nanoTime();
+                    partition.compare(report);
+                    metrics.recordTimeSince("verify.compare", startNanos);
+                }
+            }
+
+            final long missing = metrics.getCounter("verify.missing");
+            final long extra = metrics.getCounter("verify.extra");
+            final long different = metrics.getCounter("verify.different");
+            final String counts = "matched = " + metrics.getCounter("verify.matched") + ", missing = " + missing + ", extra = " + extra + ", different = " + different;
+            verified = missing + extra + different == 0;
+            if (verified) {
+                logger.info("BOQ template verification complete, the template service matches the source - " + counts);
+            } else {
+                logger.warn("BOQ template verification complete, the template service does not match the source - " + counts + ". See " + reportFilename);
+            }
+        } catch (Exception e) {
+            logger.error("BoqVerifier completed with errors. " + e.getMessage(), e);
+        } finally {
+            pageExecutor.shutdownNow();
+            deletePartitions(partitionDirectory);
+            IOUtils.closeQuietly(templateSvc);
+            if (db != null && !sharedDb) {
+                db.close();
+            }
+            writeMetrics();
+        }
+        return verified;
+    }
+
+    public String getMetricsFilename() {
+        return metricsFilename;
+    }
+
+    /**
+     * Read the source records and add the boqPath and hash of every template to its partition.
+     */
+    private void readSource(Partition[] partitions, PageReader pageReader) throws Exception {
+        Connection connection = null;
+        try {
+            final MappedRecordSource records;
+            if (filename != null) {
+                records = openImportFile();
+            } else {
+                connection = db.getDbConnection();
+                records = new ResultSetRecordSource(connection, exportQuery, fetchSize, fieldList, null, metrics);
+            }
+            try (MappedRecordSource source = records) {
+                for (MappedRecord record = source.next(); record != null; record = source.next()) {
+                    metrics.increment("rows.read");
+                    final TemplateDTO template = record.item.getTemplate();
+                    partitionOf(partitions, template.getCode()).addSource(template.getCode(), TemplateContentHash.ofStoredTemplate(template), record.recordNumber);
+                    //stop reading the source as soon as the service cannot be read
+                    pageReader.checkNotFailed();
+                }
+            }
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.warn("Failed to close the database connection. " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private MappedRecordSource openImportFile() throws Exception {
+        //The format and compression are detected from the content of the file. The records are read in file order, so a
+        //later record with the same boqPath replaces the earlier one, as in the import.
+        final Path path = Paths.get(filename);
+        if (BinaryRowFormat.isBinary(path)) {
+            return new BinaryRecordSource(filename, fieldList, metrics);
+        }
+        if (parseThreads > 0 && FileCompression.detect(path) == FileCompression.NONE) {
+            return new ParallelCsvReader(filename, fieldList, parseThreads, parseChunkSize, true, metrics);
+        }
+        return new CsvRecordSource(filename, fieldList, metrics);
+    }
+
+    private Partition partitionOf(Partition[] partitions, String code) {
+        return partitions[(int) Math.floorMod(new ContentHash().update(code).value(), (long) partitions.length)];
+    }
+
+    private void deletePartitions(Path partitionDirectory) {
+        if (partitionDirectory != null) {
+            try {
+                FileUtils.deleteDirectory(partitionDirectory.toFile());
+            } catch (IOException e) {
+                logger.warn("Failed to remove the partition files in " + partitionDirectory + ". " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeMetrics() {
+        try {
+            metrics.writeSummary(new File(metricsFilename), mapper);
+        } catch (Exception e) {
+            logger.error("Failed to write the run metrics to " + metricsFilename + ". " + e.getMessage(), e);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Reads the pages of the service on every thread it runs on: each thread takes the next page until a page is short.
+     */
+    private class PageReader implements Runnable {
+        private final Partition[] partitions;
+        private final AtomicLong nextPage = new AtomicLong();
+        private volatile long lastPage = Long.MAX_VALUE;
+        private volatile Exception failure;
+
+        PageReader(Partition[] partitions) {
+            this.partitions = partitions;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (long page = nextPage.getAndIncrement(); page <= lastPage; page = nextPage.getAndIncrement()) {
+                    final String path = pagePath.replace("{offset}", String.valueOf(page * pageSize)).replace("{limit}", String.valueOf(pageSize));
+                    final List<List<TemplateDTO>> result = new ArrayList<>(1);
+                    retryPolicy.execute("Read " + path, () -> result.add(templateSvc.getTemplatePage(path)));
+                    final List<TemplateDTO> templates = result.get(0);
+                    if (templates.size() < pageSize) {
+                        endAt(page);
+                    }
+                    for (TemplateDTO template : templates) {
+                        partitionOf(partitions, template.getCode()).addService(template.getCode(), TemplateContentHash.ofStoredTemplate(template));
+                    }
+                    metrics.add("templates.read", templates.size());
+                }
+            } catch (Exception e) {
+                failure = e;
+                lastPage = -1;
+                throw new IllegalStateException("Failed to read the templates of the template service. " + e.getMessage(), e);
+            }
+        }
+
+        void checkNotFailed() {
+            if (failure != null) {
+                throw new IllegalStateException("Failed to read the templates of the template service. " + failure.getMessage(), failure);
+            }
+        }
+
+        private synchronized void endAt(long page) {
+            lastPage = Math.min(lastPage, page);
+        }
+    }
+
+    /**
+     * The boqPaths and template hashes of the source and of the service whose boqPath hash falls in one partition, in two
+     * spill files.
+     */
+    private class Partition {
+        private final File sourceFile;
+        private final File serviceFile;
+        private final DataOutputStream source;       //boqPath, hash, recordNumber; written by the source thread only
+        private final DataOutputStream service;      //boqPath, hash; written by the page threads
+
+        Partition(Path path) throws IOException {
+            sourceFile = new File(path + ".source");
+            serviceFile = new File(path + ".service");
+            source = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sourceFile), PARTITION_BUFFER_SIZE));
+            service = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(serviceFile), PARTITION_BUFFER_SIZE));
+        }
+
+        void addSource(String code, long hash, long recordNumber) throws IOException {
+            source.writeUTF(code);
+            source.writeLong(hash);
+            source.writeLong(recordNumber);
+        }
+
+        void addService(String code, long hash) throws IOException {
+            synchronized (service) {
+                service.writeUTF(code);
+                service.writeLong(hash);
+            }
+        }
+
+        void closeWriters() {
+            IOUtils.closeQuietly(source);
+            synchronized (service) {
+                IOUtils.closeQuietly(service);
+            }
+        }
+
+        /**
+         * Load the source side and match the service side against it. A later source record with the same boqPath
+         * replaces the earlier one, as it does in the import.
+         */
+        void compare(CSVPrinter report) throws IOException {
+            final Map<String, SourceTemplate> sourceTemplates = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sourceFile), PARTITION_BUFFER_SIZE))) {
+                while (!isAtEnd(in)) {
+                    sourceTemplates.put(in.readUTF(), new SourceTemplate(in.readLong(), in.readLong()));
+                }
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(serviceFile), PARTITION_BUFFER_SIZE))) {
+                while (!isAtEnd(in)) {
+                    final String code = in.readUTF();
+                    final long hash = in.readLong();
+                    final SourceTemplate sourceTemplate = sourceTemplates.get(code);
+                    if (sourceTemplate == null) {
+                        report.printRecord(code, "EXTRA", "");
+                        metrics.increment("verify.extra");
+                    } else if (!sourceTemplate.found) {
+                        //a template listed twice by the service (pages shifted) is only compared once
+                        sourceTemplate.found = true;
+                        if (sourceTemplate.hash == hash) {
+                            metrics.increment("verify.matched");
+                        } else {
+                            report.printRecord(code, "DIFFERENT", sourceTemplate.recordNumber);
+                            metrics.increment("verify.different");
+                        }
+                    }
+                }
+            }
+
+            for (Map.Entry<String, SourceTemplate> entry : sourceTemplates.entrySet()) {
+                if (!entry.getValue().found) {
+                    report.printRecord(entry.getKey(), "MISSING", entry.getValue().recordNumber);
+                    metrics.increment("verify.missing");
+                }
+            }
+        }
+
+        private boolean isAtEnd(DataInputStream in) throws IOException {
+            in.mark(1);
+            final boolean atEnd = in.read() < 0;
+            in.reset();
+            return atEnd;
+        }
+    }
+
+    private static class SourceTemplate {
+        final long hash;
+        final long recordNumber;
+        boolean found;
+
+        SourceTemplate(long hash, long recordNumber) {
+            this.hash = hash;
+            this.recordNumber = recordNumber;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package za.co.imqs.importers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.util.ContentHash;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only journal of the batches committed by an import, written next to the import file as "[importFilename].checkpoint".
+ * Every line records the first and last record number of a committed batch and the content hash of its records:
+ *
+ *   firstRecordNumber,lastRecordNumber,contentHash
+ *
+ * Each line is synced to disk before the next batch is recorded. When resuming, the records of the journaled batches are
+ * skipped, and their content hash is verified against the import file so a changed file is never silently skipped.
+ * A batch covers consecutive records and never spans records committed by a previous run, so the entries never overlap.
+ * A torn last line (the previous run died while writing it) is cut off before the journal is appended to; the batch it
+ * describes is simply resubmitted. Any other malformed or overlapping entry fails the resume.
+ * The journal is deleted when the import completes.
+ */
+public class CheckpointJournal implements Closeable {
+    public static final String JOURNAL_EXTENSION = ".checkpoint";
+
+    private final File journalFile;
+    private final List<Entry> committed;     //batches committed by previous runs, sorted by first record
+    private final FileOutputStream out;
+    private int nextEntry = 0;               //resume position in committed
+    private ContentHash entryHash;           //hash of the records skipped so far for committed[nextEntry]
+
+    Logger logger = LoggerFactory.getLogger(CheckpointJournal.class);
+
+    private static class Entry {
+        final long firstRecordNumber;
+        final long lastRecordNumber;
+        final long contentHash;
+
+        Entry(long firstRecordNumber, long lastRecordNumber, long contentHash) {
+            this.firstRecordNumber = firstRecordNumber;
+            this.lastRecordNumber = lastRecordNumber;
+            this.contentHash = contentHash;
+        }
+    }
+
+    /**
+     * @param importFilename The file being imported; the journal is created next to it.
+     * @param resume         If true the batches in an existing journal are skipped, otherwise an existing journal is discarded.
+     */
+    public CheckpointJournal(String importFilename, boolean resume) throws IOException {
+        journalFile = new File(importFilename + JOURNAL_EXTENSION);
+        if (resume) {
+            truncateTornLine(journalFile);
+        }
+        committed = resume ? readJournal(journalFile) : new ArrayList<>();
+        if (resume) {
+            final long records = committed.stream().mapToLong(e -> e.lastRecordNumber - e.firstRecordNumber + 1).sum();
+            logger.info("Resuming import. " + committed.size() + " committed batches (" + records + " records) found in " + journalFile);
+        }
+        out = new FileOutputStream(journalFile, resume);
+    }
+
+    /**
+     * Records must be passed in file order.
+     *
+     * @return Returns true if the record was committed by a previous run and must be skipped.
+     * @throws IllegalStateException if the content of a committed batch does not match the import file anymore.
+     */
+    public boolean skip(long recordNumber, long recordHash) {
+        if (nextEntry >= committed.size()) {
+            return false;
+        }
+        final Entry entry = committed.get(nextEntry);
+        if (recordNumber < entry.firstRecordNumber) {
+            return false;
+        }
+
+        if (recordNumber == entry.firstRecordNumber) {
+            entryHash = new ContentHash();
+        }
+        entryHash.update(recordHash);
+        if (recordNumber == entry.lastRecordNumber) {
+            if (entryHash.value() != entry.contentHash) {
+                throw new IllegalStateException("Import file " + journalFile.getName().replace(JOURNAL_EXTENSION, "") +
+                        " changed since the checkpoint was written, records " + entry.firstRecordNumber + " - " + entry.lastRecordNumber +
+                        " do not match. Rerun the import without resume.");
+            }
+            nextEntry++;
+        }
+        return true;
+    }
+
+    /**
+     * Record a batch that was accepted by the template service. Called concurrently by the pipeline workers.
+     */
+    public synchronized void append(TemplateBatch batch) throws IOException {
+        final String line = batch.getFirstRecordNumber() + "," + batch.getLastRecordNumber() + "," + ContentHash.toHex(batch.getContentHash()) + "\n";
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.getFD().sync();
+    }
+
+    /**
+     * Close the journal. If the import completed the journal is not needed anymore and is deleted.
+     */
+    public void close(boolean completed) throws IOException {
+        close();
+        if (completed) {
+            Files.deleteIfExists(journalFile.toPath());
+        } else {
+            logger.info("Checkpoint journal kept at " + journalFile + ". Rerun with --resume to continue the import.");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private List<Entry> readJournal(File file) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            logger.warn("No checkpoint journal found at " + file + ", importing the whole file.");
+            return entries;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+            final String[] parts = line.split(",");
+            if (parts.length != 3 || parts[2].length() != 16) {
+                throw corrupt(file, "entry '" + line + "' is malformed");
+            }
+            final Entry entry;
+            try {
+                entry = new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), ContentHash.fromHex(parts[2]));
+            } catch (NumberFormatException e) {
+                throw corrupt(file, "entry '" + line + "' is malformed");
+            }
+            if (entry.firstRecordNumber < 1 || entry.firstRecordNumber > entry.lastRecordNumber) {
+                throw corrupt(file, "entry '" + line + "' has an invalid record range");
+            }
+            entries.add(entry);
+        }
+        entries.sort(Comparator.comparingLong(e -> e.firstRecordNumber));
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i).firstRecordNumber <= entries.get(i - 1).lastRecordNumber) {
+                throw corrupt(file, "records " + entries.get(i - 1).firstRecordNumber + " - " + entries.get(i - 1).lastRecordNumber +
+                                    " and " + entries.get(i).firstRecordNumber + " - " + entries.get(i).lastRecordNumber + " overlap");
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Cut the journal back to its last complete line, so the next entry is not appended to a torn one.
+     */
+    private void truncateTornLine(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            long end = journal.length();
+            while (end > 0) {
+                journal.seek(end - 1);
+                if (journal.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < journal.length()) {
+                logger.warn("Ignoring incomplete checkpoint entry at the end of " + file + " (" + (journal.length() - end) + " bytes)");
+                journal.setLength(end);
+                journal.getFD().sync();
+            }
+        }
+    }
+
+    private static IOException corrupt(File file, String reason) {
+        return new IOException("Checkpoint journal " + file + " is corrupt, " + reason + ". Rerun the import without resume.");
+    }
+}
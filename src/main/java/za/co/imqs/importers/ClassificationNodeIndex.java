@@ -0,0 +1,150 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.dto.ClassificationItemDTO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the classification nodes sent to the template service during an import, keyed by (node type, code, parentPath).
+ *
+ * The first template that uses a node carries the full node. Later templates in the same batch, or in any batch after
+ * the batch carrying the node was committed, only carry a reference to the node (type, code and parentPath without the
+ * description). A node carried by a batch that is still in flight is sent in full again, so a reference never arrives at
+ * the service before the node itself.
+ *
+ * compact() and closeBatch() must be called by the thread building the batches, commit() may be called from any thread.
+ */
+public class ClassificationNodeIndex {
+    private final Map<String, ClassificationItemDTO> nodes = new ConcurrentHashMap<>();        //full node of every node seen, used to expand references again
+    private final Map<String, ClassificationItemDTO> committed = new ConcurrentHashMap<>();    //reference of every node known to the service
+    private final Map<String, ClassificationItemDTO> openBatch = new HashMap<>();              //reference of the nodes carried in full by the batch being built
+    private final AtomicLong referencesSent = new AtomicLong();
+
+    Logger logger = LoggerFactory.getLogger(ClassificationNodeIndex.class);
+
+    /**
+     * Replace the classification nodes of the template with references where the node is already known.
+     */
+    public void compact(BoqClassificationTemplateDTO item) {
+        final List<ClassificationItemDTO> classifications = item.getClassifications();
+        for (int i = 0; i < classifications.size(); i++) {
+            final ClassificationItemDTO node = classifications.get(i);
+            final String key = key(node);
+            ClassificationItemDTO reference = committed.get(key);
+            if (reference == null) {
+                reference = openBatch.get(key);
+            }
+
+            if (reference != null) {
+                classifications.set(i, reference);
+                referencesSent.incrementAndGet();
+            } else {
+                nodes.putIfAbsent(key, node);
+                openBatch.put(key, newReference(node));
+            }
+        }
+    }
+
+    /**
+     * Call when the batch being built is handed off for submission. Nodes carried by the next batch are tracked from scratch.
+     */
+    public void closeBatch() {
+        openBatch.clear();
+    }
+
+    /**
+     * Register the nodes carried in full by a batch that was accepted by the template service.
+     */
+    public void commit(TemplateBatch batch) {
+        for (BoqClassificationTemplateDTO item : batch.getItems()) {
+            for (ClassificationItemDTO node : item.getClassifications()) {
+                //references have no description, only full nodes are registered
+                if (node.getDescription() != null) {
+                    committed.computeIfAbsent(key(node), k -> newReference(node));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace references in the template with the full nodes again, e.g. when the template is submitted on its own.
+     */
+    public void expand(BoqClassificationTemplateDTO item) {
+        final List<ClassificationItemDTO> classifications = item.getClassifications();
+        for (int i = 0; i < classifications.size(); i++) {
+            final ClassificationItemDTO node = classifications.get(i);
+            if (node.getDescription() == null) {
+                final ClassificationItemDTO fullNode = nodes.get(key(node));
+                if (fullNode != null) {
+                    classifications.set(i, fullNode);
+                }
+            }
+        }
+    }
+
+    public int getCommittedCount() {
+        return committed.size();
+    }
+
+    public long getReferencesSent() {
+        return referencesSent.get();
+    }
+
+    /**
+     * Load the nodes committed by a previous run. The nodes are assumed to still exist in the template service.
+     */
+    public void load(File file, ObjectMapper mapper) throws IOException {
+        if (!file.exists()) {
+            logger.info("Classification node index " + file + " does not exist yet, starting with an empty index.");
+            return;
+        }
+        final List<ClassificationItemDTO> saved = mapper.readValue(file, new TypeReference<List<ClassificationItemDTO>>() {});
+        for (ClassificationItemDTO node : saved) {
+            final String key = key(node);
+            nodes.put(key, node);
+            committed.put(key, newReference(node));
+        }
+        logger.info("Loaded " + saved.size() + " classification nodes from " + file);
+    }
+
+    /**
+     * Save the committed nodes so the next run can reference them straight away.
+     */
+    public void save(File file, ObjectMapper mapper) throws IOException {
+        final List<ClassificationItemDTO> saved = new ArrayList<>(committed.size());
+        for (String key : committed.keySet()) {
+            saved.add(nodes.get(key));
+        }
+        //write to a temp file first so a failed save never leaves a truncated index behind
+        final Path target = file.toPath().toAbsolutePath();
+        final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        mapper.writeValue(temp.toFile(), saved);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Saved " + saved.size() + " classification nodes to " + file);
+    }
+
+    private static String key(ClassificationItemDTO node) {
+        return node.getClassificationNodeType() + '\u0001' + node.getCode() + '\u0001' + node.getParentPath();
+    }
+
+    private static ClassificationItemDTO newReference(ClassificationItemDTO node) {
+        final ClassificationItemDTO reference = new ClassificationItemDTO();
+        reference.setClassificationType(node.getClassificationType());
+        reference.setClassificationNodeType(node.getClassificationNodeType());
+        reference.setCode(node.getCode());
+        reference.setParentPath(node.getParentPath());
+        return reference;
+    }
+}
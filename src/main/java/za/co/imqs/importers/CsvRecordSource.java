@@ -0,0 +1,69 @@
+package za.co.imqs.importers;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.util.ContentHash;
+import za.co.imqs.util.FileCompression;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reads and maps the records of the import file (optionally compressed, see FileCompression) one by one on the calling
+ * thread, in file order.
+ */
+class CsvRecordSource implements MappedRecordSource {
+    static final CSVFormat IMPORT_FORMAT = CSVFormat.DEFAULT
+            .withIgnoreHeaderCase()
+            .withTrim();
+
+    private final CSVParser csvParser;
+    private final Iterator<CSVRecord> csvRecords;
+    private final BoqTemplateMapper templateMapper;
+    private final RunMetrics metrics;
+
+    CsvRecordSource(String filename, Map<String, String> fieldList, RunMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        csvParser = new CSVParser(new InputStreamReader(FileCompression.open(Paths.get(filename), 64 * 1024), StandardCharsets.UTF_8), IMPORT_FORMAT.withFirstRecordAsHeader());
+        //Resolve the columns of the fields once from the header
+        templateMapper = new BoqTemplateMapper(fieldList, csvParser.getHeaderMap());
+        csvRecords = csvParser.iterator();
+    }
+
+    @Override
+    public MappedRecord next() {
+        final boolean sampled = RunMetrics.isSampled(csvParser.getRecordNumber());
+        long startNanos = sampled ? System.nanoTime() : 0;
+        if (!csvRecords.hasNext()) {
+            return null;
+        }
+        final CSVRecord csvRecord = csvRecords.next();
+        if (sampled) {
+            metrics.recordTimeSince("csv.parse", startNanos);
+            startNanos = System.nanoTime();
+        }
+        final MappedRecord record = map(csvRecord, csvRecord.getRecordNumber(), templateMapper);
+        if (sampled) {
+            metrics.recordTimeSince("mapping", startNanos);
+        }
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        csvParser.close();
+    }
+
+    static MappedRecord map(CSVRecord csvRecord, long recordNumber, BoqTemplateMapper templateMapper) {
+        final long recordHash = new ContentHash().update(csvRecord).value();
+        final BoqClassificationTemplateDTO item = templateMapper.map(csvRecord);
+        return new MappedRecord(recordNumber, recordHash, item, TemplateContentHash.of(item));
+    }
+}
@@ -0,0 +1,88 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.exceptions.TemplateServiceException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CSV file of the import records rejected by the template service, with the error returned by the service:
+ *
+ *   recordNumber,code,statusCode,error,template
+ *
+ * recordNumber is the number of the record in the import file (the first record after the header is 1) and template the
+ * json sent for it. Every record is flushed to the file straight away. Written concurrently by the pipeline workers.
+ */
+public class DeadLetterFile implements Closeable {
+    private static final String[] HEADER = {"recordNumber", "code", "statusCode", "error", "template"};
+
+    private final String filename;
+    private final ObjectMapper mapper;
+    private final CSVPrinter printer;
+    private long recordCount;
+    private final boolean previousRecords;              //the file has records of a previous run (resume)
+
+    Logger logger = LoggerFactory.getLogger(DeadLetterFile.class);
+
+    /**
+     * @param append true to add to the records of a previous run (resume), false to start a new file
+     */
+    public DeadLetterFile(String filename, boolean append, ObjectMapper mapper) throws IOException {
+        this.filename = filename;
+        this.mapper = mapper;
+        final File file = new File(filename);
+        final boolean writeHeader = !append || file.length() == 0;
+        previousRecords = !writeHeader && hasRecords(file);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+        printer = (writeHeader ? CSVFormat.EXCEL.withHeader(HEADER) : CSVFormat.EXCEL).print(writer);
+        printer.flush();
+    }
+
+    public synchronized void write(long recordNumber, BoqClassificationTemplateDTO item, Exception error) throws IOException {
+        final String statusCode = error instanceof TemplateServiceException ? String.valueOf(((TemplateServiceException) error).getStatusCode()) : "";
+        final String responseBody = error instanceof TemplateServiceException ? ((TemplateServiceException) error).getResponseBody() : null;
+        printer.printRecord(recordNumber,
+                            item.getTemplate().getCode(),
+                            statusCode,
+                            responseBody != null && !responseBody.isEmpty() ? responseBody : error.getMessage(),
+                            mapper.writeValueAsString(item));
+        printer.flush();
+        recordCount++;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return Returns true if records were written to the file by this run or by the run that is resumed
+     */
+    public synchronized boolean hasRecords() {
+        return previousRecords || recordCount > 0;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    private static boolean hasRecords(File file) throws IOException {
+        try (CSVParser parser = CSVFormat.EXCEL.withFirstRecordAsHeader().parse(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return parser.iterator().hasNext();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        printer.close();
+        if (recordCount > 0) {
+            logger.warn(recordCount + " records were rejected by the template service, see " + filename);
+        }
+    }
+}
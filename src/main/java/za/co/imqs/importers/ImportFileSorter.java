@@ -0,0 +1,394 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.exporters.ExportFileFormat;
+import za.co.imqs.exporters.RowSink;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.util.BinaryRowFormat;
+import za.co.imqs.util.FileCompression;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Sorts the import file by boqPath before it is imported, so consecutive batches touch one classification subtree
+ * (financial year, component type, descriptors) instead of nodes scattered across the tree.
+ *
+ * The sort is an external merge sort with bounded memory: the rows are read (CSV or binary, any compression) until
+ * memoryMB is used, sorted and spilled to a run file (binary, see BinaryRowFormat) in a temporary directory. The runs
+ * are then merged with a k-way merge into the sorted file; with more than maxMergeRuns runs, groups of consecutive runs
+ * are first merged into longer runs. A file that fits in memory is written without run files. The memory used by a row
+ * is estimated from the length of its values.
+ *
+ * The sort is stable: rows with the same boqPath keep the order of the import file, so the last one still wins.
+ *
+ *  "sortByBoqPath": {
+ *  	"memoryMB": 256,
+ *  	"maxMergeRuns": 64,
+ *  	"runCompression": "lz4",
+ *  	"workDirectory": "D:\\Dump\\IMQS\\Exports\\test",
+ *  	"sortedFilename": "D:\\Dump\\IMQS\\Exports\\test\\export_java.csv.sorted.csv",
+ *  	"format": "csv",
+ *  	"compression": "none",
+ *  	"keepSortedFile": false
+ *  }
+ *
+ *  The sorted file is [importFilename].sorted.csv by default, its format and compression are configured as for an
+ *  export file (see ExportFileFormat). It is written as [sortedFilename].partial and renamed when it is complete, so a
+ *  sorted file that exists is always complete. The run files are written to workDirectory (default: the directory of
+ *  the sorted file) and removed when the sort is done.
+ */
+class ImportFileSorter {
+    private static final int RUN_BUFFER_SIZE = 256 * 1024;
+    private static final long ROW_OVERHEAD = 24;        //row array header and list entry, plus a reference per value
+    private static final long VALUE_OVERHEAD = 40;      //String and its char array header, plus two bytes per character
+    private static final String PARTIAL_EXTENSION = ".partial";
+
+    private final String filename;
+    private final String sortedFilename;
+    private final ExportFileFormat sortedFormat;
+    private final boolean keepSortedFile;               //keep the sorted file when the import completes
+    private final long memoryBytes;                     //rows held in memory before they are spilled to a run
+    private final int maxMergeRuns;                     //runs merged at the same time
+    private final ExportFileFormat runFormat;
+    private final File workDirectory;
+    private final RunMetrics metrics;
+
+    Logger logger = LoggerFactory.getLogger(ImportFileSorter.class);
+
+    /**
+     * @param config   sortByBoqPath config, see above
+     * @param filename Import file
+     */
+    ImportFileSorter(JsonNode config, String filename, RunMetrics metrics) {
+        this.filename = filename;
+        this.metrics = metrics;
+        sortedFilename = config.path("sortedFilename").asText(filename + ".sorted.csv");
+        sortedFormat = ExportFileFormat.of(config, sortedFilename);
+        keepSortedFile = config.path("keepSortedFile").asBoolean(false);
+        memoryBytes = config.path("memoryMB").asLong(256) * 1024 * 1024;
+        maxMergeRuns = config.path("maxMergeRuns").asInt(64);
+        if (maxMergeRuns < 2) {
+            throw new IllegalArgumentException("sortByBoqPath.maxMergeRuns must be at least 2.");
+        }
+        runFormat = new ExportFileFormat(true, FileCompression.of(config.path("runCompression").asText("none"), null), RUN_BUFFER_SIZE);
+        workDirectory = config.hasNonNull("workDirectory") ? new File(config.get("workDirectory").asText())
+                                                           : new File(sortedFilename).getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Sort the import file into the sorted file.
+     *
+     * @param resume If true a (complete) sorted file that is newer than the import file is used as it is, so the record
+     *               numbers in the checkpoint journal still match
+     * @return Returns the sorted file
+     */
+    String sort(boolean resume) throws IOException {
+        final File importFile = new File(filename);
+        final File sortedFile = new File(sortedFilename);
+        final File partialFile = new File(sortedFilename + PARTIAL_EXTENSION);
+        if (resume && sortedFile.isFile() && sortedFile.lastModified() >= importFile.lastModified()) {
+            logger.info("Resuming with the sorted file " + sortedFilename);
+            return sortedFilename;
+        }
+        //a sorted file of a previous run must never be resumed with the journal of this one
+        Files.deleteIfExists(sortedFile.toPath());
+
+        final long startNanos = System.nanoTime();
+        logger.info("Sorting " + filename + " by boqPath into " + sortedFilename + " (" + sortedFormat + ")   Memory: " + memoryBytes / (1024 * 1024) + "MB");
+        Files.createDirectories(workDirectory.toPath());
+        final Path runDirectory = Files.createTempDirectory(workDirectory.toPath(), "boq-sort");
+        try (final RowReader reader = RowReader.open(Paths.get(filename))) {
+            final String[] columns = reader.getColumnNames();
+            final int boqPathColumn = boqPathColumn(columns);
+            final Comparator<String[]> byBoqPath = Comparator.comparing(row -> row[boqPathColumn]);
+
+            //Read the rows into memory and spill every full buffer as a sorted run
+            final List<File> runs = new ArrayList<>();
+            final List<String[]> rows = new ArrayList<>();
+            long rowBytes = 0;
+            long rowCount = 0;
+            for (String[] row = reader.read(); row != null; row = reader.read()) {
+                rows.add(row);
+                rowCount++;
+                rowBytes += ROW_OVERHEAD + 4L * row.length;
+                for (String value : row) {
+                    rowBytes += VALUE_OVERHEAD + 2L * value.length();
+                }
+                if (rowBytes >= memoryBytes) {
+                    runs.add(writeRun(runDirectory, runs.size(), columns, rows, byBoqPath));
+                    rows.clear();
+                    rowBytes = 0;
+                }
+            }
+
+            if (runs.isEmpty()) {
+                //it fits in memory
+                rows.sort(byBoqPath);
+                try (final RowSink out = sortedFormat.open(partialFile.getPath())) {
+                    out.start(columns);
+                    for (String[] row : rows) {
+                        out.write(row);
+                    }
+                    out.finish();
+                }
+            } else {
+                if (!rows.isEmpty()) {
+                    runs.add(writeRun(runDirectory, runs.size(), columns, rows, byBoqPath));
+                    rows.clear();
+                }
+                mergeRuns(runDirectory, runs, columns, boqPathColumn, partialFile);
+            }
+            Files.move(partialFile.toPath(), sortedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            metrics.add("sort.rows", rowCount);
+            metrics.add("sort.runs", runs.size());
+            metrics.recordTimeSince("sort", startNanos);
+            logger.info("Sorted " + rowCount + " rows in " + (System.nanoTime() - startNanos) / 1000000 + "ms (" + runs.size() + " runs)");
+        } catch (Exception e) {
+            FileUtils.deleteQuietly(partialFile);
+            throw e;
+        } finally {
+            FileUtils.deleteQuietly(runDirectory.toFile());
+        }
+        return sortedFilename;
+    }
+
+    /**
+     * Remove the sorted file once the import completed, unless it is kept.
+     *
+     * @param deadLetters true if the dead-letter file has records; their record numbers are those of the sorted file, so it is kept
+     */
+    void importCompleted(boolean deadLetters) {
+        if (deadLetters && !keepSortedFile) {
+            logger.info("Sorted file " + sortedFilename + " kept, the record numbers of the dead-letter file refer to it.");
+        } else if (!keepSortedFile && !new File(sortedFilename).delete()) {
+            logger.warn("Unable to delete the sorted file " + sortedFilename);
+        }
+    }
+
+    private File writeRun(Path runDirectory, int runNumber, String[] columns, List<String[]> rows, Comparator<String[]> byBoqPath) throws IOException {
+        final long startNanos = System.nanoTime();
+        rows.sort(byBoqPath);
+        final File runFile = runDirectory.resolve("run-" + runNumber).toFile();
+        try (final RowSink out = runFormat.open(runFile.getPath())) {
+            out.start(columns);
+            for (String[] row : rows) {
+                out.write(row);
+            }
+            out.finish();
+        }
+        metrics.recordTimeSince("sort.run", startNanos);
+        logger.debug("Sort run " + runNumber + " written, " + rows.size() + " rows");
+        return runFile;
+    }
+
+    /**
+     * Merge the runs into the sorted file, in several passes if there are more than maxMergeRuns runs.
+     */
+    private void mergeRuns(Path runDirectory, List<File> runs, String[] columns, int boqPathColumn, File sortedFile) throws IOException {
+        final long startNanos = System.nanoTime();
+        List<File> pass = runs;
+        int mergedRuns = 0;
+        while (pass.size() > maxMergeRuns) {
+            //merge groups of consecutive runs, so the merged runs stay in file order
+            final List<File> next = new ArrayList<>();
+            for (int first = 0; first < pass.size(); first += maxMergeRuns) {
+                final List<File> group = pass.subList(first, Math.min(first + maxMergeRuns, pass.size()));
+                if (group.size() == 1) {
+                    next.add(group.get(0));
+                    continue;
+                }
+                final File mergedRun = runDirectory.resolve("merged-" + mergedRuns++).toFile();
+                try (final RowSink out = runFormat.open(mergedRun.getPath())) {
+                    merge(group, columns, boqPathColumn, out);
+                }
+                for (File run : group) {
+                    FileUtils.deleteQuietly(run);
+                }
+                next.add(mergedRun);
+            }
+            pass = next;
+            metrics.increment("sort.mergePasses");
+        }
+        try (final RowSink out = sortedFormat.open(sortedFile.getPath())) {
+            merge(pass, columns, boqPathColumn, out);
+        }
+        metrics.increment("sort.mergePasses");
+        metrics.recordTimeSince("sort.merge", startNanos);
+    }
+
+    /**
+     * k-way merge of sorted runs. Rows with the same boqPath are taken from the earlier run first, which keeps the sort stable.
+     */
+    private void merge(List<File> runs, String[] columns, int boqPathColumn, RowSink out) throws IOException {
+        final PriorityQueue<RunReader> heads = new PriorityQueue<>(runs.size(), (a, b) -> {
+            final int order = a.row[boqPathColumn].compareTo(b.row[boqPathColumn]);
+            return order != 0 ? order : Integer.compare(a.index, b.index);
+        });
+        final List<RunReader> readers = new ArrayList<>(runs.size());
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                final RunReader reader = new RunReader(runs.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+            }
+            out.start(columns);
+            while (!heads.isEmpty()) {
+                final RunReader reader = heads.poll();
+                out.write(reader.row);
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+            }
+            out.finish();
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private int boqPathColumn(String[] columns) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase("boqPath")) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The import file " + filename + " has no boqPath column.");
+    }
+
+    /**
+     * Reads a run file row by row into the same array
+     */
+    private static class RunReader implements Closeable {
+        final int index;                    //position of the run in file order
+        final String[] row;
+        private final InputStream in;
+        private final BinaryRowFormat.Reader reader;
+
+        RunReader(File runFile, int index) throws IOException {
+            this.index = index;
+            in = FileCompression.open(runFile.toPath(), RUN_BUFFER_SIZE);
+            try {
+                reader = new BinaryRowFormat.Reader(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            row = new String[reader.getColumnNames().length];
+        }
+
+        boolean next() throws IOException {
+            return reader.read(row);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the rows of the import file (CSV or binary), with the values trimmed as the import does
+     */
+    private static abstract class RowReader implements Closeable {
+        abstract String[] getColumnNames();
+
+        /**
+         * @return Returns the next row, null after the last row
+         */
+        abstract String[] read() throws IOException;
+
+        static RowReader open(Path file) throws IOException {
+            return BinaryRowFormat.isBinary(file) ? new BinaryRowReader(file) : new CsvRowReader(file);
+        }
+    }
+
+    private static class CsvRowReader extends RowReader {
+        private final CSVParser csvParser;
+        private final Iterator<CSVRecord> csvRecords;
+        private final String[] columnNames;
+
+        CsvRowReader(Path file) throws IOException {
+            csvParser = new CSVParser(new InputStreamReader(FileCompression.open(file, 64 * 1024), StandardCharsets.UTF_8), CsvRecordSource.IMPORT_FORMAT.withFirstRecordAsHeader());
+            columnNames = new String[csvParser.getHeaderMap().size()];
+            csvParser.getHeaderMap().forEach((name, index) -> columnNames[index] = name);
+            csvRecords = csvParser.iterator();
+        }
+
+        @Override
+        String[] getColumnNames() {
+            return columnNames;
+        }
+
+        @Override
+        String[] read() throws IOException {
+            if (!csvRecords.hasNext()) {
+                return null;
+            }
+            final CSVRecord csvRecord = csvRecords.next();
+            if (csvRecord.size() != columnNames.length) {
+                throw new IOException("Record " + csvRecord.getRecordNumber() + " has " + csvRecord.size() + " values, the header " + columnNames.length + ".");
+            }
+            final String[] row = new String[columnNames.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = csvRecord.get(i);
+            }
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            csvParser.close();
+        }
+    }
+
+    private static class BinaryRowReader extends RowReader {
+        private final InputStream in;
+        private final BinaryRowFormat.Reader reader;
+
+        BinaryRowReader(Path file) throws IOException {
+            in = FileCompression.open(file, 64 * 1024);
+            try {
+                reader = new BinaryRowFormat.Reader(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        String[] getColumnNames() {
+            return reader.getColumnNames();
+        }
+
+        @Override
+        String[] read() throws IOException {
+            final String[] row = new String[reader.getColumnNames().length];
+            if (!reader.read(row)) {
+                return null;
+            }
+            for (int i = 0; i < row.length; i++) {
+                row[i] = row[i].trim();
+            }
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
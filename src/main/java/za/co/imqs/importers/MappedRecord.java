@@ -0,0 +1,21 @@
+package za.co.imqs.importers;
+
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+
+/**
+ * A record of the import file mapped to a classification template, with the content hashes used by the checkpoint
+ * journal and the template state.
+ */
+class MappedRecord {
+    final long recordNumber;
+    final long recordHash;
+    final BoqClassificationTemplateDTO item;
+    final long templateHash;
+
+    MappedRecord(long recordNumber, long recordHash, BoqClassificationTemplateDTO item, long templateHash) {
+        this.recordNumber = recordNumber;
+        this.recordHash = recordHash;
+        this.item = item;
+        this.templateHash = templateHash;
+    }
+}
@@ -0,0 +1,13 @@
+package za.co.imqs.importers;
+
+import java.io.Closeable;
+
+/**
+ * Reads the records of the import file and maps them to classification templates.
+ */
+interface MappedRecordSource extends Closeable {
+    /**
+     * @return Returns the next record, null after the last record.
+     */
+    MappedRecord next() throws Exception;
+}
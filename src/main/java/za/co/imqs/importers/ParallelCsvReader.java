@@ -0,0 +1,302 @@
+package za.co.imqs.importers;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads and maps the records of the import file on a fork-join pool.
+ *
+ * The file is memory-mapped and scanned once up front for record boundaries, following the CSV quoting rules so that a
+ * line break inside a quoted value never splits a record. The scan cuts the file into chunks of about chunkSize bytes and
+ * counts the records in every chunk, so the record numbers are known before the chunks are parsed. The chunks are then
+ * parsed and mapped concurrently, at most 2 * threads chunks ahead of the consumer to bound the memory used.
+ *
+ * In ordered mode next() returns the records in file order (required by the checkpoint journal); otherwise the chunks
+ * are returned as they complete, and the records within a chunk are in file order.
+ */
+class ParallelCsvReader implements MappedRecordSource {
+    private static final int SCAN_WINDOW = 64 * 1024 * 1024;
+
+    //scanner states
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final boolean ordered;
+    private final RunMetrics metrics;
+    private final ForkJoinPool pool;
+    private final List<Chunk> chunks;
+    private final String[] header;
+    private final BoqTemplateMapper templateMapper;
+    private final int maxChunksInFlight;
+    private final Deque<Future<List<MappedRecord>>> orderedResults = new ArrayDeque<>();
+    private final CompletionService<List<MappedRecord>> unorderedResults;
+    private int nextChunk = 0;                  //next chunk to submit
+    private int chunksInFlight = 0;
+    private Iterator<MappedRecord> current = Collections.emptyIterator();
+
+    Logger logger = LoggerFactory.getLogger(ParallelCsvReader.class);
+
+    /**
+     * A range of the file that starts and ends on a record boundary
+     */
+    private static class Chunk {
+        final long start;
+        final long end;
+        final long firstRecordNumber;
+        final long recordCount;
+
+        Chunk(long start, long end, long firstRecordNumber, long recordCount) {
+            this.start = start;
+            this.end = end;
+            this.firstRecordNumber = firstRecordNumber;
+            this.recordCount = recordCount;
+        }
+    }
+
+    /**
+     * @param threads   Number of threads that parse and map the chunks
+     * @param chunkSize Approximate size of a chunk in bytes
+     * @param ordered   Return the records in file order
+     */
+    ParallelCsvReader(String filename, Map<String, String> fieldList, int threads, int chunkSize, boolean ordered, RunMetrics metrics) throws IOException {
+        this.filename = filename;
+        this.ordered = ordered;
+        this.metrics = metrics;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            final long startNanos = System.nanoTime();
+            chunks = new ArrayList<>();
+            final long headerEnd = scan(chunkSize, chunks);
+            metrics.recordTimeSince("csv.scan", startNanos);
+
+            //Resolve the columns of the fields once from the header
+            try (final CSVParser headerParser = parse(0, headerEnd, true)) {
+                //the header map ignores case and is sorted by name, the chunks are parsed with the header in column order
+                header = new String[headerParser.getHeaderMap().size()];
+                headerParser.getHeaderMap().forEach((name, index) -> header[index] = name);
+                templateMapper = new BoqTemplateMapper(fieldList, headerParser.getHeaderMap());
+            }
+            final long records = chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).firstRecordNumber + chunks.get(chunks.size() - 1).recordCount - 1;
+            logger.info("Parallel parsing of " + filename + " - " + records + " records in " + chunks.size() + " chunks, " + threads + " threads" +
+                        (ordered ? ", records in file order" : ""));
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+
+        pool = new ForkJoinPool(threads);
+        maxChunksInFlight = 2 * threads;
+        unorderedResults = ordered ? null : new ExecutorCompletionService<>(pool);
+    }
+
+    @Override
+    public MappedRecord next() throws Exception {
+        while (!current.hasNext()) {
+            submitChunks();
+            if (chunksInFlight == 0) {
+                return null;
+            }
+            final Future<List<MappedRecord>> result = ordered ? orderedResults.removeFirst() : unorderedResults.take();
+            chunksInFlight--;
+            try {
+                current = result.get().iterator();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        channel.close();
+    }
+
+    private void submitChunks() {
+        while (chunksInFlight < maxChunksInFlight && nextChunk < chunks.size()) {
+            final Chunk chunk = chunks.get(nextChunk++);
+            if (ordered) {
+                orderedResults.addLast(pool.submit(() -> parseChunk(chunk)));
+            } else {
+                unorderedResults.submit(() -> parseChunk(chunk));
+            }
+            chunksInFlight++;
+        }
+    }
+
+    private List<MappedRecord> parseChunk(Chunk chunk) throws IOException {
+        final List<MappedRecord> records = new ArrayList<>((int) chunk.recordCount);
+        try (final CSVParser csvParser = parse(chunk.start, chunk.end, false)) {
+            final Iterator<CSVRecord> csvRecords = csvParser.iterator();
+            while (true) {
+                final long recordNumber = chunk.firstRecordNumber + records.size();
+                final boolean sampled = RunMetrics.isSampled(recordNumber);
+                long startNanos = sampled ? System.nanoTime() : 0;
+                if (!csvRecords.hasNext()) {
+                    break;
+                }
+                final CSVRecord csvRecord = csvRecords.next();
+                if (sampled) {
+                    metrics.recordTimeSince("csv.parse", startNanos);
+                    startNanos = System.nanoTime();
+                }
+                records.add(CsvRecordSource.map(csvRecord, recordNumber, templateMapper));
+                if (sampled) {
+                    metrics.recordTimeSince("mapping", startNanos);
+                }
+            }
+        }
+        //The record numbers are only right if the parser agrees with the boundary scan
+        if (records.size() != chunk.recordCount) {
+            throw new IllegalStateException("Parallel parsing of " + filename + " failed, expected " + chunk.recordCount + " records from record " +
+                                            chunk.firstRecordNumber + " but parsed " + records.size() + ". Import the file without parallelParsing.");
+        }
+        return records;
+    }
+
+    private CSVParser parse(long start, long end, boolean isHeader) throws IOException {
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        final InputStreamReader reader = new InputStreamReader(new ByteBufferInputStream(buffer), StandardCharsets.UTF_8);
+        return new CSVParser(reader, isHeader ? CsvRecordSource.IMPORT_FORMAT.withFirstRecordAsHeader() : CsvRecordSource.IMPORT_FORMAT.withHeader(header));
+    }
+
+    /**
+     * Scan the file for record boundaries and cut it into chunks that start and end on a record boundary.
+     * Empty lines are skipped by the parser and are not counted as records.
+     *
+     * @return Returns the end of the header record
+     */
+    private long scan(int chunkSize, List<Chunk> chunks) throws IOException {
+        final long size = channel.size();
+        long headerEnd = -1;
+        long chunkStart = 0;
+        long chunkRecords = 0;
+        long nextRecordNumber = 1;
+        int state = FIELD_START;
+        boolean recordHasContent = false;
+
+        for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW) {
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(SCAN_WINDOW, size - windowStart));
+            final int limit = window.limit();
+            for (int i = 0; i < limit; i++) {
+                final byte b = window.get(i);
+                if (b == '\n' || b == '\r') {
+                    if (state == QUOTED) {
+                        continue;
+                    }
+                    state = FIELD_START;
+                    if (!recordHasContent) {
+                        continue;
+                    }
+                    recordHasContent = false;
+                    final long recordEnd = windowStart + i + 1;
+                    if (headerEnd < 0) {
+                        headerEnd = recordEnd;
+                        chunkStart = recordEnd;
+                        continue;
+                    }
+                    chunkRecords++;
+                    if (recordEnd - chunkStart >= chunkSize) {
+                        chunks.add(new Chunk(chunkStart, recordEnd, nextRecordNumber, chunkRecords));
+                        nextRecordNumber += chunkRecords;
+                        chunkStart = recordEnd;
+                        chunkRecords = 0;
+                    }
+                    continue;
+                }
+
+                recordHasContent = true;
+                switch (state) {
+                    case FIELD_START:
+                        state = b == '"' ? QUOTED : b == ',' ? FIELD_START : UNQUOTED;
+                        break;
+                    case UNQUOTED:
+                        if (b == ',') {
+                            state = FIELD_START;
+                        }
+                        break;
+                    case QUOTED:
+                        if (b == '"') {
+                            state = QUOTE_IN_QUOTED;
+                        }
+                        break;
+                    case QUOTE_IN_QUOTED:
+                        //a doubled quote is an escaped quote in the value
+                        state = b == '"' ? QUOTED : b == ',' ? FIELD_START : UNQUOTED;
+                        break;
+                }
+            }
+        }
+
+        //the last record need not end with a line break
+        if (recordHasContent) {
+            if (headerEnd < 0) {
+                headerEnd = size;
+                chunkStart = size;
+            } else {
+                chunkRecords++;
+            }
+        }
+        if (headerEnd < 0) {
+            throw new IllegalArgumentException("Import file " + filename + " has no header.");
+        }
+        if (chunkRecords > 0) {
+            chunks.add(new Chunk(chunkStart, size, nextRecordNumber, chunkRecords));
+        }
+        return headerEnd;
+    }
+
+    /**
+     * Reads a (memory-mapped) byte buffer as a stream
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package za.co.imqs.importers;
+
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.exporters.RowSink;
+import za.co.imqs.exporters.StreamingExportEngine;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.util.ContentHash;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the records to import straight from the result set of the export query, without the CSV file in between.
+ *
+ * The query runs with a forward-only, read-only cursor and the configured fetch size, like the export. The values are
+ * converted to text the way the export writes them (and the import reads them back: null is empty, values are trimmed),
+ * so a record maps to the same template, with the same content hashes, as the exported and imported CSV record.
+ * Optionally every row is also written to a tee sink, e.g. a CSV file for auditing.
+ */
+class ResultSetRecordSource implements MappedRecordSource {
+    private final CallableStatement statement;
+    private final ResultSet rs;
+    private final int columnCount;
+    private final Object[] row;
+    private final BoqTemplateMapper templateMapper;
+    private final RowSink tee;
+    private final RunMetrics metrics;
+    private long recordNumber = 0;
+    private boolean finished = false;
+
+    /**
+     * @param tee Receives every row as returned by the query, null for none. Closed with this source.
+     */
+    ResultSetRecordSource(Connection connection, String sql, int fetchSize, Map<String, String> fieldList, RowSink tee, RunMetrics metrics) throws SQLException, IOException {
+        this.tee = tee;
+        this.metrics = metrics;
+        statement = connection.prepareCall(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            statement.setFetchSize(fetchSize);
+            final long startNanos = System.nanoTime();
+            rs = StreamingExportEngine.executeForResultSet(statement);
+            metrics.recordTimeSince("db.query", startNanos);
+            rs.setFetchSize(fetchSize);
+
+            final ResultSetMetaData metaData = rs.getMetaData();
+            columnCount = metaData.getColumnCount();
+            final String[] columnNames = new String[columnCount];
+            final Map<String, Integer> headerMap = new HashMap<>();
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = metaData.getColumnLabel(i + 1);
+                headerMap.put(columnNames[i], i);
+            }
+            //Resolve the columns of the fields once from the result set
+            templateMapper = new BoqTemplateMapper(fieldList, headerMap);
+            row = new Object[columnCount];
+            if (tee != null) {
+                tee.start(columnNames);
+            }
+        } catch (Exception e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public MappedRecord next() throws SQLException, IOException {
+        if (finished) {
+            return null;
+        }
+        final boolean sampled = RunMetrics.isSampled(recordNumber);
+        long startNanos = sampled ? System.nanoTime() : 0;
+        if (!rs.next()) {
+            finished = true;
+            if (tee != null) {
+                tee.finish();
+            }
+            return null;
+        }
+        final String[] values = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            row[i] = rs.getObject(i + 1);
+            values[i] = row[i] == null ? "" : row[i].toString().trim();
+        }
+        if (sampled) {
+            metrics.recordTimeSince("db.fetch", startNanos);
+        }
+        recordNumber++;
+
+        if (tee != null) {
+            startNanos = sampled ? System.nanoTime() : 0;
+            tee.write(row);
+            if (sampled) {
+                metrics.recordTimeSince("file.write", startNanos);
+            }
+        }
+
+        startNanos = sampled ? System.nanoTime() : 0;
+        final long recordHash = new ContentHash().update(Arrays.asList(values)).value();
+        final BoqClassificationTemplateDTO item = templateMapper.map(values);
+        final MappedRecord record = new MappedRecord(recordNumber, recordHash, item, TemplateContentHash.of(item));
+        if (sampled) {
+            metrics.recordTimeSince("mapping", startNanos);
+        }
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            throw new IOException("Failed to close the export query. " + e.getMessage(), e);
+        } finally {
+            if (tee != null) {
+                tee.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package za.co.imqs.importers;
+
+import lombok.Getter;
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.util.ContentHash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of classification templates to submit to the template service, together with the range of import records it was
+ * built from, the content hash of those records and the record number and content hash of each template.
+ */
+
+public class TemplateBatch {
+    @Getter
+    private final List<BoqClassificationTemplateDTO> items;
+    @Getter
+    private long firstRecordNumber;
+    @Getter
+    private long lastRecordNumber;
+    private final ContentHash recordsHash = new ContentHash();
+    private long[] recordNumbers;
+    private long[] recordHashes;
+    private long[] templateHashes;
+
+    public TemplateBatch(int capacity) {
+        items = new ArrayList<>(capacity);
+        recordNumbers = new long[Math.max(1, capacity)];
+        recordHashes = new long[recordNumbers.length];
+        templateHashes = new long[recordNumbers.length];
+    }
+
+    /**
+     * @param recordHash   Content hash of the import record
+     * @param templateHash Content hash of the template (see TemplateContentHash)
+     */
+    public void add(BoqClassificationTemplateDTO item, long recordNumber, long recordHash, long templateHash) {
+        if (items.isEmpty()) {
+            firstRecordNumber = recordNumber;
+        }
+        if (items.size() == templateHashes.length) {
+            recordNumbers = Arrays.copyOf(recordNumbers, recordNumbers.length * 2);
+            recordHashes = Arrays.copyOf(recordHashes, recordHashes.length * 2);
+            templateHashes = Arrays.copyOf(templateHashes, templateHashes.length * 2);
+        }
+        recordNumbers[items.size()] = recordNumber;
+        recordHashes[items.size()] = recordHash;
+        templateHashes[items.size()] = templateHash;
+        items.add(item);
+        lastRecordNumber = recordNumber;
+        recordsHash.update(recordHash);
+    }
+
+    /**
+     * @return Returns a new batch with the templates from index from (inclusive) to index to (exclusive)
+     */
+    public TemplateBatch subBatch(int from, int to) {
+        final TemplateBatch batch = new TemplateBatch(to - from);
+        for (int i = from; i < to; i++) {
+            batch.add(items.get(i), recordNumbers[i], recordHashes[i], templateHashes[i]);
+        }
+        return batch;
+    }
+
+    /**
+     * @return Returns the number of the import record of the template at the index.
+     */
+    public long getRecordNumber(int index) {
+        return recordNumbers[index];
+    }
+
+    /**
+     * @return Returns the content hash of the template at the index.
+     */
+    public long getTemplateHash(int index) {
+        return templateHashes[index];
+    }
+
+    public long getContentHash() {
+        return recordsHash.value();
+    }
+
+    public int size() {
+        return items.size();
+    }
+}
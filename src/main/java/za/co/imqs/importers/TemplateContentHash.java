@@ -0,0 +1,92 @@
+package za.co.imqs.importers;
+
+import za.co.imqs.dto.BoqClassificationTemplateDTO;
+import za.co.imqs.dto.ClassificationItemDTO;
+import za.co.imqs.dto.TemplateDTO;
+import za.co.imqs.dto.TemplateFieldDTO;
+import za.co.imqs.util.ContentHash;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Content hash of a classification template over the same properties that are serialized to the template service,
+ * without serializing it.
+ */
+public final class TemplateContentHash {
+    private TemplateContentHash() {
+    }
+
+    /**
+     * @return Returns the hash of the template and its classification nodes.
+     */
+    public static long of(BoqClassificationTemplateDTO item) {
+        final ContentHash hash = new ContentHash();
+        hash.update(item.getClassifications().size());
+        for (ClassificationItemDTO node : item.getClassifications()) {
+            hash.update(node.getClassificationType())
+                .update(node.getClassificationNodeType())
+                .update(node.getCode())
+                .update(node.getParentPath())
+                .update(node.getDescription())
+                .update(String.valueOf(node.getActive()));
+        }
+        update(hash, item.getTemplate());
+        return hash.value();
+    }
+
+    /**
+     * @return Returns the hash of the template only.
+     */
+    public static long ofTemplate(TemplateDTO template) {
+        final ContentHash hash = new ContentHash();
+        update(hash, template);
+        return hash.value();
+    }
+
+    /**
+     * @return Returns the hash of the template as it is compared with the template stored by the template service (see
+     *         BoqVerifier): without the dates, which the service sets, and independent of the order of the fields.
+     */
+    public static long ofStoredTemplate(TemplateDTO template) {
+        final ContentHash hash = new ContentHash();
+        hash.update(template.getCode())
+            .update(template.getName())
+            .update(String.valueOf(template.getActive()))
+            .update(String.valueOf(template.getAllowDelete()));
+        final List<TemplateFieldDTO> fields = template.getFields() == null ? new ArrayList<>() : new ArrayList<>(template.getFields());
+        fields.sort(Comparator.comparing(TemplateFieldDTO::getFieldName, Comparator.nullsFirst(Comparator.naturalOrder())));
+        update(hash, fields);
+        return hash.value();
+    }
+
+    private static void update(ContentHash hash, TemplateDTO template) {
+        hash.update(template.getCode())
+            .update(template.getName())
+            .update(String.valueOf(template.getActive()))
+            .update(String.valueOf(template.getDateAdded()))
+            .update(String.valueOf(template.getDateDeactivated()))
+            .update(String.valueOf(template.getAllowDelete()));
+        update(hash, template.getFields());
+    }
+
+    private static void update(ContentHash hash, List<TemplateFieldDTO> fields) {
+        hash.update(fields.size());
+        for (TemplateFieldDTO field : fields) {
+            hash.update(field.getFieldName())
+                .update(field.getDefaultValue())
+                .update(field.getDataType())
+                .update(String.valueOf(field.getMandatory()))
+                .update(field.getValidation())
+                .update(field.getDescription());
+            final String[] options = field.getOptions();
+            hash.update(options == null ? -1 : options.length);
+            if (options != null) {
+                for (String option : options) {
+                    hash.update(option);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package za.co.imqs.jobs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.log4j.Appender;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.util.OwnerOnlyFile;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps one JVM running and runs the jobs submitted to it, so the JVM start, class loading and JIT compilation, the
+ * Jackson serializers and the database and template service connection pools (see SharedConnections) are paid for once
+ * instead of by every job. log4j is configured once, when the daemon starts.
+ *
+ * Jobs are submitted over a socket on the loopback address (ImqsAssetTools -c importBoq -f ... --daemon [port], see
+ * submit()) or as job files in the spool directory. A job is described as in a manifest (see ManifestRunner):
+ *
+ *   { "name": "ekurhuleni-import", "command": "importBoq", "config": "ekurhuleni\\boq-import-config.json", "resume": false }
+ *
+ * The job name is made unique with a sequence number ([name]-[n]) and the job logs to [logDirectory]/[name]-[n].log.
+ * At most maxConcurrentJobs jobs run at the same time, the others wait in submission order. Besides the job commands
+ * (exportBoq, importBoq, migrateBoq, verifyBoq) the daemon accepts "status" (the queued, running and last 100 finished
+ * jobs) and "shutdown" (stop accepting jobs, finish the queued and running jobs and exit).
+ *
+ * Socket: the client sends one request per connection as a single line of json and the daemon answers with lines of text:
+ *   QUEUED [name]-[n]          the job is accepted
+ *   ...                        the log of the job while it runs
+ *   RESULT {...}               the JobResult of the job as json, the last line
+ *   STATUS [...]               the answer to "status", SHUTDOWN to "shutdown" and ERROR [message] to a bad request
+ * A job keeps running if the client disconnects.
+ *
+ * Any local user can connect to the loopback address, so every request carries a token ("token" in the request json).
+ * The daemon generates a new token when it starts and writes it to the token file, which only the user running the
+ * daemon can read (tokenFile, default [user home]/.imqs-asset-tools/daemon-[port].token); submit() reads it from there.
+ * A request without the token is answered with ERROR. Jobs are therefore submitted by the user running the daemon.
+ *
+ * Spool directory: every [file].json in the directory is claimed by renaming it to [file].json.running and run (the job
+ * name defaults to [file], a relative config is relative to the spool directory). When the job is done its JobResult is
+ * written to [file].result.json and the job file is renamed to [file].json.done. Write job files under another name and
+ * rename them to .json, so the daemon never reads a half written file. The daemon runs every job file in the directory,
+ * so it refuses to start if the spool directory belongs to another user or other users can write to it (chmod 700).
+ *
+ *  daemon-config.json example:
+ *   {
+ *   	"port": 7070,
+ *   	"spoolDirectory": "D:\\Dump\\IMQS\\Spool",
+ *   	"pollIntervalMs": 2000,
+ *   	"maxConcurrentJobs": 4,
+ *   	"logDirectory": "D:\\Dump\\IMQS\\Logs\\daemon",
+ *   	"tokenFile": "D:\\IMQS\\daemon.token"
+ *   }
+ *
+ *  port 0 disables the socket and a missing spoolDirectory the spool directory; one of them is required.
+ */
+public class JobDaemon {
+    private static final int RECENT_RESULTS = 100;
+
+    private final ObjectMapper mapper;
+    private final int port;                             //0 to not accept jobs over a socket
+    private final File spoolDirectory;                  //null to not poll a spool directory
+    private final long pollIntervalMs;
+    private final int maxConcurrentJobs;
+    private final File logDirectory;
+    private final File tokenFile;
+    private volatile byte[] token;                      //of the running daemon, requests over the socket must carry it
+    private final AtomicLong jobCount = new AtomicLong();
+    private final Map<String, JobResult> activeJobs = new LinkedHashMap<>();      //queued and running jobs by name, guarded by itself
+    private final Deque<JobResult> recentResults = new ArrayDeque<>();           //latest first, guarded by activeJobs
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+    private volatile ServerSocket serverSocket;
+    private ExecutorService jobExecutor;
+    private JobLauncher launcher;
+
+    Logger logger = LoggerFactory.getLogger(JobDaemon.class);
+
+    /**
+     * A queued job
+     */
+    private static class DaemonJob {
+        final JobResult result = new JobResult();
+        final File configFile;
+        final boolean resume;
+
+        DaemonJob(File configFile, boolean resume) {
+            this.configFile = configFile;
+            this.resume = resume;
+        }
+    }
+
+    public JobDaemon(String configFilename) throws Exception {
+        this(readConfig(configFilename), new File(configFilename).getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * @param config    Daemon config, see above
+     * @param configDir Directory of the config, the default logDirectory
+     */
+    public JobDaemon(JsonNode config, File configDir) {
+        mapper = new ObjectMapper();
+        port = config.path("port").asInt(7070);
+        spoolDirectory = config.hasNonNull("spoolDirectory") ? new File(config.get("spoolDirectory").asText()) : null;
+        pollIntervalMs = config.path("pollIntervalMs").asLong(2000);
+        maxConcurrentJobs = config.path("maxConcurrentJobs").asInt(Runtime.getRuntime().availableProcessors());
+        logDirectory = config.hasNonNull("logDirectory") ? new File(config.get("logDirectory").asText()) : configDir;
+        tokenFile = tokenFile(config);
+        if (port <= 0 && spoolDirectory == null) {
+            throw new IllegalArgumentException("The daemon needs a port or a spoolDirectory to accept jobs.");
+        }
+    }
+
+    /**
+     * @return Returns the port of the daemon in the daemon config, to submit requests to it
+     */
+    public static int readPort(String configFilename) throws IOException {
+        return readConfig(configFilename).path("port").asInt(7070);
+    }
+
+    /**
+     * @return Returns the token file of the daemon in the daemon config, to submit requests to it
+     */
+    public static File readTokenFile(String configFilename) throws IOException {
+        return tokenFile(readConfig(configFilename));
+    }
+
+    /**
+     * @return Returns the token file of a daemon listening on the port without a tokenFile in its config
+     */
+    public static File defaultTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".imqs-asset-tools"), "daemon-" + port + ".token");
+    }
+
+    private static File tokenFile(JsonNode config) {
+        return config.hasNonNull("tokenFile") ? new File(config.get("tokenFile").asText()) : defaultTokenFile(config.path("port").asInt(7070));
+    }
+
+    /**
+     * Run the jobs submitted to the daemon until it is shut down. Returns when the queued and running jobs are done.
+     */
+    public void execute() throws Exception {
+        for (File directory : spoolDirectory != null ? Arrays.asList(logDirectory, spoolDirectory) : Collections.singletonList(logDirectory)) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("Unable to create the directory " + directory);
+            }
+        }
+        if (spoolDirectory != null) {
+            checkSpoolDirectoryOwner();
+        }
+        final AtomicInteger jobThreadCount = new AtomicInteger();
+        final AtomicInteger clientThreadCount = new AtomicInteger();
+        jobExecutor = Executors.newFixedThreadPool(maxConcurrentJobs, r -> new Thread(r, "daemon-job-" + jobThreadCount.incrementAndGet()));
+        final ExecutorService clientExecutor = Executors.newCachedThreadPool(r -> new Thread(r, "daemon-client-" + clientThreadCount.incrementAndGet()));
+        final ScheduledExecutorService spoolPoller = spoolDirectory != null ? Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "daemon-spool")) : null;
+        final SharedConnections connections = new SharedConnections(mapper);
+        launcher = new JobLauncher(connections);
+        try {
+            logger.info("Daemon started - max " + maxConcurrentJobs + " concurrent jobs" + (port > 0 ? ", listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port : "") +
+                        (spoolDirectory != null ? ", spool directory " + spoolDirectory : "") + ", logs in " + logDirectory);
+            if (spoolPoller != null) {
+                spoolPoller.scheduleWithFixedDelay(this::pollSpool, 0, pollIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            if (port > 0) {
+                writeToken();
+                serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+                while (shutdown.getCount() > 0) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        clientExecutor.execute(() -> serve(socket));
+                    } catch (SocketException e) {
+                        //the server socket is closed by shutdown()
+                        if (shutdown.getCount() > 0) {
+                            throw e;
+                        }
+                    }
+                }
+            } else {
+                shutdown.await();
+            }
+        } finally {
+            logger.info("Daemon shutting down, waiting for " + activeJobCount() + " queued and running jobs.");
+            closeServerSocket();
+            if (spoolPoller != null) {
+                spoolPoller.shutdown();
+                spoolPoller.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            jobExecutor.shutdown();
+            jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            //let the clients receive the results of their jobs
+            clientExecutor.shutdown();
+            clientExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            connections.close();
+            if (token != null && !tokenFile.delete()) {
+                logger.warn("Failed to delete the token file " + tokenFile);
+            }
+            logger.info("Daemon stopped.");
+        }
+    }
+
+    /**
+     * Stop accepting jobs. execute() returns when the queued and running jobs are done.
+     */
+    public void shutdown() {
+        shutdown.countDown();
+        closeServerSocket();
+    }
+
+    /**
+     * Send a request to the daemon on this machine and print its answer (for a job: the log and the result of the job).
+     *
+     * @param tokenFile      Token file of the daemon, see readTokenFile() and defaultTokenFile()
+     * @param command        Job command, "status" or "shutdown"
+     * @param configFilename Config of the job, relative to the working directory; null for status and shutdown
+     * @return Returns true if the request succeeded (for a job: the job succeeded)
+     */
+    public static boolean submit(int port, File tokenFile, String command, String configFilename, boolean resume, PrintStream out) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final ObjectNode request = mapper.createObjectNode();
+        final String token;
+        try {
+            token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+        } catch (IOException e) {
+            throw new IOException("Unable to read the daemon token file " + tokenFile + ". Is the daemon running, as this user? " + e.getMessage(), e);
+        }
+        request.put("token", token);
+        request.put("command", command);
+        if (configFilename != null) {
+            request.put("config", new File(configFilename).getAbsolutePath());
+            request.put("resume", resume);
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            writer.write(mapper.writeValueAsString(request));
+            writer.write('\n');
+            writer.flush();
+            boolean succeeded = false;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                out.println(line);
+                if (line.startsWith("RESULT ")) {
+                    succeeded = JobResult.SUCCEEDED.equals(mapper.readTree(line.substring("RESULT ".length())).path("status").asText());
+                } else if (line.startsWith("STATUS ") || line.equals("SHUTDOWN")) {
+                    succeeded = true;
+                }
+            }
+            return succeeded;
+        }
+    }
+
+    /**
+     * Answer the request of a socket client
+     */
+    private void serve(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)))) {
+            final String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+            try {
+                final JsonNode request = mapper.readTree(line);
+                if (!MessageDigest.isEqual(token, request.path("token").asText().getBytes(StandardCharsets.US_ASCII))) {
+                    logger.warn("Daemon client request rejected, it has no valid token.");
+                    out.println("ERROR The request has no valid token, read it from the token file of the daemon.");
+                    out.flush();
+                    return;
+                }
+                switch (request.path("command").asText()) {
+                    case "status":
+                        out.println("STATUS " + status());
+                        break;
+                    case "shutdown":
+                        logger.info("Shutdown requested by a client.");
+                        out.println("SHUTDOWN");
+                        shutdown();
+                        break;
+                    default: {
+                        final DaemonJob job = queue(request, null, request.path("command").asText());
+                        out.println("QUEUED " + job.result.getName());
+                        out.flush();
+                        //the log of the job is streamed to the client while it runs
+                        final WriterAppender listener = new WriterAppender(new PatternLayout(JobLauncher.LOG_PATTERN), out);
+                        listener.setName("daemon-client-" + job.result.getName());
+                        listener.setImmediateFlush(true);
+                        final JobResult result = start(job, listener, null).get();
+                        out.println("RESULT " + mapper.writeValueAsString(result));
+                    }
+                }
+            } catch (IOException | IllegalArgumentException | RejectedExecutionException e) {
+                out.println("ERROR " + e.getMessage());
+            }
+            out.flush();
+        } catch (Exception e) {
+            logger.warn("Daemon client request failed. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Claim and queue the job files in the spool directory
+     */
+    private void pollSpool() {
+        if (shutdown.getCount() == 0) {
+            return;
+        }
+        final File[] files = spoolDirectory.listFiles((dir, name) -> name.endsWith(".json") && !name.endsWith(".result.json"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            final String name = file.getName().substring(0, file.getName().length() - ".json".length());
+            final File claimed = new File(file.getPath() + ".running");
+            try {
+                Files.move(file.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                //claimed by another daemon
+                continue;
+            }
+            try {
+                final JsonNode request = mapper.readTree(claimed);
+                switch (request.path("command").asText()) {
+                    case "status":
+                        writeSpoolResult(claimed, name, mapper.readTree(status()));
+                        break;
+                    case "shutdown":
+                        logger.info("Shutdown requested by spool file " + file);
+                        writeSpoolResult(claimed, name, mapper.createObjectNode().put("status", "SHUTDOWN"));
+                        shutdown();
+                        return;
+                    default:
+                        start(queue(request, spoolDirectory, name), null, result -> writeSpoolResult(claimed, name, mapper.valueToTree(result)));
+                }
+            } catch (Exception e) {
+                logger.error("Spool file " + file + " rejected. " + e.getMessage());
+                final JobResult result = new JobResult();
+                result.setName(name);
+                result.setConfig(file.getPath());
+                result.setStatus(JobResult.FAILED);
+                result.setError(e.getMessage());
+                writeSpoolResult(claimed, name, mapper.valueToTree(result));
+            }
+        }
+    }
+
+    /**
+     * Register a new job as queued
+     *
+     * @param baseDirectory Directory a relative config filename is relative to, null for the working directory
+     */
+    private DaemonJob queue(JsonNode request, File baseDirectory, String defaultName) {
+        final String command = request.path("command").asText();
+        if (!JobLauncher.COMMANDS.contains(command)) {
+            throw new IllegalArgumentException("Unknown command '" + command + "'.");
+        }
+        if (!request.hasNonNull("config")) {
+            throw new IllegalArgumentException("The job has no config.");
+        }
+        File configFile = new File(request.get("config").asText());
+        if (!configFile.isAbsolute() && baseDirectory != null) {
+            configFile = new File(baseDirectory, configFile.getPath());
+        }
+        final DaemonJob job = new DaemonJob(configFile, request.path("resume").asBoolean(false));
+        job.result.setName(request.path("name").asText(defaultName) + "-" + jobCount.incrementAndGet());
+        job.result.setCommand(command);
+        job.result.setConfig(configFile.getPath());
+        synchronized (activeJobs) {
+            job.result.setStatus(JobResult.QUEUED);
+            activeJobs.put(job.result.getName(), job.result);
+        }
+        logger.info("Job " + job.result.getName() + " queued - " + command + " " + configFile + (job.resume ? " --resume" : ""));
+        return job;
+    }
+
+    /**
+     * Run the job on a job thread when one is free
+     *
+     * @param listener Also receives the log of the job, null for none
+     * @param whenDone Called with the result when the job is done, null for none
+     */
+    private Future<JobResult> start(DaemonJob job, Appender listener, Consumer<JobResult> whenDone) {
+        try {
+            return jobExecutor.submit(() -> {
+                final JobResult result = run(job, listener);
+                if (whenDone != null) {
+                    whenDone.accept(result);
+                }
+                return result;
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (activeJobs) {
+                activeJobs.remove(job.result.getName());
+            }
+            throw new RejectedExecutionException("The daemon is shutting down, job " + job.result.getName() + " was not run.", e);
+        }
+    }
+
+    private JobResult run(DaemonJob job, Appender listener) {
+        final JobResult result = job.result;
+        synchronized (activeJobs) {
+            result.setStatus(JobResult.RUNNING);
+        }
+        boolean succeeded = false;
+        try {
+            //the config is read when the job starts, so a job always runs with the current config
+            final JsonNode config = mapper.readTree(job.configFile);
+            succeeded = launcher.run(result, config, job.resume, new File(logDirectory, result.getName() + ".log"), listener);
+        } catch (Exception e) {
+            logger.error("Job " + result.getName() + " failed, unable to read the config " + job.configFile + ". " + e.getMessage(), e);
+            result.setError("Unable to read the config. " + e.getMessage());
+        }
+        synchronized (activeJobs) {
+            result.setStatus(succeeded ? JobResult.SUCCEEDED : JobResult.FAILED);
+            activeJobs.remove(result.getName());
+            recentResults.addFirst(result);
+            while (recentResults.size() > RECENT_RESULTS) {
+                recentResults.removeLast();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Returns the queued, running and recent jobs as a json array
+     */
+    private String status() throws IOException {
+        synchronized (activeJobs) {
+            final List<JobResult> jobs = new ArrayList<>(activeJobs.values());
+            jobs.addAll(recentResults);
+            return mapper.writeValueAsString(jobs);
+        }
+    }
+
+    private int activeJobCount() {
+        synchronized (activeJobs) {
+            return activeJobs.size();
+        }
+    }
+
+    /**
+     * Write the result of a spool file to [name].result.json and rename the spool file to [name].json.done
+     */
+    private void writeSpoolResult(File claimed, String name, JsonNode result) {
+        final Path resultFile = new File(spoolDirectory, name + ".result.json").toPath();
+        final Path temp = new File(spoolDirectory, name + ".result.json.tmp").toPath();
+        try {
+            Files.write(temp, mapper.writeValueAsBytes(result));
+            Files.move(temp, resultFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(claimed.toPath(), new File(spoolDirectory, name + ".json.done").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Failed to write the result of spool file " + claimed + ". " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Generate the token of this run and write it to the token file, readable by the user running the daemon only
+     */
+    private void writeToken() throws IOException {
+        final byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        final File directory = tokenFile.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create the directory " + directory);
+        }
+        //the file is restricted before the token is written to it
+        final Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        OwnerOnlyFile.create(path);
+        Files.write(path, hex.toString().getBytes(StandardCharsets.US_ASCII));
+        token = hex.toString().getBytes(StandardCharsets.US_ASCII);
+        logger.info("Daemon token written to " + tokenFile);
+    }
+
+    /**
+     * Refuse a spool directory other users can put job files in, the daemon would run them as its own user
+     */
+    private void checkSpoolDirectoryOwner() throws IOException {
+        final Path path = spoolDirectory.toPath();
+        final UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        final PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (posix == null) {
+            //the ACLs of a Windows directory are inherited, the owner check is all that is portable
+            if (!user.equals(Files.getOwner(path))) {
+                throw new IllegalArgumentException("The spool directory " + spoolDirectory + " belongs to " + Files.getOwner(path).getName() + ", not to the user running the daemon.");
+            }
+            return;
+        }
+        final PosixFileAttributes attributes = posix.readAttributes();
+        if (!user.equals(attributes.owner())) {
+            throw new IllegalArgumentException("The spool directory " + spoolDirectory + " belongs to " + attributes.owner().getName() + ", not to the user running the daemon.");
+        }
+        if (attributes.permissions().contains(PosixFilePermission.GROUP_WRITE) || attributes.permissions().contains(PosixFilePermission.OTHERS_WRITE)) {
+            throw new IllegalArgumentException("Other users can write to the spool directory " + spoolDirectory + ", restrict it to the user running the daemon (chmod 700).");
+        }
+    }
+
+    private void closeServerSocket() {
+        final ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the daemon socket. " + e.getMessage());
+            }
+        }
+    }
+
+    private static JsonNode readConfig(String configFilename) throws IOException {
+        return new ObjectMapper().readTree(new File(configFilename));
+    }
+}
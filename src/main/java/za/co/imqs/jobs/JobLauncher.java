@@ -0,0 +1,130 @@
+package za.co.imqs.jobs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.log4j.Appender;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.PatternLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import za.co.imqs.exporters.BoqExporter;
+import za.co.imqs.importers.BoqImporter;
+import za.co.imqs.importers.BoqMigrator;
+import za.co.imqs.importers.BoqVerifier;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs one job (exportBoq, importBoq, migrateBoq or verifyBoq) with the connection pools shared by all the jobs, for the
+ * manifest runner and the daemon.
+ *
+ * The job logs to its own file as well as to the log4j appenders of the application; the job name is in the "job" MDC
+ * entry. The start time, duration, last error and run metrics counters of the job are recorded in its JobResult.
+ */
+class JobLauncher {
+    static final List<String> COMMANDS = Collections.unmodifiableList(Arrays.asList("exportBoq", "importBoq", "migrateBoq", "verifyBoq"));
+    static final String LOG_PATTERN = "%-7p %d [%t] %c %x - %m%n";
+
+    private final SharedConnections connections;
+
+    Logger logger = LoggerFactory.getLogger(JobLauncher.class);
+
+    JobLauncher(SharedConnections connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Run the job on the calling thread. The status of the result is left to the caller.
+     *
+     * @param result   Name, command and config filename of the job; receives the outcome
+     * @param config   Config of the job
+     * @param logFile  Log file of the job, overwritten
+     * @param listener Also receives the log of the job (e.g. a daemon client), null for none
+     * @return Returns true if the job completed
+     */
+    boolean run(JobResult result, JsonNode config, boolean resume, File logFile, Appender listener) {
+        final String name = result.getName();
+        final JobLogFilter logFilter = new JobLogFilter(name);
+        FileAppender appender = null;
+        MDC.put(JobLogFilter.MDC_KEY, name);
+        final long startMillis = System.currentTimeMillis();
+        result.setStartTime(Instant.ofEpochMilli(startMillis).toString());
+        result.setLogFile(logFile.getPath());
+        boolean succeeded = false;
+        try {
+            if (listener != null) {
+                listener.addFilter(new JobLogFilter(name));
+                org.apache.log4j.Logger.getRootLogger().addAppender(listener);
+            }
+            appender = new FileAppender(new PatternLayout(LOG_PATTERN), logFile.getPath(), false);
+            appender.setName("job-" + name);
+            appender.addFilter(logFilter);
+            org.apache.log4j.Logger.getRootLogger().addAppender(appender);
+
+            logger.info("Job " + name + " started - " + result.getCommand() + " " + result.getConfig() + (resume ? " --resume" : ""));
+            succeeded = execute(result, config, resume);
+        } catch (Throwable e) {
+            logger.error("Job " + name + " failed. " + e.getMessage(), e);
+        } finally {
+            result.setElapsedMs(System.currentTimeMillis() - startMillis);
+            logger.info("Job " + name + " " + (succeeded ? JobResult.SUCCEEDED : JobResult.FAILED) + " in " + result.getElapsedMs() / 1000 + "s");
+            if (!succeeded) {
+                result.setError(logFilter.getLastError());
+            }
+            readCounters(result);
+            if (appender != null) {
+                org.apache.log4j.Logger.getRootLogger().removeAppender(appender);
+                appender.close();
+            }
+            if (listener != null) {
+                org.apache.log4j.Logger.getRootLogger().removeAppender(listener);
+            }
+            MDC.remove(JobLogFilter.MDC_KEY);
+        }
+        return succeeded;
+    }
+
+    /**
+     * @return Returns true if the job completed
+     */
+    private boolean execute(JobResult result, JsonNode config, boolean resume) throws Exception {
+        switch (result.getCommand()) {
+            case "exportBoq": {
+                final BoqExporter exporter = new BoqExporter(config, connections);
+                result.setMetricsFile(exporter.getMetricsFilename());
+                return exporter.execute();
+            }
+            case "importBoq": {
+                final BoqImporter importer = new BoqImporter(config, resume, connections);
+                result.setMetricsFile(importer.getMetricsFilename());
+                return importer.execute();
+            }
+            case "migrateBoq": {
+                final BoqMigrator migrator = new BoqMigrator(config, resume, connections);
+                result.setMetricsFile(migrator.getMetricsFilename());
+                return migrator.execute();
+            }
+            case "verifyBoq": {
+                final BoqVerifier verifier = new BoqVerifier(config, connections);
+                result.setMetricsFile(verifier.getMetricsFilename());
+                return verifier.execute();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown command " + result.getCommand());
+        }
+    }
+
+    private void readCounters(JobResult result) {
+        if (result.getMetricsFile() != null && new File(result.getMetricsFile()).isFile()) {
+            try {
+                result.setCounters(connections.getMapper().readTree(new File(result.getMetricsFile())).path("counters"));
+            } catch (Exception e) {
+                logger.warn("Unable to read the run metrics " + result.getMetricsFile() + ". " + e.getMessage());
+            }
+        }
+    }
+}
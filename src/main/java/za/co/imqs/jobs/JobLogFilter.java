@@ -0,0 +1,36 @@
+package za.co.imqs.jobs;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Passes only the log events of one job of a manifest to the log file of the job. The events of a job are marked with
+ * the job name in the "job" MDC entry, which the threads started by the job inherit.
+ * The last error logged by the job is kept for the manifest summary.
+ */
+class JobLogFilter extends Filter {
+    static final String MDC_KEY = "job";
+
+    private final String jobName;
+    private volatile String lastError;
+
+    JobLogFilter(String jobName) {
+        this.jobName = jobName;
+    }
+
+    @Override
+    public int decide(LoggingEvent event) {
+        if (!jobName.equals(event.getMDC(MDC_KEY))) {
+            return DENY;
+        }
+        if (event.getLevel().isGreaterOrEqual(Level.ERROR)) {
+            lastError = event.getRenderedMessage();
+        }
+        return NEUTRAL;
+    }
+
+    String getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,28 @@
+package za.co.imqs.jobs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.Data;
+
+/**
+ * Outcome of one job of a manifest, as reported in the manifest summary, or of a job of the daemon.
+ */
+
+@Data
+public class JobResult {
+    public static final String SUCCEEDED = "SUCCEEDED";
+    public static final String FAILED = "FAILED";
+    public static final String SKIPPED = "SKIPPED";        //not run because a job it depends on did not succeed
+    public static final String QUEUED = "QUEUED";          //daemon job waiting for a free job thread
+    public static final String RUNNING = "RUNNING";        //daemon job
+
+    private String name;
+    private String command;
+    private String config;
+    private String status;
+    private String startTime;
+    private long elapsedMs;
+    private String error;          //last error logged by the job, see the log file for the details
+    private String logFile;
+    private String metricsFile;
+    private JsonNode counters;     //counters of the run metrics of the job (rows, batches, retries, ...)
+}
@@ -0,0 +1,317 @@
+package za.co.imqs.jobs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the export, import, migrate and verify jobs listed in a manifest concurrently in one JVM.
+ *
+ * At most maxConcurrentJobs jobs run at the same time, and at most maxJobsPerTarget jobs (0 = no limit) per target. The
+ * targets of a job are the database server (jdbcUrl up to the first ';') and the template service (host:port of the
+ * baseURI) in its config, or the targets listed in the manifest. targetLimits overrides the limit of a target.
+ * A job only starts when the jobs in its dependsOn succeeded, and is skipped if one of them did not.
+ * Jobs that use the same database or template service share the connection pools (see SharedConnections).
+ *
+ * Every job logs to its own file, [logDirectory]/[name].log, as well as to the log4j appenders of the application; the
+ * job name is in the "job" MDC entry (%X{job} in a log4j pattern). A failed job does not stop the other jobs.
+ * When all the jobs are done a summary of the jobs (status, duration, error and run metrics counters) is logged and
+ * written to summaryFile ([manifest].summary.json by default).
+ *
+ *  boq-manifest.json example:
+ *   {
+ *   	"maxConcurrentJobs": 4,
+ *   	"maxJobsPerTarget": 2,
+ *   	"targetLimits": {
+ *   		"192.168.1.65:8668": 3
+ *   	},
+ *   	"logDirectory": "D:\\Dump\\IMQS\\Logs\\rollout",
+ *   	"summaryFile": "D:\\Dump\\IMQS\\Logs\\rollout\\summary.json",
+ *   	"jobs": [
+ *   		{ "name": "buffalo-city", "command": "migrateBoq", "config": "buffalo-city\\boq-migrate-config.json" },
+ *   		{ "name": "ekurhuleni-export", "command": "exportBoq", "config": "ekurhuleni\\boq-export-config.json" },
+ *   		{ "name": "ekurhuleni-import", "command": "importBoq", "config": "ekurhuleni\\boq-import-config.json",
+ *   		  "dependsOn": ["ekurhuleni-export"], "resume": false },
+ *   		{ "name": "ekurhuleni-verify", "command": "verifyBoq", "config": "ekurhuleni\\boq-verify-config.json",
+ *   		  "dependsOn": ["ekurhuleni-import"] }
+ *   	]
+ *   }
+ *
+ *  Relative config filenames are relative to the directory of the manifest.
+ */
+public class ManifestRunner {
+    private final ObjectMapper mapper;
+    private final String manifestFilename;
+    private final int maxConcurrentJobs;
+    private final int maxJobsPerTarget;                                   //0 = no limit
+    private final Map<String, Integer> targetLimits = new HashMap<>();
+    private final File logDirectory;
+    private final String summaryFilename;
+    private final List<Job> jobs = new ArrayList<>();                      //in manifest order
+    private final Map<String, Job> jobsByName = new HashMap<>();
+
+    //scheduler state, guarded by this
+    private final Map<String, Integer> runningPerTarget = new HashMap<>();
+    private int runningJobs = 0;
+
+    Logger logger = LoggerFactory.getLogger(ManifestRunner.class);
+
+    /**
+     * A job of the manifest
+     */
+    private static class Job {
+        final String name;
+        final String command;
+        final File configFile;
+        final boolean resume;
+        final List<String> dependsOn = new ArrayList<>();
+        final Set<String> targets = new TreeSet<>();
+        final JobResult result = new JobResult();
+        JsonNode config;                       //null if the config could not be read
+
+        Job(String name, String command, File configFile, boolean resume) {
+            this.name = name;
+            this.command = command;
+            this.configFile = configFile;
+            this.resume = resume;
+            result.setName(name);
+            result.setCommand(command);
+            result.setConfig(configFile.getPath());
+        }
+    }
+
+    public ManifestRunner(String manifestFilename) throws Exception {
+        this.manifestFilename = manifestFilename;
+        mapper = new ObjectMapper();
+        final File manifestFile = new File(manifestFilename);
+        final File manifestDir = manifestFile.getAbsoluteFile().getParentFile();
+        final JsonNode manifest = mapper.readTree(manifestFile);
+
+        maxConcurrentJobs = manifest.path("maxConcurrentJobs").asInt(Runtime.getRuntime().availableProcessors());
+        maxJobsPerTarget = manifest.path("maxJobsPerTarget").asInt(0);
+        manifest.path("targetLimits").fields().forEachRemaining(limit -> targetLimits.put(limit.getKey(), limit.getValue().asInt()));
+        logDirectory = manifest.hasNonNull("logDirectory") ? new File(manifest.get("logDirectory").asText()) : manifestDir;
+        summaryFilename = manifest.path("summaryFile").asText(manifestFilename + ".summary.json");
+
+        for (JsonNode jobConfig : manifest.path("jobs")) {
+            final String name = jobConfig.path("name").asText(null);
+            if (name == null || jobsByName.containsKey(name)) {
+                throw new IllegalArgumentException("Every job in the manifest needs a unique name. Job: " + jobConfig);
+            }
+            final String command = jobConfig.path("command").asText();
+            if (!JobLauncher.COMMANDS.contains(command)) {
+                throw new IllegalArgumentException("Unknown command '" + command + "' for job " + name + ".");
+            }
+            File configFile = new File(jobConfig.path("config").asText());
+            if (!configFile.isAbsolute()) {
+                configFile = new File(manifestDir, configFile.getPath());
+            }
+            final Job job = new Job(name, command, configFile, jobConfig.path("resume").asBoolean(false));
+            jobConfig.path("dependsOn").forEach(dependency -> job.dependsOn.add(dependency.asText()));
+            jobConfig.path("targets").forEach(target -> job.targets.add(target.asText()));
+            jobs.add(job);
+            jobsByName.put(name, job);
+        }
+        for (Job job : jobs) {
+            for (String dependency : job.dependsOn) {
+                if (!jobsByName.containsKey(dependency)) {
+                    throw new IllegalArgumentException("Job " + job.name + " depends on " + dependency + ", which is not in the manifest.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Run all the jobs and write the summary.
+     *
+     * @return Returns true if all the jobs succeeded
+     */
+    public boolean execute() throws Exception {
+        logger.info("Running " + jobs.size() + " jobs of manifest " + manifestFilename + ", max " + maxConcurrentJobs + " concurrent jobs" +
+                    (maxJobsPerTarget > 0 ? ", max " + maxJobsPerTarget + " jobs per target" : ""));
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create the log directory " + logDirectory);
+        }
+        for (Job job : jobs) {
+            readConfig(job);
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentJobs, r -> new Thread(r, "manifest-job-" + threadCount.incrementAndGet()));
+        try (final SharedConnections connections = new SharedConnections(mapper)) {
+            schedule(executor, new JobLauncher(connections));
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return writeSummary();
+    }
+
+    /**
+     * Start every job as soon as its dependencies succeeded and the concurrency limits allow, until all the jobs are done.
+     */
+    private synchronized void schedule(ExecutorService executor, JobLauncher launcher) throws InterruptedException {
+        final List<Job> pending = new ArrayList<>();
+        for (Job job : jobs) {
+            if (job.result.getStatus() == null) {
+                pending.add(job);
+            }
+        }
+        while (!pending.isEmpty() || runningJobs > 0) {
+            boolean progress = false;
+            for (Iterator<Job> it = pending.iterator(); it.hasNext(); ) {
+                final Job job = it.next();
+                final String failedDependency = failedDependency(job);
+                if (failedDependency != null) {
+                    skip(job, "Job " + failedDependency + " did not succeed.");
+                    it.remove();
+                    progress = true;
+                } else if (dependenciesSucceeded(job) && runningJobs < maxConcurrentJobs && targetsAvailable(job)) {
+                    it.remove();
+                    acquire(job);
+                    executor.execute(() -> run(job, launcher));
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                if (runningJobs == 0) {
+                    //only a dependency cycle leaves jobs that can never start
+                    pending.forEach(job -> skip(job, "Dependency cycle."));
+                    pending.clear();
+                } else {
+                    wait();
+                }
+            }
+        }
+    }
+
+    private void run(Job job, JobLauncher launcher) {
+        final boolean succeeded = launcher.run(job.result, job.config, job.resume, new File(logDirectory, job.name + ".log"), null);
+        //the status is set last, the scheduler starts the dependent jobs when it is set
+        release(job, succeeded ? JobResult.SUCCEEDED : JobResult.FAILED);
+    }
+
+    /**
+     * Read the config of the job and find its targets. A job whose config cannot be read fails without running.
+     */
+    private void readConfig(Job job) {
+        try {
+            job.config = mapper.readTree(job.configFile);
+            if (job.targets.isEmpty()) {
+                final JsonNode jdbcUrl = job.config.path("dbParams").path("jdbcUrl");
+                if (jdbcUrl.isTextual()) {
+                    job.targets.add(jdbcUrl.asText().split(";", 2)[0]);
+                }
+                final JsonNode baseURI = job.config.path("imqs-template-service").path("baseURI");
+                if (baseURI.isTextual()) {
+                    job.targets.add(URI.create(baseURI.asText()).getAuthority());
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Job " + job.name + " failed, unable to read the config " + job.configFile + ". " + e.getMessage(), e);
+            job.result.setStatus(JobResult.FAILED);
+            job.result.setError("Unable to read the config. " + e.getMessage());
+        }
+    }
+
+    private String failedDependency(Job job) {
+        for (String dependency : job.dependsOn) {
+            final String status = jobsByName.get(dependency).result.getStatus();
+            if (JobResult.FAILED.equals(status) || JobResult.SKIPPED.equals(status)) {
+                return dependency;
+            }
+        }
+        return null;
+    }
+
+    private boolean dependenciesSucceeded(Job job) {
+        for (String dependency : job.dependsOn) {
+            if (!JobResult.SUCCEEDED.equals(jobsByName.get(dependency).result.getStatus())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skip(Job job, String reason) {
+        logger.warn("Job " + job.name + " skipped. " + reason);
+        job.result.setStatus(JobResult.SKIPPED);
+        job.result.setError(reason);
+    }
+
+    private boolean targetsAvailable(Job job) {
+        for (String target : job.targets) {
+            final int limit = targetLimits.getOrDefault(target, maxJobsPerTarget);
+            if (limit > 0 && runningPerTarget.getOrDefault(target, 0) >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acquire(Job job) {
+        runningJobs++;
+        job.targets.forEach(target -> runningPerTarget.merge(target, 1, Integer::sum));
+    }
+
+    private synchronized void release(Job job, String status) {
+        job.result.setStatus(status);
+        runningJobs--;
+        job.targets.forEach(target -> runningPerTarget.merge(target, -1, Integer::sum));
+        notifyAll();
+    }
+
+    /**
+     * Log the summary and write it to the summary file.
+     *
+     * @return Returns true if all the jobs succeeded
+     */
+    private boolean writeSummary() {
+        final List<JobResult> results = new ArrayList<>();
+        int succeeded = 0;
+        logger.info("Manifest summary - " + manifestFilename);
+        for (Job job : jobs) {
+            final JobResult result = job.result;
+            results.add(result);
+            if (JobResult.SUCCEEDED.equals(result.getStatus())) {
+                succeeded++;
+            }
+            final JsonNode counters = result.getCounters();
+            final String rows = counters == null ? "" : "   rows: " + counters.path(rowsCounter(job.command)).asLong();
+            logger.info(String.format("  %-30s %-12s %-10s %6ds%s%s", job.name, job.command, result.getStatus(), result.getElapsedMs() / 1000, rows,
+                                      result.getError() != null ? "   " + result.getError() : ""));
+        }
+        logger.info(succeeded + " of " + jobs.size() + " jobs succeeded.");
+
+        try {
+            mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(new File(summaryFilename), results);
+        } catch (Exception e) {
+            logger.error("Failed to write the manifest summary to " + summaryFilename + ". " + e.getMessage(), e);
+        }
+        return succeeded == jobs.size();
+    }
+
+    /**
+     * @return Returns the run metrics counter with the rows of a job for the summary
+     */
+    private static String rowsCounter(String command) {
+        switch (command) {
+            case "exportBoq":
+                return "rows.exported";
+            case "verifyBoq":
+                return "verify.matched";
+            default:
+                return "rows.submitted";
+        }
+    }
+}
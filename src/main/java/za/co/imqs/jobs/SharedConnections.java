@@ -0,0 +1,80 @@
+package za.co.imqs.jobs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.database.Database;
+import za.co.imqs.services.TemplateServiceConnections;
+import za.co.imqs.services.TemplateServiceParams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Database and template service connection pools shared by the jobs of a manifest (see ManifestRunner) or of the daemon
+ * (see JobDaemon), and the ObjectMapper of the jobs, so its serializers are only built once.
+ *
+ * Jobs that use the same database (jdbcUrl and username) share one connection pool, and jobs that use the same template
+ * service (baseURI) share one http connection pool. The pool settings of the first job that asks for a pool are used.
+ * The jobs do not close the shared pools, they are closed by close() when all the jobs are done.
+ */
+public class SharedConnections implements Closeable {
+    private final ObjectMapper mapper;
+    private final Map<String, Database> databases = new HashMap<>();
+    private final Map<String, TemplateServiceConnections> templateServices = new HashMap<>();
+
+    Logger logger = LoggerFactory.getLogger(SharedConnections.class);
+
+    public SharedConnections(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @param dbParams "dbParams" config block of the job
+     * @return Returns the connection pool of the database
+     */
+    public synchronized Database getDatabase(JsonNode dbParams) throws Exception {
+        final String key = dbParams.path("jdbcUrl").asText() + " " + dbParams.path("username").asText();
+        Database db = databases.get(key);
+        if (db == null) {
+            db = new Database(dbParams.toString(), mapper);
+            databases.put(key, db);
+            logger.info("Shared connection pool for " + db.getParams().getJdbcUrl() + " (maxPoolSize " + db.getParams().getMaxPoolSize() + ")");
+        }
+        return db;
+    }
+
+    /**
+     * @return Returns the http connection pool of the template service
+     */
+    public synchronized TemplateServiceConnections getTemplateServiceConnections(TemplateServiceParams params) {
+        TemplateServiceConnections connections = templateServices.get(params.getBaseURI());
+        if (connections == null) {
+            connections = new TemplateServiceConnections(params);
+            templateServices.put(params.getBaseURI(), connections);
+            logger.info("Shared http connection pool for " + params.getBaseURI() + " (maxConnections " + params.getMaxConnections() + ")");
+        }
+        return connections;
+    }
+
+    @Override
+    public synchronized void close() {
+        databases.values().forEach(Database::close);
+        databases.clear();
+        for (TemplateServiceConnections connections : templateServices.values()) {
+            try {
+                connections.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the http connection pool. " + e.getMessage());
+            }
+        }
+        templateServices.clear();
+    }
+}
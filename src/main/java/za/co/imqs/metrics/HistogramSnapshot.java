@@ -0,0 +1,61 @@
+package za.co.imqs.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a histogram or timer at a point in time. Timer values are in milliseconds.
+ */
+public class HistogramSnapshot {
+    private final long count;
+    private final double total;
+    private final double mean;
+    private final double min;
+    private final double max;
+    private final double p50;
+    private final double p95;
+    private final double p99;
+
+    @ConstructorProperties({"count", "total", "mean", "min", "max", "p50", "p95", "p99"})
+    public HistogramSnapshot(long count, double total, double mean, double min, double max, double p50, double p95, double p99) {
+        this.count = count;
+        this.total = total;
+        this.mean = mean;
+        this.min = min;
+        this.max = max;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP95() {
+        return p95;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+}
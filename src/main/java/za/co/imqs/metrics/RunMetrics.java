@@ -0,0 +1,169 @@
+package za.co.imqs.metrics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers, histograms and counters of one import or export run.
+ *
+ * The metrics are published over JMX while the run is busy and can be written as a json summary when it is done.
+ * Timers record durations in nanoseconds and are reported in milliseconds. All methods are thread safe.
+ *
+ * Metric names used by the tools:
+ *   timers     csv.scan, csv.parse, binary.parse, mapping, json.serialize, http.login, http.tree, http.templates,
+ *              db.duplicateCheck, db.count, db.query, db.fetch, file.write, file.finish
+ *   histograms batch.size
+ *   counters   rows.read, rows.skipped, rows.unchanged, rows.submitted, rows.rejected, batches, bytes.sent, retries,
+ *              session.renewals, rows.exported, rows.duplicate, bytes.written
+ *
+ * The per row timers (csv.parse, binary.parse, mapping, db.fetch, file.write) are sampled: only every SAMPLE_ROWS-th row
+ * is timed, so the clock is not read for every row. Their count is the number of sampled rows and their total is not the
+ * total time of the stage; the mean and the percentiles are per row.
+ */
+public class RunMetrics implements RunMetricsMXBean, Closeable {
+    public static final int SAMPLE_ROWS = 1024;
+    private static final double NANOS_PER_MS = 1e6;
+
+    private final String name;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Histogram> timers = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    Logger logger = LoggerFactory.getLogger(RunMetrics.class);
+
+    /**
+     * @param name Name of the run, e.g. "importBoq boq_export.csv"
+     */
+    public RunMetrics(String name) {
+        this.name = name;
+        try {
+            objectName = new ObjectName("za.co.imqs:type=RunMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            //metrics still work without JMX, e.g. if a run with the same name is busy
+            logger.warn("Metrics for '" + name + "' are not published over JMX. " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * @param rowNumber Number of rows processed before this row
+     * @return Returns true if the per row timers are recorded for the row
+     */
+    public static boolean isSampled(long rowNumber) {
+        return (rowNumber & (SAMPLE_ROWS - 1)) == 0;
+    }
+
+    public void recordTime(String timer, long nanos) {
+        timers.computeIfAbsent(timer, k -> new Histogram()).record(nanos);
+    }
+
+    /**
+     * Record the time since startNanos (a System.nanoTime() value).
+     */
+    public void recordTimeSince(String timer, long startNanos) {
+        recordTime(timer, System.nanoTime() - startNanos);
+    }
+
+    public void record(String histogram, long value) {
+        histograms.computeIfAbsent(histogram, k -> new Histogram()).record(value);
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(value);
+    }
+
+    public long getCounter(String counter) {
+        final LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getElapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> result = new TreeMap<>();
+        counters.forEach((counter, adder) -> result.put(counter, adder.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getTimers() {
+        final Map<String, HistogramSnapshot> result = new TreeMap<>();
+        timers.forEach((timer, histogram) -> result.put(timer, histogram.snapshot(NANOS_PER_MS)));
+        return result;
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getHistograms() {
+        final Map<String, HistogramSnapshot> result = new TreeMap<>();
+        histograms.forEach((key, histogram) -> result.put(key, histogram.snapshot(1)));
+        return result;
+    }
+
+    /**
+     * @return Returns the summary written by writeSummary()
+     */
+    public Map<String, Object> summary() {
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("name", name);
+        summary.put("startTime", java.time.Instant.ofEpochMilli(startMillis).toString());
+        summary.put("elapsedMs", getElapsedMs());
+        summary.put("counters", getCounters());
+        summary.put("timersMs", getTimers());
+        summary.put("histograms", getHistograms());
+        return summary;
+    }
+
+    /**
+     * Write the summary of the run as json.
+     */
+    public void writeSummary(File file, ObjectMapper mapper) throws IOException {
+        mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(file, summary());
+        logger.info("Run metrics written to " + file);
+    }
+
+    /**
+     * Unpublish the metrics from JMX.
+     */
+    @Override
+    public void close() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.debug("Failed to unregister " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+}
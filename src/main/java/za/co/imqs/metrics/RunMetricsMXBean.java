@@ -0,0 +1,21 @@
+package za.co.imqs.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of a running import or export (za.co.imqs:type=RunMetrics,name=[run name]).
+ */
+public interface RunMetricsMXBean {
+    String getName();
+
+    long getElapsedMs();
+
+    Map<String, Long> getCounters();
+
+    /**
+     * @return Returns the timers, values in milliseconds
+     */
+    Map<String, HistogramSnapshot> getTimers();
+
+    Map<String, HistogramSnapshot> getHistograms();
+}
@@ -0,0 +1,248 @@
+package za.co.imqs.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.cookie.BrowserCompatSpec;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.exceptions.TemplateServiceException;
+import za.co.imqs.metrics.RunMetrics;
+import za.co.imqs.util.OwnerOnlyFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The login session of the template service requests, shared by all the threads of a client. Thread safe.
+ *
+ * The session is the set of cookies returned by the login (Set-Cookie headers), sent back in the Cookie header of every
+ * request. It expires at the earliest expiry (Expires or Max-Age) of its cookies, or sessionLifetimeMs after the login if
+ * the cookies do not expire.
+ *  - The session is renewed sessionRefreshMs before it expires. One thread logs in while the others keep using the
+ *    current session; only when the session has expired do they wait for the new one.
+ *  - A request rejected with 401 or 403 renews the session once (see renew()). Threads that were rejected with the same
+ *    session wait for a single login instead of each logging in.
+ *  - With sessionCacheFile the session is kept in a file between runs, so a run can start without logging in. The file
+ *    holds the session cookies (not the password) and is only readable by its owner (see OwnerOnlyFile); the session is
+ *    not cached where the file can not be restricted.
+ */
+public class AuthSession {
+    private final String authSvcURI;
+    private final String username;
+    private final String password;
+    private final long refreshMs;
+    private final long lifetimeMs;
+    private final File cacheFile;               /* null if the session is not kept between runs */
+    private final CloseableHttpClient httpClient;
+    private final ObjectMapper mapper;
+    private final RunMetrics metrics;
+    private final ReentrantLock loginLock = new ReentrantLock();
+    private volatile String cookie;             /* Cookie header value, null before the first login */
+    private volatile long expiresAtMs;          /* Long.MAX_VALUE if the session does not expire */
+
+    Logger logger = LoggerFactory.getLogger(AuthSession.class);
+
+    public AuthSession(TemplateServiceParams params, CloseableHttpClient httpClient, ObjectMapper mapper, RunMetrics metrics) {
+        this.authSvcURI = params.getAuthSvcURI();
+        this.username = params.getUsername();
+        this.password = params.getPassword();
+        this.refreshMs = params.getSessionRefreshMs();
+        this.lifetimeMs = params.getSessionLifetimeMs();
+        this.cacheFile = params.getSessionCacheFile() != null ? new File(params.getSessionCacheFile()) : null;
+        this.httpClient = httpClient;
+        this.mapper = mapper;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Use the cached session if it is still valid, else log in.
+     */
+    public void start() throws Exception {
+        if (cacheFile != null && loadCache()) {
+            logger.info("Using the cached session of " + username + " from " + cacheFile + ", valid until " + validUntil());
+            return;
+        }
+        login(null, null);
+    }
+
+    /**
+     * @return Returns the Cookie header value of the session, renewed if it is about to expire
+     */
+    public String getCookie() throws Exception {
+        final String current = cookie;
+        final long remainingMs = expiresAtMs - System.currentTimeMillis();
+        if (current != null && remainingMs > refreshMs) {
+            return current;
+        }
+        if (current != null && remainingMs > 0) {
+            //about to expire: one thread renews it, the others carry on with the current session
+            if (loginLock.tryLock()) {
+                try {
+                    if (cookie == current) {
+                        login(current, "the session expires at " + validUntil());
+                    }
+                } catch (Exception e) {
+                    //the current session is still valid, the next request tries again
+                    logger.warn("Failed to renew the session of " + username + " before it expires. " + e.getMessage());
+                } finally {
+                    loginLock.unlock();
+                }
+            }
+            return cookie;
+        }
+        return login(current, current != null ? "the session expired at " + validUntil() : null);
+    }
+
+    /**
+     * Called when a request with the session was rejected (401 or 403): log in again, unless another thread already did.
+     *
+     * @param rejectedCookie The Cookie header value of the rejected request
+     */
+    public void renew(String rejectedCookie) throws Exception {
+        login(rejectedCookie, "the template service rejected the session");
+    }
+
+    public static boolean isRejected(int statusCode) {
+        return statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN;
+    }
+
+    /**
+     * Log in, unless the session was already replaced since the caller read it.
+     *
+     * @param replacedCookie The session to replace, null if there is none
+     * @param reason         Why the session is renewed, for the log
+     * @return Returns the Cookie header value of the new session
+     */
+    private String login(String replacedCookie, String reason) throws Exception {
+        loginLock.lock();
+        try {
+            //compared by identity: a different instance is a session from a login by another thread
+            if (cookie != null && cookie != replacedCookie && expiresAtMs > System.currentTimeMillis()) {
+                return cookie;
+            }
+            if (reason != null) {
+                logger.info("Logging in again as " + username + ", " + reason + ".");
+                metrics.increment("session.renewals");
+            }
+            final HttpPost postRequest = new HttpPost(authSvcURI + "login");
+            postRequest.addHeader("Authorization", "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes()));
+            logger.info("Requesting Endpoint: " + authSvcURI);
+            final long startNanos = System.nanoTime();
+            try (CloseableHttpResponse response = httpClient.execute(postRequest)) {
+                final int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != HttpStatus.SC_OK) {
+                    final String responseBody = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+                    throw new TemplateServiceException("Login failed with " + response.getStatusLine() + ". Endpoint: " + authSvcURI, statusCode, -1, responseBody);
+                }
+                EntityUtils.consume(response.getEntity());
+                setCookies(response.getHeaders("Set-Cookie"));
+            } finally {
+                metrics.recordTimeSince("http.login", startNanos);
+            }
+            logger.info("Logged in as " + username + ", session valid until " + validUntil());
+            if (cacheFile != null) {
+                saveCache();
+            }
+            return cookie;
+        } catch (Exception e) {
+            logger.error(String.format("Authorisation failed for username %s. ", username) + " - " + e.getMessage(), e);
+            throw e;
+        } finally {
+            loginLock.unlock();
+        }
+    }
+
+    private void setCookies(Header[] setCookieHeaders) throws MalformedCookieException {
+        final URI uri = URI.create(authSvcURI);
+        final CookieOrigin origin = new CookieOrigin(uri.getHost(), uri.getPort() < 0 ? 80 : uri.getPort(),
+                                                     uri.getPath().isEmpty() ? "/" : uri.getPath(), "https".equalsIgnoreCase(uri.getScheme()));
+        final BrowserCompatSpec cookieSpec = new BrowserCompatSpec();
+        final List<String> pairs = new ArrayList<>();
+        long expiresAt = lifetimeMs > 0 ? System.currentTimeMillis() + lifetimeMs : Long.MAX_VALUE;
+        for (Header header : setCookieHeaders) {
+            for (Cookie parsed : cookieSpec.parse(header, origin)) {
+                pairs.add(parsed.getName() + "=" + parsed.getValue());
+                if (parsed.getExpiryDate() != null) {
+                    expiresAt = Math.min(expiresAt, parsed.getExpiryDate().getTime());
+                }
+            }
+        }
+        if (pairs.isEmpty()) {
+            throw new MalformedCookieException("The login response of " + authSvcURI + " has no session cookie.");
+        }
+        //the expiry first, so a thread that sees the new cookie never sees the old expiry
+        expiresAtMs = expiresAt;
+        cookie = String.join("; ", pairs);
+    }
+
+    private boolean loadCache() {
+        if (!cacheFile.exists()) {
+            return false;
+        }
+        try {
+            final JsonNode cache = mapper.readTree(cacheFile);
+            if (!authSvcURI.equals(cache.path("authSvcURI").asText()) || !username.equals(cache.path("username").asText())) {
+                return false;
+            }
+            final long expiresAt = cache.path("expiresAtMs").asLong();
+            if (expiresAt - System.currentTimeMillis() <= refreshMs || !cache.hasNonNull("cookie")) {
+                return false;
+            }
+            expiresAtMs = expiresAt;
+            cookie = cache.get("cookie").asText();
+            return true;
+        } catch (IOException e) {
+            logger.warn("Ignoring the session cache " + cacheFile + ". " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void saveCache() {
+        final ObjectNode cache = mapper.createObjectNode();
+        cache.put("authSvcURI", authSvcURI);
+        cache.put("username", username);
+        cache.put("cookie", cookie);
+        cache.put("expiresAtMs", expiresAtMs);
+        final Path target = cacheFile.toPath().toAbsolutePath();
+        final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.deleteIfExists(temp);
+            //the file is restricted before the cookie is written to it
+            OwnerOnlyFile.create(temp);
+            Files.write(temp, mapper.writeValueAsBytes(cache));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //the session still works, the next run logs in again
+            logger.warn("Failed to save the session cache " + cacheFile + ". " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                //the temp file is replaced by the next save
+            }
+        }
+    }
+
+    private String validUntil() {
+        return expiresAtMs == Long.MAX_VALUE ? "it is rejected" : new Date(expiresAtMs).toString();
+    }
+}
@@ -0,0 +1,144 @@
+package za.co.imqs.services;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Http entity that serializes a value as UTF-8 json straight to the connection output stream, optionally gzip compressed.
+ * The content length is unknown up front so the entity is sent with chunked transfer encoding.
+ * The value is serialized again on every writeTo() so the entity is repeatable as long as the value is not modified.
+ * The size on the wire and the serialization time of the last writeTo() are kept for the run metrics. The time spent in
+ * writes to the connection stream (waiting for the socket) is not part of the serialization time.
+ */
+public class JsonStreamEntity extends AbstractHttpEntity {
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final Object value;
+    private final ObjectMapper mapper;
+    private final boolean gzip;
+    private volatile long bytesWritten;
+    private volatile long serializeNanos;
+
+    /**
+     * Counts the bytes written to the connection stream and the time spent writing them
+     */
+    private static class ConnectionStream extends FilterOutputStream {
+        long byteCount;
+        long writeNanos;
+
+        ConnectionStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            final long startNanos = System.nanoTime();
+            out.write(b);
+            writeNanos += System.nanoTime() - startNanos;
+            byteCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long startNanos = System.nanoTime();
+            out.write(b, off, len);
+            writeNanos += System.nanoTime() - startNanos;
+            byteCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final long startNanos = System.nanoTime();
+            out.flush();
+            writeNanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void close() {
+            //the http client owns the connection stream
+        }
+    }
+
+    public JsonStreamEntity(Object value, ObjectMapper mapper, boolean gzip) {
+        this.value = value;
+        this.mapper = mapper;
+        this.gzip = gzip;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Only used when the content is requested as a stream (e.g. by a wire logger), the request itself is written with writeTo().
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    /**
+     * @return Returns the number of bytes (compressed if gzip) written by the last writeTo()
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return Returns the time taken by the last writeTo() to serialize (and compress) the value, without the time spent
+     * writing to the connection stream
+     */
+    public long getSerializeNanos() {
+        return serializeNanos;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        final long startNanos = System.nanoTime();
+        final ConnectionStream connectionStream = new ConnectionStream(outstream);
+        final GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(connectionStream, GZIP_BUFFER_SIZE) : null;
+
+        //Do not let the generator close the connection stream, the http client owns it
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(gzip ? gzipStream : connectionStream, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            mapper.writeValue(generator, value);
+        } finally {
+            //finishes the gzip stream and frees the native memory of its deflater; closing the connection stream is a no-op
+            if (gzipStream != null) {
+                gzipStream.close();
+            }
+        }
+        connectionStream.flush();
+        bytesWritten = connectionStream.byteCount;
+        serializeNanos = System.nanoTime() - startNanos - connectionStream.writeNanos;
+    }
+}
@@ -0,0 +1,96 @@
+package za.co.imqs.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import za.co.imqs.exceptions.TemplateServiceException;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries transient template service failures with jittered exponential backoff.
+ *
+ * Transient failures are i/o errors (timeouts, refused or dropped connections), 429 Too Many Requests and 5xx responses.
+ * The delay before retry n is a random value between 0 and min(maxBackoffMs, initialBackoffMs * 2^n) ("full jitter"),
+ * so concurrent submitters that fail together do not retry together. A Retry-After delay sent by the service is honoured,
+ * up to maxBackoffMs.
+ * Every retry is counted in the run metrics (retries).
+ */
+public class RetryPolicy {
+    /**
+     * A call to retry
+     */
+    @FunctionalInterface
+    public interface RetryableCall {
+        void call() throws Exception;
+    }
+
+    private final int maxRetries;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final RunMetrics metrics;
+
+    Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+    public RetryPolicy(int maxRetries, long initialBackoffMs, long maxBackoffMs, RunMetrics metrics) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param description Description of the call for the log
+     * @throws Exception The last failure if the call failed with a permanent failure or if the retries are exhausted.
+     */
+    public void execute(String description, RetryableCall call) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                call.call();
+                return;
+            } catch (Exception e) {
+                if (attempt >= maxRetries || !isTransient(e)) {
+                    throw e;
+                }
+                final long delayMs = backoffMs(attempt, e);
+                logger.warn(description + " failed (" + e.getMessage() + "). Retry " + (attempt + 1) + " of " + maxRetries + " in " + delayMs + " ms.");
+                metrics.increment("retries");
+                Thread.sleep(delayMs);
+            }
+        }
+    }
+
+    /**
+     * @return Returns true if the failure may succeed when retried.
+     */
+    public static boolean isTransient(Exception e) {
+        if (e instanceof TemplateServiceException) {
+            final int statusCode = ((TemplateServiceException) e).getStatusCode();
+            return statusCode == 429 || statusCode >= 500;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * @return Returns true if the failure indicates that the service is overloaded (timeouts, 429 and 5xx responses).
+     */
+    public static boolean isOverload(Exception e) {
+        if (e instanceof TemplateServiceException) {
+            final int statusCode = ((TemplateServiceException) e).getStatusCode();
+            return statusCode == 429 || statusCode >= 500;
+        }
+        //socket, connect and connection pool timeouts
+        return e instanceof InterruptedIOException;
+    }
+
+    private long backoffMs(int attempt, Exception e) {
+        if (e instanceof TemplateServiceException && ((TemplateServiceException) e).getRetryAfterMs() >= 0) {
+            //never wait longer than maxBackoffMs, whatever the server asks for
+            return Math.min(((TemplateServiceException) e).getRetryAfterMs(), maxBackoffMs);
+        }
+        final long ceiling = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,79 @@
+package za.co.imqs.services;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled, keep-alive http client for the template and auth services. Expired and idle connections are closed in the
+ * background. A TemplateServiceRestClient creates its own, or several clients of the same template service share one
+ * (see SharedConnections). The client keeps no cookies, so clients sharing it never see each other's login session.
+ * Call close() when done to release the pooled connections.
+ */
+public class TemplateServiceConnections implements Closeable {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledExecutorService idleConnectionEvictor;
+
+    public TemplateServiceConnections(TemplateServiceParams params) {
+        //setup the connection pool. We only talk to the template and auth service so the route limit is the same as the pool limit.
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(params.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(params.getMaxConnections());
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(params.getConnectTimeoutMs())
+                .setConnectionRequestTimeout(params.getConnectTimeoutMs())
+                .setSocketTimeout(params.getSocketTimeoutMs())
+                .build();
+
+        //No cookie store: the client may be shared by jobs with different users, and AuthSession sends the Cookie header itself
+        httpClient = HttpClients.custom()
+                .disableCookieManagement()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(params.getKeepAliveMs()))
+                .build();
+
+        //Close expired and idle connections in the background so we never lease a connection the server already dropped
+        final long idleEvictionMs = params.getIdleEvictionMs();
+        idleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "template-svc-idle-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        idleConnectionEvictor.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleEvictionMs, TimeUnit.MILLISECONDS);
+        }, idleEvictionMs, idleEvictionMs, TimeUnit.MILLISECONDS);
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    @Override
+    public void close() throws IOException {
+        idleConnectionEvictor.shutdownNow();
+        httpClient.close();
+    }
+
+    /**
+     * Use the keep-alive timeout sent by the server, capped at keepAliveMs. If the server does not send one, use keepAliveMs.
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long keepAliveMs) {
+        return (response, context) -> {
+            final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMs) : keepAliveMs;
+        };
+    }
+}
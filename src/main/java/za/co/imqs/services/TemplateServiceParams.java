@@ -0,0 +1,30 @@
+package za.co.imqs.services;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+/**
+ * Connection settings for the template and auth services, mapped from the "imqs-template-service" config block.
+ * Only baseURI, authSvcURI, username and password are mandatory; the HTTP transport settings have sensible defaults.
+ */
+
+@Data
+public class TemplateServiceParams {
+    @JsonProperty("baseURI")
+    private String baseURI;
+    @JsonProperty("authSvcURI")
+    private String authSvcURI;
+    private String username;
+    private String password;
+
+    private int maxConnections = 20;           //max pooled connections (also the per route limit, we only talk to one host)
+    private long keepAliveMs = 30000;          //max time an idle connection is kept alive if the server does not specify one
+    private int connectTimeoutMs = 10000;      //timeout for connecting and for leasing a connection from the pool
+    private int socketTimeoutMs = 120000;      //max inactivity between two data packets while waiting for a response
+    private long idleEvictionMs = 30000;       //interval of the idle connection eviction and max idle time of a pooled connection
+    private boolean compressRequests = false;  //gzip the template batches (Content-Encoding: gzip), the service must support compressed requests
+
+    private String sessionCacheFile;           //file the login session is kept in between runs, null to log in on every run
+    private long sessionRefreshMs = 60000;     //renew the session this long before it expires
+    private long sessionLifetimeMs = 0;        //lifetime of a session whose cookies do not expire, 0 if it lasts until it is rejected
+}
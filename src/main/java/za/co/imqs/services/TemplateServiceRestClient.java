@@ -1,34 +1,74 @@
 package za.co.imqs.services;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import za.co.imqs.dto.BoqClassificationTemplateDTO;
-
-import java.util.Arrays;
+import za.co.imqs.dto.TemplateDTO;
+import za.co.imqs.exceptions.TemplateServiceException;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Base64;
 
 /**
  * Created by gerhardv on 2020-02-06.
+ *
+ * All requests share one pooled, keep-alive http client (see TemplateServiceConnections). Call close() when done to release
+ * the pooled connections.
+ * The latency of every request is recorded per endpoint (http.login, http.tree, http.templates, http.templates.get) in the
+ * run metrics.
+ * The login session is renewed before it expires and when the service rejects it (see AuthSession).
  */
-public class TemplateServiceRestClient {
+public class TemplateServiceRestClient implements Closeable {
     private String baseURI;
-    private String authSession;
+    private final AuthSession session;
     private final ObjectMapper mapper;
+    private final boolean compressRequests;
+    private final TemplateServiceConnections ownConnections;   //null if the connection pool is shared
+    private final CloseableHttpClient httpClient;
+    private final RunMetrics metrics;
 
     Logger logger = LoggerFactory.getLogger(TemplateServiceRestClient.class);
 
-    public TemplateServiceRestClient(String baseURI, String authSvcURI, String username, String password, ObjectMapper mapper) throws Exception {
-        this.baseURI = baseURI;
+    public TemplateServiceRestClient(TemplateServiceParams params, ObjectMapper mapper, RunMetrics metrics) throws Exception {
+        this(params, null, mapper, metrics);
+    }
+
+    /**
+     * @param connections Connection pool shared with other clients of the same template service (not closed by close()),
+     *                    null to create one for this client
+     */
+    public TemplateServiceRestClient(TemplateServiceParams params, TemplateServiceConnections connections, ObjectMapper mapper, RunMetrics metrics) throws Exception {
+        this.baseURI = params.getBaseURI();
         this.mapper = mapper;
-        authSession = getAuthSession(authSvcURI, username, password);
+        this.metrics = metrics;
+        this.compressRequests = params.isCompressRequests();
+        ownConnections = connections == null ? new TemplateServiceConnections(params) : null;
+        httpClient = connections != null ? connections.getHttpClient() : ownConnections.getHttpClient();
+        session = new AuthSession(params, httpClient, mapper, metrics);
+
+        try {
+            session.start();
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
     }
 
     public void createBoqClassification(String boqClassification) throws Exception {
@@ -36,13 +76,12 @@ public class TemplateServiceRestClient {
 
         final String restEndpoint = baseURI + "tree";
 
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        try {
             //Define a put request
             HttpPut putRequest = new HttpPut(restEndpoint);
 
-            //Set the API media type and authToken in http content-type header
+            //Set the API media type in http content-type header, the session cookie is set by execute()
             putRequest.addHeader("content-type", "application/json");
-            putRequest.addHeader("Cookie", authSession);
 
             //Set the request post body
             StringEntity boqClass = new StringEntity(boqClassification);
@@ -50,12 +89,12 @@ public class TemplateServiceRestClient {
 
             //Send the request; It will immediately return the response in HttpResponse object if any
             logger.info("Requesting Endpoint: " + restEndpoint);
-            HttpResponse response = httpClient.execute(putRequest);
-
-            //verify the valid error code first
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != HttpStatus.SC_CREATED) {
-                throw new RuntimeException("CreateBoqClassification failed with HTTP error code : " + statusCode + ". Endpoint: " + restEndpoint);
+            final long startNanos = System.nanoTime();
+            try (CloseableHttpResponse response = execute(putRequest)) {
+                //verify the valid error code first
+                checkStatus(response, HttpStatus.SC_CREATED, "CreateBoqClassification", restEndpoint);
+            } finally {
+                metrics.recordTimeSince("http.tree", startNanos);
             }
         } catch (Exception e) {
             logger.error("Error creating BOQ Classification, requesting endpoint: " + restEndpoint + " - " + e.getMessage(), e);
@@ -69,51 +108,127 @@ public class TemplateServiceRestClient {
 
         final String restEndpoint = baseURI + "templates";
 
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        try {
             //Define a put request
             HttpPut putRequest = new HttpPut(restEndpoint);
 
-            //Set the API media type and authToken in http content-type header
+            //Set the API media type in http content-type header, the session cookie is set by execute()
             putRequest.addHeader("content-type", "application/json");
-            putRequest.addHeader("Cookie", authSession);
 
-            //Set the request post body
-            StringEntity boqTemplate = new StringEntity(mapper.writeValueAsString(boqList));
-            putRequest.setEntity(boqTemplate);
+            //Set the request post body. The batch is serialized straight to the connection while the request is sent.
+            final JsonStreamEntity entity = new JsonStreamEntity(boqList, mapper, compressRequests);
+            putRequest.setEntity(entity);
 
             //Send the request; It will immediately return the response in HttpResponse object if any
             logger.info("Requesting Endpoint: " + restEndpoint);
-            HttpResponse response = httpClient.execute(putRequest);
-
-            //verify the valid error code first
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != HttpStatus.SC_CREATED) {
-                throw new RuntimeException("SubmitClassificationTemplateBatch failed with HTTP error code : " + statusCode + ". Endpoint: " + restEndpoint);
+            final long startNanos = System.nanoTime();
+            try (CloseableHttpResponse response = execute(putRequest)) {
+                //verify the valid error code first
+                checkStatus(response, HttpStatus.SC_CREATED, "SubmitClassificationTemplateBatch", restEndpoint);
+            } finally {
+                metrics.recordTimeSince("http.templates", startNanos);
+                if (entity.getBytesWritten() > 0) {
+                    metrics.recordTime("json.serialize", entity.getSerializeNanos());
+                    metrics.add("bytes.sent", entity.getBytesWritten());
+                }
             }
         } catch (Exception e) {
-            logger.error("Error submitting Classification Template Batch. , requesting endpoint: " + restEndpoint + " - " + e.getMessage(), e);
+            //Not logged as an error here, the caller decides if the failure is retried or fatal
+            logger.debug("Error submitting Classification Template Batch. , requesting endpoint: " + restEndpoint + " - " + e.getMessage(), e);
             throw e;
         }
 
         logger.debug("submitClassificationTemplateBatch EXIT");
     }
 
-    public String getAuthSession(String authSvcURI, String username, String password) throws Exception {
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            HttpPost postRequest = new HttpPost(authSvcURI + "login");
-            postRequest.addHeader("Authorization", "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes()));
-            logger.info("Requesting Endpoint: " + authSvcURI);
-            HttpResponse response = httpClient.execute(postRequest);
+    /**
+     * Read a page of the templates stored by the template service. The service returns a json array of classification
+     * templates (or of templates); properties the tool does not know are ignored.
+     *
+     * @param pagePath Path of the page relative to the baseURI, e.g. templates?offset=0&limit=1000
+     * @return Returns the templates of the page, without the dates (dateAdded and dateDeactivated) set by the service
+     */
+    public List<TemplateDTO> getTemplatePage(String pagePath) throws Exception {
+        final String restEndpoint = baseURI + pagePath;
+        final HttpGet getRequest = new HttpGet(restEndpoint);
+        getRequest.addHeader("accept", "application/json");
+
+        logger.debug("Requesting Endpoint: " + restEndpoint);
+        final long startNanos = System.nanoTime();
+        final JsonNode page;
+        try (CloseableHttpResponse response = execute(getRequest)) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                checkStatus(response, HttpStatus.SC_OK, "GetTemplatePage", restEndpoint);
+            }
+            try (InputStream in = response.getEntity().getContent()) {
+                page = mapper.readTree(in);
+            }
+        } finally {
+            metrics.recordTimeSince("http.templates.get", startNanos);
+        }
+        if (page == null || !page.isArray()) {
+            throw new IOException("GetTemplatePage did not return a json array. Endpoint: " + restEndpoint);
+        }
 
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != HttpStatus.SC_OK) {
-                throw new RuntimeException(response.getStatusLine().toString());
+        final ObjectReader templateReader = mapper.readerFor(TemplateDTO.class).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        final List<TemplateDTO> templates = new ArrayList<>(page.size());
+        for (JsonNode element : page) {
+            final JsonNode template = element.has("template") ? element.get("template") : element;
+            if (template instanceof ObjectNode) {
+                //the dates are not compared, and not parsed in case the service writes them in another format
+                ((ObjectNode) template).remove("dateAdded");
+                ((ObjectNode) template).remove("dateDeactivated");
             }
+            templates.add(templateReader.readValue(template));
+        }
+        return templates;
+    }
 
-            return Arrays.toString(response.getHeaders("Set-Cookie"));
-        } catch (Exception e) {
-            logger.error(String.format("Authorisation failed for username %s. ", username) + " - " + e.getMessage(), e);
-            throw e;
+    /**
+     * Send the request with the session cookie. If the service rejects the session (401 or 403) the session is renewed
+     * once and the request is sent again, so the request entity must be repeatable.
+     */
+    private CloseableHttpResponse execute(HttpRequestBase request) throws Exception {
+        final String cookie = session.getCookie();
+        request.setHeader("Cookie", cookie);
+        final CloseableHttpResponse response = httpClient.execute(request);
+        if (!AuthSession.isRejected(response.getStatusLine().getStatusCode())) {
+            return response;
+        }
+        try {
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            response.close();
+        }
+        session.renew(cookie);
+        request.setHeader("Cookie", session.getCookie());
+        return httpClient.execute(request);
+    }
+
+    /**
+     * Consume the response so the connection is released back to the pool and throw a TemplateServiceException if the
+     * status code is not the expected one.
+     */
+    private void checkStatus(HttpResponse response, int expectedStatusCode, String operation, String restEndpoint) throws IOException {
+        final int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == expectedStatusCode) {
+            EntityUtils.consume(response.getEntity());
+            return;
+        }
+
+        final String responseBody = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+        long retryAfterMs = -1;
+        final Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null && retryAfter.getValue().trim().matches("\\d+")) {
+            retryAfterMs = Long.parseLong(retryAfter.getValue().trim()) * 1000;
+        }
+        throw new TemplateServiceException(operation + " failed with HTTP error code : " + statusCode + ". Endpoint: " + restEndpoint, statusCode, retryAfterMs, responseBody);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownConnections != null) {
+            ownConnections.close();
         }
     }
 }
@@ -0,0 +1,126 @@
+package za.co.imqs.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A small embedded key-value file mapping keys (e.g. boqPath) to the content hash of the row or template they identify,
+ * plus a few named string attributes (e.g. a watermark). Used to find out what changed since the previous run.
+ *
+ * The whole store is held in memory; save() writes it to a temp file that replaces the store file, so an interrupted save
+ * never leaves a corrupt store behind. The store may be updated concurrently.
+ *
+ * File format (DataOutputStream): magic, version, attribute count, (name, value)*, entry count, (key, hash)*
+ */
+public class HashStateStore {
+    private static final int MAGIC = 0x424f5148;     //"BOQH"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Map<String, Long> hashes = new ConcurrentHashMap<>();
+    private final Map<String, String> attributes = new ConcurrentHashMap<>();
+
+    Logger logger = LoggerFactory.getLogger(HashStateStore.class);
+
+    public HashStateStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the store from its file. A missing file is an empty store.
+     */
+    public HashStateStore load() throws IOException {
+        hashes.clear();
+        attributes.clear();
+        if (!file.exists()) {
+            logger.info("State store " + file + " does not exist yet, starting with an empty state.");
+            return this;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("File " + file + " is not a state store (or has an unsupported version).");
+            }
+            final int attributeCount = in.readInt();
+            for (int i = 0; i < attributeCount; i++) {
+                attributes.put(in.readUTF(), in.readUTF());
+            }
+            final int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                hashes.put(in.readUTF(), in.readLong());
+            }
+        }
+        logger.info("Loaded " + hashes.size() + " entries from state store " + file);
+        return this;
+    }
+
+    public void save() throws IOException {
+        final Path target = file.toPath().toAbsolutePath();
+        final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final Map<String, String> attributesCopy = new HashMap<>(attributes);
+            out.writeInt(attributesCopy.size());
+            for (Map.Entry<String, String> attribute : attributesCopy.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeUTF(attribute.getValue());
+            }
+            final Map<String, Long> hashesCopy = new HashMap<>(hashes);
+            out.writeInt(hashesCopy.size());
+            for (Map.Entry<String, Long> entry : hashesCopy.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Saved " + hashes.size() + " entries to state store " + file);
+    }
+
+    /**
+     * @return Returns the hash stored for the key, null if the key is not in the store.
+     */
+    public Long get(String key) {
+        return hashes.get(key);
+    }
+
+    public void put(String key, long hash) {
+        hashes.put(key, hash);
+    }
+
+    public void remove(String key) {
+        hashes.remove(key);
+    }
+
+    public Set<String> keys() {
+        return hashes.keySet();
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    public void setAttribute(String name, String value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
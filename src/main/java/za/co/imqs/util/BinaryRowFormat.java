@@ -0,0 +1,243 @@
+package za.co.imqs.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Compact binary format of the export file, an alternative to CSV (selected with "format": "binary" or the .boqbin
+ * extension, optionally compressed, see FileCompression).
+ *
+ *   header  "BOQR", version, column count and the column names
+ *   rows    one value per column, until the end of the file
+ *
+ * Every value is written with a type tag: integers as variable-length longs, decimals as unscaled value and scale,
+ * booleans in the tag, floating point numbers as their IEEE bits and all other values as UTF-8 text. Numbers are not
+ * formatted and parsed, and the text of every value read back is exactly the text the CSV export writes for it, so a
+ * record maps to the same template (with the same content hashes) from either format.
+ *
+ * A file without a header continues the rows of the file it is appended to (see PartitionedExporter).
+ */
+public final class BinaryRowFormat {
+    public static final String EXTENSION = ".boqbin";
+
+    private static final byte[] MAGIC = {'B', 'O', 'Q', 'R'};
+    private static final int VERSION = 1;
+
+    //value tags
+    private static final int NULL = 0;
+    private static final int TEXT = 1;
+    private static final int LONG = 2;
+    private static final int DECIMAL = 3;           //unscaled value as a long
+    private static final int BIG_DECIMAL = 4;       //unscaled value as two's complement bytes
+    private static final int TRUE = 5;
+    private static final int FALSE = 6;
+    private static final int DOUBLE = 7;
+    private static final int FLOAT = 8;
+
+    private BinaryRowFormat() {
+    }
+
+    /**
+     * @return Returns true if the file (after decompression) is in the binary format
+     */
+    public static boolean isBinary(Path file) throws IOException {
+        try (InputStream in = FileCompression.open(file, MAGIC.length)) {
+            final byte[] magic = new byte[MAGIC.length];
+            return IOUtils.read(in, magic) == MAGIC.length && Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    /**
+     * Writes the header and rows to a (buffered) output stream
+     */
+    public static class Writer {
+        private final DataOutputStream out;
+        private int columnCount = -1;
+
+        public Writer(OutputStream out) {
+            this.out = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+        }
+
+        /**
+         * @param writeHeader false to only write the rows, to append them to another file with the same columns
+         */
+        public void start(String[] columnNames, boolean writeHeader) throws IOException {
+            columnCount = columnNames.length;
+            if (writeHeader) {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                writeVarLong(columnNames.length);
+                for (String columnName : columnNames) {
+                    writeText(columnName);
+                }
+            }
+        }
+
+        public void write(Object[] row) throws IOException {
+            for (int i = 0; i < columnCount; i++) {
+                writeValue(row[i]);
+            }
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(LONG);
+                writeVarLong(zigZag(((Number) value).longValue()));
+            } else if (value instanceof BigDecimal) {
+                final BigDecimal decimal = (BigDecimal) value;
+                final BigInteger unscaled = decimal.unscaledValue();
+                if (unscaled.bitLength() < 64) {
+                    out.writeByte(DECIMAL);
+                    writeVarLong(zigZag(unscaled.longValue()));
+                } else {
+                    out.writeByte(BIG_DECIMAL);
+                    final byte[] bytes = unscaled.toByteArray();
+                    writeVarLong(bytes.length);
+                    out.write(bytes);
+                }
+                writeVarLong(zigZag(decimal.scale()));
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeLong(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeInt(Float.floatToRawIntBits((Float) value));
+            } else {
+                out.writeByte(TEXT);
+                writeText(value.toString());
+            }
+        }
+
+        private void writeText(String text) throws IOException {
+            final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    /**
+     * Reads the header and rows from a (buffered) input stream
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private final String[] columnNames;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+            final byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a binary BOQ file.");
+            }
+            final int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary BOQ file version " + version + ".");
+            }
+            columnNames = new String[(int) readVarLong()];
+            for (int i = 0; i < columnNames.length; i++) {
+                columnNames[i] = readText();
+            }
+        }
+
+        public String[] getColumnNames() {
+            return columnNames;
+        }
+
+        /**
+         * Read the next row as the text the CSV export writes for its values (empty for null).
+         *
+         * @return Returns false at the end of the file
+         */
+        public boolean read(String[] values) throws IOException {
+            for (int i = 0; i < columnNames.length; i++) {
+                final int tag = in.read();
+                if (tag < 0) {
+                    if (i == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Binary BOQ file ends in the middle of a row.");
+                }
+                values[i] = readValue(tag);
+            }
+            return true;
+        }
+
+        private String readValue(int tag) throws IOException {
+            switch (tag) {
+                case NULL:
+                    return "";
+                case TEXT:
+                    return readText();
+                case LONG:
+                    return Long.toString(unZigZag(readVarLong()));
+                case DECIMAL: {
+                    final long unscaled = unZigZag(readVarLong());
+                    return BigDecimal.valueOf(unscaled, (int) unZigZag(readVarLong())).toString();
+                }
+                case BIG_DECIMAL: {
+                    final byte[] bytes = new byte[(int) readVarLong()];
+                    in.readFully(bytes);
+                    return new BigDecimal(new BigInteger(bytes), (int) unZigZag(readVarLong())).toString();
+                }
+                case TRUE:
+                    return Boolean.TRUE.toString();
+                case FALSE:
+                    return Boolean.FALSE.toString();
+                case DOUBLE:
+                    return Double.toString(Double.longBitsToDouble(in.readLong()));
+                case FLOAT:
+                    return Float.toString(Float.intBitsToFloat(in.readInt()));
+                default:
+                    throw new IOException("Corrupt binary BOQ file, unknown value tag " + tag + ".");
+            }
+        }
+
+        private String readText() throws IOException {
+            final byte[] bytes = new byte[(int) readVarLong()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt binary BOQ file, variable-length number too long.");
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
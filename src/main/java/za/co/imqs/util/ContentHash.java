@@ -0,0 +1,59 @@
+package za.co.imqs.util;
+
+/**
+ * 64 bit FNV-1a hash used to detect changed content (import records, template state, export rows).
+ * Not a cryptographic hash; with 64 bits collisions are negligible for the row counts we deal with.
+ *
+ * Strings are hashed with their length first, so ("ab", "c") and ("a", "bc") hash differently.
+ */
+public final class ContentHash {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long NULL_MARKER = -1L;
+
+    private long hash = FNV_OFFSET_BASIS;
+
+    public ContentHash update(String value) {
+        if (value == null) {
+            return update(NULL_MARKER);
+        }
+        final int length = value.length();
+        update(length);
+        long h = hash;
+        for (int i = 0; i < length; i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        hash = h;
+        return this;
+    }
+
+    public ContentHash update(long value) {
+        long h = hash;
+        for (int i = 0; i < 8; i++) {
+            h ^= (value >>> (i * 8)) & 0xff;
+            h *= FNV_PRIME;
+        }
+        hash = h;
+        return this;
+    }
+
+    public ContentHash update(Iterable<String> values) {
+        for (String value : values) {
+            update(value);
+        }
+        return this;
+    }
+
+    public long value() {
+        return hash;
+    }
+
+    public static String toHex(long hash) {
+        return String.format("%016x", hash);
+    }
+
+    public static long fromHex(String hex) {
+        return Long.parseUnsignedLong(hex, 16);
+    }
+}
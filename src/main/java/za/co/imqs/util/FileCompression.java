@@ -0,0 +1,103 @@
+package za.co.imqs.util;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming compression of the export and import files.
+ *
+ * The compression of a file that is written is configured ("compression": "none", "gzip" or "lz4") or follows from the
+ * extension of the filename (.gz or .lz4). The compression of a file that is read is detected from its first bytes, so
+ * the extension does not matter. lz4 (frame format) compresses less than gzip but is several times faster on both ends.
+ *
+ * Compressed files may be concatenated: the result reads as the concatenation of the uncompressed content.
+ */
+public enum FileCompression {
+    NONE,
+    GZIP,
+    LZ4;
+
+    private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    private static final byte[] LZ4_MAGIC = {0x04, 0x22, 0x4d, 0x18};
+
+    /**
+     * @param name     Configured compression, null to use the extension of the filename
+     * @param filename File to write
+     */
+    public static FileCompression of(String name, String filename) {
+        if (name == null) {
+            final String lowerCaseName = filename.toLowerCase();
+            return lowerCaseName.endsWith(".gz") ? GZIP : lowerCaseName.endsWith(".lz4") ? LZ4 : NONE;
+        }
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown compression '" + name + "', use none, gzip or lz4.");
+        }
+    }
+
+    /**
+     * @return Returns the compression of the file, detected from its first bytes
+     */
+    public static FileCompression detect(Path file) throws IOException {
+        final byte[] magic = new byte[4];
+        final int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = IOUtils.read(in, magic);
+        }
+        if (length >= 2 && Arrays.equals(Arrays.copyOf(magic, 2), GZIP_MAGIC)) {
+            return GZIP;
+        }
+        if (length == 4 && Arrays.equals(magic, LZ4_MAGIC)) {
+            return LZ4;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return Returns the uncompressed content of the file, buffered
+     */
+    public static InputStream open(Path file, int bufferSize) throws IOException {
+        final FileCompression compression = detect(file);
+        final InputStream in = Files.newInputStream(file);
+        try {
+            return new BufferedInputStream(compression.decompress(in), bufferSize);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Returns a stream that compresses to out. Closing it finishes the compressed stream and closes out.
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, 64 * 1024);
+            case LZ4:
+                return new LZ4FrameOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, 64 * 1024);
+            case LZ4:
+                return new LZ4FrameInputStream(in);
+            default:
+                return in;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package za.co.imqs.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A set of 64 bit values (e.g. key hashes) held in direct memory outside the Java heap, 8 bytes per slot, so very large
+ * key sets neither need a large heap nor slow down the garbage collector.
+ *
+ * The set is split into segments selected by the top bits of the value. Each segment is an open addressing (linear
+ * probing) table that doubles when it is more than half full, so a resize only rehashes one segment. Direct memory is
+ * limited by -XX:MaxDirectMemorySize (the heap size by default).
+ *
+ * Not thread safe.
+ */
+public class OffHeapLongSet {
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int MIN_SEGMENT_CAPACITY = 1 << 10;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 27;    //1 GB of direct memory per segment
+    private static final long EMPTY = 0;
+    private static final long ZERO_REPLACEMENT = 0x9e3779b97f4a7c15L;
+
+    private final LongBuffer[] tables = new LongBuffer[SEGMENTS];
+    private final int[] sizes = new int[SEGMENTS];
+    private long size;
+
+    /**
+     * @param expectedSize Number of values the set is sized for initially; it grows as needed
+     */
+    public OffHeapLongSet(long expectedSize) {
+        final long perSegment = Math.max(MIN_SEGMENT_CAPACITY, expectedSize * 2 / SEGMENTS);
+        final int capacity = (int) Math.min(MAX_SEGMENT_CAPACITY, Long.highestOneBit(perSegment - 1) << 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            tables[i] = allocate(capacity);
+        }
+    }
+
+    /**
+     * @return Returns true if the value was added, false if it was already in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            value = ZERO_REPLACEMENT;
+        }
+        final int segment = (int) (value >>> (64 - SEGMENT_BITS));
+        LongBuffer table = tables[segment];
+        if (sizes[segment] >= table.capacity() / 2) {
+            table = tables[segment] = grow(table);
+        }
+        if (!insert(table, value)) {
+            return false;
+        }
+        sizes[segment]++;
+        size++;
+        return true;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return Returns the direct memory used by the set in bytes
+     */
+    public long memoryUsed() {
+        long slots = 0;
+        for (LongBuffer table : tables) {
+            slots += table.capacity();
+        }
+        return slots * Long.BYTES;
+    }
+
+    private static boolean insert(LongBuffer table, long value) {
+        final int mask = table.capacity() - 1;
+        //the segment is selected by the top bits, the slot by the (mixed) low bits
+        int slot = (int) mix(value) & mask;
+        while (true) {
+            final long current = table.get(slot);
+            if (current == EMPTY) {
+                table.put(slot, value);
+                return true;
+            }
+            if (current == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static LongBuffer grow(LongBuffer table) {
+        if (table.capacity() >= MAX_SEGMENT_CAPACITY) {
+            throw new IllegalStateException("OffHeapLongSet is full (" + (long) SEGMENTS * MAX_SEGMENT_CAPACITY / 2 + " values).");
+        }
+        final LongBuffer grown = allocate(table.capacity() * 2);
+        for (int i = 0; i < table.capacity(); i++) {
+            final long value = table.get(i);
+            if (value != EMPTY) {
+                insert(grown, value);
+            }
+        }
+        //the old direct buffer is freed when it is garbage collected
+        return grown;
+    }
+
+    private static LongBuffer allocate(int capacity) {
+        //a new direct buffer is zero filled, i.e. all slots are EMPTY
+        return ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return value;
+    }
+}
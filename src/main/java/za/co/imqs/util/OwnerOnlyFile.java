@@ -0,0 +1,47 @@
+package za.co.imqs.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.*;
+import java.util.Collections;
+
+/**
+ * Files with secrets (session cookies, the daemon token) that only the user running the tool may read.
+ *
+ * On a POSIX file system the file is created with rw------- permissions. On Windows (NTFS) its ACL is replaced by a
+ * single entry that gives the owner full control, so no permissions are inherited from the directory. On any other file
+ * system the file is not created, rather than leaving the secret readable by others.
+ */
+public class OwnerOnlyFile {
+
+    private OwnerOnlyFile() {
+    }
+
+    /**
+     * Create an empty file that only its owner can read and write. Write the secret to it after this returns.
+     *
+     * @throws IOException If the file exists or its permissions can not be restricted
+     */
+    public static void create(Path path) throws IOException {
+        if (Files.getFileAttributeView(path.toAbsolutePath().getParent(), PosixFileAttributeView.class) != null) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            return;
+        }
+        Files.createFile(path);
+        try {
+            final AclFileAttributeView acl = Files.getFileAttributeView(path, AclFileAttributeView.class);
+            if (acl == null) {
+                throw new IOException("Unable to restrict " + path + " to its owner, the file system has no POSIX permissions or ACLs.");
+            }
+            acl.setAcl(Collections.singletonList(AclEntry.newBuilder()
+                                                         .setType(AclEntryType.ALLOW)
+                                                         .setPrincipal(acl.getOwner())
+                                                         .setPermissions(AclEntryPermission.values())
+                                                         .build()));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+}
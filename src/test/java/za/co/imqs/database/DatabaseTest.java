@@ -0,0 +1,83 @@
+package za.co.imqs.database;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the connection pool against an in-memory H2 database.
+ */
+public class DatabaseTest {
+
+    @Test
+    public void closedConnectionsReturnToThePool() throws Exception {
+        try (Database db = database("pool", 1)) {
+            try (Connection connection = db.getDbConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE boq (boqPath VARCHAR(100))");
+                statement.execute("INSERT INTO boq VALUES ('BOQ-A')");
+            }
+            //maxPoolSize 1, the second borrow only succeeds if the first connection was returned
+            try (Connection connection = db.getDbConnection(); Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT boqPath FROM boq")) {
+                assertTrue(rs.next());
+                assertEquals("BOQ-A", rs.getString(1));
+            }
+        }
+    }
+
+    @Test(expected = SQLException.class)
+    public void borrowFailsAfterMaxWaitWhenThePoolIsExhausted() throws Exception {
+        try (Database db = database("exhausted", 1); Connection connection = db.getDbConnection()) {
+            db.getDbConnection();
+        }
+    }
+
+    @Test
+    public void closeClosesThePool() throws Exception {
+        final Database db = database("closed", 2);
+        db.getDbConnection().close();
+        db.close();
+        try {
+            db.getDbConnection();
+            fail("The pool is closed.");
+        } catch (SQLException e) {
+            //expected
+        }
+    }
+
+    /**
+     * The evictor runs every second; the minPoolSize connection stays open however long it is idle.
+     */
+    @Test
+    public void idleEvictionKeepsMinPoolSizeConnections() throws Exception {
+        try (Database db = database("idle", 2, ", \"minPoolSize\": 1, \"idleTimeoutMs\": 100")) {
+            final int session = sessionId(db);
+            Thread.sleep(2500);
+            assertEquals(session, sessionId(db));
+        }
+    }
+
+    private static int sessionId(Database db) throws Exception {
+        try (Connection connection = db.getDbConnection(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT SESSION_ID()")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static Database database(String name, int maxPoolSize) throws Exception {
+        return database(name, maxPoolSize, "");
+    }
+
+    private static Database database(String name, int maxPoolSize, String poolParams) throws Exception {
+        final String dbParams = "{ \"driverClass\": \"org.h2.Driver\", \"jdbcUrl\": \"jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1\"," +
+                                "  \"username\": \"sa\", \"password\": \"\", \"maxPoolSize\": " + maxPoolSize + ", \"maxWaitMs\": 200" + poolParams + " }";
+        return new Database(dbParams, new ObjectMapper());
+    }
+}
@@ -0,0 +1,240 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resumes a failed import against a local stand-in of the template service.
+ */
+public class BoqImporterResumeTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int ROWS = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger templateRequests = new AtomicInteger();
+    private volatile int failRequest = -1;                              //templates request answered with 500, -1 for none
+    private volatile String rejectedCode;                               //batches with this template are answered with 400, null for none
+    private final Set<String> acceptedCodes = Collections.synchronizedSet(new HashSet<>());
+    private final List<String> sentCodes = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> knownNodes = new HashSet<>();             //classification nodes accepted in full, guarded by itself
+    private final AtomicInteger unknownReferences = new AtomicInteger();
+
+    @Before
+    public void startService() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            final String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            final String path = exchange.getRequestURI().getPath();
+            int status = 201;
+            if (path.endsWith("login")) {
+                exchange.getResponseHeaders().add("Set-Cookie", "session=test; Path=/");
+                status = 200;
+            } else if (path.endsWith("templates")) {
+                status = templates(MAPPER.readTree(body));
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopService() {
+        server.stop(0);
+    }
+
+    /**
+     * Accept a batch of templates. A node reference (a node without a description) must refer to a node the service
+     * already has, or to a node carried in full by the same batch.
+     */
+    private int templates(JsonNode batch) {
+        if (templateRequests.incrementAndGet() == failRequest) {
+            return 500;
+        }
+        synchronized (knownNodes) {
+            final Set<String> carried = new HashSet<>();
+            final List<String> codes = new ArrayList<>();
+            for (JsonNode item : batch) {
+                codes.add(item.path("template").path("code").asText());
+                for (JsonNode node : item.path("classifications")) {
+                    if (node.hasNonNull("description")) {
+                        carried.add(nodeKey(node));
+                    }
+                }
+            }
+            sentCodes.addAll(codes);
+            for (JsonNode item : batch) {
+                for (JsonNode node : item.path("classifications")) {
+                    if (!node.hasNonNull("description") && !knownNodes.contains(nodeKey(node)) && !carried.contains(nodeKey(node))) {
+                        unknownReferences.incrementAndGet();
+                        return 400;
+                    }
+                }
+            }
+            if (codes.contains(rejectedCode)) {
+                return 400;
+            }
+            knownNodes.addAll(carried);
+            acceptedCodes.addAll(codes);
+            return 201;
+        }
+    }
+
+    private static String nodeKey(JsonNode node) {
+        return node.path("classificationNodeType").asText() + "|" + node.path("code").asText() + "|" + node.path("parentPath").asText();
+    }
+
+    /**
+     * Unchanged templates are skipped between changed ones; the journaled batches must still verify on resume.
+     */
+    @Test
+    public void resumeWithTemplateState() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        final File config = writeConfig(importFile, "\"templateStateFile\": \"" + jsonPath(new File(folder.getRoot(), "boq.state")) + "\"");
+
+        //first import, every template is new
+        writeImportFile(importFile, row -> "10");
+        assertTrue(new BoqImporter(config.getPath()).execute());
+        assertEquals(ROWS, acceptedCodes.size());
+
+        //change two out of every three templates and fail the third batch
+        writeImportFile(importFile, row -> row % 3 == 0 ? "10" : "20");
+        acceptedCodes.clear();
+        templateRequests.set(0);
+        failRequest = 3;
+        assertFalse(new BoqImporter(config.getPath()).execute());
+        assertTrue(new File(importFile.getPath() + CheckpointJournal.JOURNAL_EXTENSION).isFile());
+
+        //resume, the changed templates that were not committed are sent
+        failRequest = -1;
+        assertTrue(new BoqImporter(config.getPath(), true).execute());
+        final Set<String> changedCodes = new HashSet<>();
+        for (int row = 1; row <= ROWS; row++) {
+            if (row % 3 != 0) {
+                changedCodes.add(boqPath(row));
+            }
+        }
+        assertEquals(changedCodes, acceptedCodes);
+    }
+
+    /**
+     * Record 17 is rejected. It carries the classification nodes that records 18 - 20 of its batch refer to, so the
+     * halves of the batch must carry the nodes in full again.
+     */
+    @Test
+    public void rejectedRecordIsDeadLetteredAndNotResent() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        final File deadLetterFile = new File(folder.getRoot(), "boq.deadletter.csv");
+        final File config = writeConfig(importFile, "\"dedupeClassifications\": true, \"deadLetter\": { \"file\": \"" + jsonPath(deadLetterFile) + "\" }");
+        writeImportFile(importFile, row -> "10");
+        rejectedCode = boqPath(17);
+
+        //batch 5 (records 17 - 20) is split into 6 requests; the 11th request, records 25 - 28, fails the import
+        failRequest = 11;
+        assertFalse(new BoqImporter(config.getPath()).execute());
+        assertEquals(Collections.singletonList("17"), deadLetterRecordNumbers(deadLetterFile));
+        final Set<String> committedCodes = new HashSet<>();
+        for (int row = 1; row <= 24; row++) {
+            if (row != 17) {
+                committedCodes.add(boqPath(row));
+            }
+        }
+        assertEquals(committedCodes, acceptedCodes);
+
+        //resume, only the records after the last committed batch are sent
+        failRequest = -1;
+        sentCodes.clear();
+        assertTrue(new BoqImporter(config.getPath(), true).execute());
+        assertFalse(sentCodes.contains(boqPath(17)));
+        for (int row = 25; row <= ROWS; row++) {
+            committedCodes.add(boqPath(row));
+        }
+        assertEquals(committedCodes, acceptedCodes);
+        assertEquals(Collections.singletonList("17"), deadLetterRecordNumbers(deadLetterFile));
+        assertEquals(0, unknownReferences.get());
+    }
+
+    private static List<String> deadLetterRecordNumbers(File deadLetterFile) throws IOException {
+        final List<String> recordNumbers = new ArrayList<>();
+        try (Reader reader = new FileReader(deadLetterFile);
+             CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
+            for (CSVRecord record : parser) {
+                recordNumbers.add(record.get("recordNumber"));
+            }
+        }
+        return recordNumbers;
+    }
+
+    private interface EulOfRow {
+        String eul(int row);
+    }
+
+    private void writeImportFile(File file, EulOfRow eulOfRow) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        lines.add("financialYear,componentType_ID,componentType,descriptorType_ID,descriptorType,descriptorClass_ID,descriptorClass," +
+                  "descriptorSize_ID,descriptorSize,boqPath,eul");
+        for (int row = 1; row <= ROWS; row++) {
+            //every batch of 4 records starts with a new component
+            final int component = (row - 1) / 4 + 1;
+            lines.add("2020," + component + ",Comp " + component + ",2,Type 2,3,Class 3," + row + ",Size " + row + "," + boqPath(row) + "," + eulOfRow.eul(row));
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private static String boqPath(int row) {
+        return "BOQ-2020-1-2-3-" + row;
+    }
+
+    private static String jsonPath(File file) {
+        return file.getPath().replace("\\", "\\\\");
+    }
+
+    /**
+     * @param options Extra config properties, as json
+     */
+    private File writeConfig(File importFile, String options) throws IOException {
+        final String baseURI = "http://127.0.0.1:" + server.getAddress().getPort();
+        final String config = "{" +
+                "\"imqs-template-service\": {" +
+                "  \"baseURI\": \"" + baseURI + "/template/v1_0/\"," +
+                "  \"authSvcURI\": \"" + baseURI + "/auth2/login\"," +
+                "  \"username\": \"test\"," +
+                "  \"password\": \"test\"" +
+                "}," +
+                "\"batchSize\": 4," +
+                "\"retry\": { \"maxRetries\": 0 }," +
+                options + "," +
+                "\"importFilename\": \"" + jsonPath(importFile) + "\"," +
+                "\"fieldList\": { \"eul\": \"NUMERIC\" }" +
+                "}";
+        final File file = folder.newFile("boq-import-config.json");
+        Files.write(file.toPath(), config.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
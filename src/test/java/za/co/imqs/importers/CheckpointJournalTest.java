@@ -0,0 +1,51 @@
+package za.co.imqs.importers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import za.co.imqs.util.ContentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class CheckpointJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tornLastLineIsCutOff() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        final File journalFile = new File(importFile.getPath() + CheckpointJournal.JOURNAL_EXTENSION);
+        final String entry = "1,2," + ContentHash.toHex(new ContentHash().update(11).update(12).value()) + "\n";
+        Files.write(journalFile.toPath(), (entry + "12").getBytes(StandardCharsets.US_ASCII));
+
+        try (CheckpointJournal journal = new CheckpointJournal(importFile.getPath(), true)) {
+            assertEquals(entry, new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.US_ASCII));
+            assertTrue(journal.skip(1, 11));
+            assertTrue(journal.skip(2, 12));
+            //the torn entry is not a committed batch
+            assertFalse(journal.skip(120, 0));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void overlappingEntriesFailTheResume() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        final String hash = ContentHash.toHex(0);
+        Files.write(new File(importFile.getPath() + CheckpointJournal.JOURNAL_EXTENSION).toPath(),
+                    ("1,5," + hash + "\n4,8," + hash + "\n").getBytes(StandardCharsets.US_ASCII));
+        new CheckpointJournal(importFile.getPath(), true).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void invertedRangeFailsTheResume() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        Files.write(new File(importFile.getPath() + CheckpointJournal.JOURNAL_EXTENSION).toPath(),
+                    ("120,30," + ContentHash.toHex(0) + "\n").getBytes(StandardCharsets.US_ASCII));
+        new CheckpointJournal(importFile.getPath(), true).close();
+    }
+}
@@ -0,0 +1,59 @@
+package za.co.imqs.importers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImportFileSorterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * memoryMB 0 spills every row to a run of its own, so the rows go through several merge passes.
+     */
+    @Test
+    public void sortsStablyThroughSeveralMergePasses() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        Files.write(importFile.toPath(), Arrays.asList("id,boqPath", "1,BOQ-C", "2,BOQ-A", "3,BOQ-B", "4,BOQ-A", "5,BOQ-C", "6,BOQ-A"), StandardCharsets.UTF_8);
+
+        final String sortedFilename = sorter(importFile, "{ \"memoryMB\": 0, \"maxMergeRuns\": 2 }").sort(false);
+
+        assertEquals(Arrays.asList("id,boqPath", "2,BOQ-A", "4,BOQ-A", "6,BOQ-A", "3,BOQ-B", "1,BOQ-C", "5,BOQ-C"),
+                     Files.readAllLines(new File(sortedFilename).toPath(), StandardCharsets.UTF_8));
+        assertFalse(new File(sortedFilename + ".partial").exists());
+    }
+
+    @Test
+    public void resumeOnlyUsesACompleteSortedFile() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        Files.write(importFile.toPath(), Arrays.asList("id,boqPath", "1,BOQ-B", "2,BOQ-A"), StandardCharsets.UTF_8);
+        final ImportFileSorter sorter = sorter(importFile, "{}");
+
+        //a sort that died while writing leaves only the partial file
+        final File partialFile = new File(importFile.getPath() + ".sorted.csv.partial");
+        Files.write(partialFile.toPath(), Arrays.asList("id,boqPath", "2,BOQ-A"), StandardCharsets.UTF_8);
+        final String sortedFilename = sorter.sort(true);
+        assertEquals(3, Files.readAllLines(new File(sortedFilename).toPath(), StandardCharsets.UTF_8).size());
+
+        //a complete sorted file is used as it is
+        final List<String> marked = new ArrayList<>(Files.readAllLines(new File(sortedFilename).toPath(), StandardCharsets.UTF_8));
+        marked.add("3,BOQ-C");
+        Files.write(new File(sortedFilename).toPath(), marked, StandardCharsets.UTF_8);
+        assertEquals(4, Files.readAllLines(new File(sorter.sort(true)).toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    private ImportFileSorter sorter(File importFile, String config) throws Exception {
+        return new ImportFileSorter(new ObjectMapper().readTree(config), importFile.getPath(), new RunMetrics("sort " + importFile.getName()));
+    }
+}
@@ -0,0 +1,105 @@
+package za.co.imqs.importers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ParallelCsvReaderTest {
+    private static final int ROWS = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Small chunks put a chunk boundary next to every kind of line break; every chunk size must give the records, record
+     * numbers and content of the sequential reader.
+     */
+    @Test
+    public void chunksMatchTheSequentialReader() throws Exception {
+        final File importFile = folder.newFile("boq.csv");
+        Files.write(importFile.toPath(), importFile().getBytes(StandardCharsets.UTF_8));
+        final Map<String, String> fieldList = new HashMap<>();
+        fieldList.put("eul", "NUMERIC");
+        fieldList.put("extentUnit", "STRING");
+
+        final List<MappedRecord> expected;
+        try (RunMetrics metrics = new RunMetrics("sequential " + importFile.getName());
+             CsvRecordSource source = new CsvRecordSource(importFile.getPath(), fieldList, metrics)) {
+            expected = readAll(source);
+        }
+        assertEquals(ROWS, expected.size());
+
+        for (int chunkSize : new int[]{1, 7, 64, 300, 1 << 20}) {
+            try (RunMetrics metrics = new RunMetrics("parallel " + chunkSize + " " + importFile.getName());
+                 ParallelCsvReader reader = new ParallelCsvReader(importFile.getPath(), fieldList, 3, chunkSize, true, metrics)) {
+                final List<MappedRecord> actual = readAll(reader);
+                assertEquals("chunkSize " + chunkSize, expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    final String message = "chunkSize " + chunkSize + ", record " + (i + 1);
+                    assertEquals(message, expected.get(i).recordNumber, actual.get(i).recordNumber);
+                    assertEquals(message, expected.get(i).recordHash, actual.get(i).recordHash);
+                    assertEquals(message, expected.get(i).templateHash, actual.get(i).templateHash);
+                    assertEquals(message, expected.get(i).item.getTemplate().getCode(), actual.get(i).item.getTemplate().getCode());
+                }
+            }
+        }
+    }
+
+    /**
+     * Quoted values with line breaks and doubled quotes, LF and CRLF line endings, blank lines and no line break at the end
+     */
+    private static String importFile() {
+        final StringBuilder csv = new StringBuilder("financialYear,componentType_ID,componentType,descriptorType_ID,descriptorType,descriptorClass_ID," +
+                                                    "descriptorClass,descriptorSize_ID,descriptorSize,boqPath,eul,extentUnit\r\n");
+        for (int row = 1; row <= ROWS; row++) {
+            final String lineEnd = row % 2 == 0 ? "\r\n" : "\n";
+            final String descriptorSize;
+            final String extentUnit;
+            switch (row % 4) {
+                case 0:
+                    descriptorSize = "\"Size " + row + "\r\nsecond line\"";
+                    extentUnit = "m";
+                    break;
+                case 1:
+                    descriptorSize = "\"Size \"\"" + row + "\"\"\"";
+                    extentUnit = "\"m,\"\"\n\"\"\"";
+                    break;
+                case 2:
+                    descriptorSize = "Size " + row;
+                    extentUnit = "\"\n\"";
+                    break;
+                default:
+                    descriptorSize = "Size " + row;
+                    extentUnit = "\"\"";
+            }
+            csv.append("2020,1,Comp 1,2,Type 2,3,\"Class, 3\",").append(row).append(',').append(descriptorSize)
+               .append(",BOQ-2020-1-2-3-").append(row).append(',').append(row).append(',').append(extentUnit);
+            if (row < ROWS) {
+                csv.append(lineEnd);
+            }
+            if (row % 5 == 0) {
+                csv.append(row % 10 == 0 ? "\r\n" : "\n\n");
+            }
+        }
+        return csv.toString();
+    }
+
+    private static List<MappedRecord> readAll(MappedRecordSource source) throws Exception {
+        final List<MappedRecord> records = new ArrayList<>();
+        for (MappedRecord record = source.next(); record != null; record = source.next()) {
+            records.add(record);
+        }
+        return records;
+    }
+}
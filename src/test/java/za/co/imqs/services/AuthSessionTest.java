@@ -0,0 +1,128 @@
+package za.co.imqs.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import za.co.imqs.metrics.RunMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renews the login session against a local stand-in of the auth and template services.
+ */
+public class AuthSessionTest {
+    private static final int THREADS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicInteger logins = new AtomicInteger();
+    private volatile String validCookie;                    //the session the template service accepts, null for none
+
+    @Before
+    public void startService() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/auth2/login", exchange -> {
+            IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            final String session = "session=s" + logins.incrementAndGet();
+            validCookie = session;
+            exchange.getResponseHeaders().add("Set-Cookie", session + "; Path=/");
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/template/v1_0/", exchange -> {
+            IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            final boolean accepted = exchange.getRequestHeaders().getFirst("Cookie").equals(validCookie);
+            exchange.sendResponseHeaders(accepted ? 201 : 401, -1);
+            exchange.close();
+        });
+        serverExecutor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @After
+    public void stopService() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * The service drops the session: every thread is rejected once, but only one of them logs in again.
+     */
+    @Test
+    public void rejectedThreadsShareOneLogin() throws Exception {
+        try (TemplateServiceRestClient client = new TemplateServiceRestClient(params(null), new ObjectMapper(), new RunMetrics("auth test"))) {
+            assertEquals(1, logins.get());
+            validCookie = null;
+
+            final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+            try {
+                final CyclicBarrier start = new CyclicBarrier(THREADS);
+                final List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    results.add(threads.submit(() -> {
+                        start.await();
+                        client.submitClassificationTemplateBatch(Collections.emptyList());
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                threads.shutdownNow();
+            }
+            assertEquals(2, logins.get());
+        }
+    }
+
+    @Test
+    public void cachedSessionSkipsTheLogin() throws Exception {
+        final File cacheFile = new File(folder.getRoot(), "session.json");
+        new TemplateServiceRestClient(params(cacheFile), new ObjectMapper(), new RunMetrics("auth test")).close();
+        assertEquals(1, logins.get());
+        final PosixFileAttributeView posix = Files.getFileAttributeView(cacheFile.toPath(), PosixFileAttributeView.class);
+        if (posix != null) {
+            assertEquals("rw-------", PosixFilePermissions.toString(posix.readAttributes().permissions()));
+        }
+
+        try (TemplateServiceRestClient client = new TemplateServiceRestClient(params(cacheFile), new ObjectMapper(), new RunMetrics("auth test"))) {
+            client.submitClassificationTemplateBatch(Collections.emptyList());
+        }
+        assertEquals(1, logins.get());
+    }
+
+    private TemplateServiceParams params(File cacheFile) {
+        final String baseURI = "http://127.0.0.1:" + server.getAddress().getPort();
+        final TemplateServiceParams params = new TemplateServiceParams();
+        params.setBaseURI(baseURI + "/template/v1_0/");
+        params.setAuthSvcURI(baseURI + "/auth2/");
+        params.setUsername("test");
+        params.setPassword("test");
+        params.setSessionLifetimeMs(3600000);
+        params.setSessionCacheFile(cacheFile != null ? cacheFile.getPath() : null);
+        return params;
+    }
+}